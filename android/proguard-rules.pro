@@ -43,3 +43,9 @@
    boolean reportFixture(long);
    float   reportRayFixture(long, float, float, float, float, float);
 }
+
+# stitching progress is passed from native code
+-keep interface study.acodexm.StitchProgressListener { *; }
+-keepclassmembers class * implements study.acodexm.StitchProgressListener {
+   void onProgress(java.lang.String, int, int, int, long);
+}
@@ -0,0 +1,477 @@
+package study.acodexm;
+
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.WindowManager;
+
+import com.badlogic.gdx.graphics.Pixmap;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+import study.acodexm.control.AndroidSphereControl;
+import study.acodexm.control.CameraControl;
+import study.acodexm.control.ViewControl;
+import study.acodexm.settings.SettingsControl;
+import study.acodexm.utils.CaptureGate;
+import study.acodexm.utils.CaptureWriter;
+import study.acodexm.utils.LOG;
+import study.acodexm.utils.SidecarGenerator;
+
+/**
+ * camera control built on camera2 api. Focus is locked once when the preview starts, pictures are
+ * single YUV_420_888 frames taken while the preview keeps running, so there is no autofocus cycle
+ * and no JPEG encoding. Frames are saved as raw I420 files which stitching converts to Mats
+ * natively
+ */
+public class Camera2Surface extends SurfaceView implements SurfaceHolder.Callback, CameraControl {
+    private static final String TAG = Camera2Surface.class.getSimpleName();
+    private static final int WRITER_CAPACITY = 4;
+    private static final int SYNC_BATCH = 4;
+    private static final int MAX_PREVIEW_AREA = 1920 * 1080;
+    private final SidecarGenerator mSidecars = new SidecarGenerator();
+    private final CaptureWriter mWriter = new CaptureWriter(WRITER_CAPACITY, SYNC_BATCH, mSidecars);
+    private final ExecutorService mTextureExecutor = Executors.newSingleThreadExecutor();
+    private final CaptureGate mCaptureGate = new CaptureGate();
+    private final HandlerThread mCameraThread = new HandlerThread(TAG);
+    private Handler mCameraHandler;
+    private Context context;
+    private ViewControl mViewControl;
+    private SphereControl mSphereControl;
+    private SettingsControl mSettingsControl;
+    private int PHOTO_WIDTH;
+    private int PHOTO_HEIGHT;
+    private String mCameraId;
+    private CameraCharacteristics mCharacteristics;
+    private Size mPreviewSize;
+    /**
+     * camera, session and reader are closed and nulled on the main thread while pictures are
+     * taken on the GL thread, they are read once into locals there
+     */
+    private volatile CameraDevice mCamera;
+    private volatile CameraCaptureSession mSession;
+    private volatile ImageReader mImageReader;
+    private CaptureRequest.Builder mPreviewRequest;
+    private volatile boolean safeToTakePicture = false;
+    private volatile boolean isFocusLocked = false;
+    private volatile boolean isOpening = false;
+    private float[] mShutterOrientation;
+    private long mShutterTimestamp;
+    private int mPictureId;
+    private int mRotation;
+
+    public Camera2Surface(MainActivity activity, SettingsControl settingsControl) {
+        super(activity.getContext());
+        context = activity.getContext();
+        mViewControl = activity;
+        mSettingsControl = settingsControl;
+        mSidecars.setGridLat(settingsControl.getGridSize().getLAT());
+        getHolder().addCallback(this);
+        mSphereControl = new AndroidSphereControl(this);
+        //this section sets height and width variables for resizing image for textures on sphere
+        DisplayMetrics metrics = new DisplayMetrics();
+        WindowManager windowManager = (WindowManager) activity.getSystemService(Context.WINDOW_SERVICE);
+        if (windowManager != null) {
+            windowManager.getDefaultDisplay().getMetrics(metrics);
+            PHOTO_HEIGHT = metrics.heightPixels / 4;
+            PHOTO_WIDTH = metrics.widthPixels / 4;
+        }
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+    }
+
+    /**
+     * @return true if back camera supports more than legacy camera2 level, legacy devices
+     * emulate camera2 with the old api so CameraSurface is used for them
+     */
+    public static boolean isSupported(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        if (manager == null) return false;
+        try {
+            String id = findBackCamera(manager);
+            if (id == null) return false;
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+            Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            LOG.s(TAG, "camera2 check failed", e);
+            return false;
+        }
+    }
+
+    private static String findBackCamera(CameraManager manager) throws CameraAccessException {
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraMetadata.LENS_FACING_BACK)
+                return id;
+        }
+        return null;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            mCameraId = findBackCamera(manager);
+            mCharacteristics = manager.getCameraCharacteristics(mCameraId);
+            StreamConfigurationMap map = mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            mPreviewSize = getBestPreviewSize(map.getOutputSizes(SurfaceHolder.class));
+            Size pictureSize = getPictureSize(map.getOutputSizes(ImageFormat.YUV_420_888));
+            mImageReader = ImageReader.newInstance(pictureSize.getWidth(), pictureSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            mImageReader.setOnImageAvailableListener(this::onImageAvailable, mCameraHandler);
+            holder.setFixedSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } catch (CameraAccessException | NullPointerException e) {
+            LOG.s(TAG, "camera2 setup failed", e);
+        }
+    }
+
+    /**
+     * camera is opened when the surface has the preview size
+     */
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        LOG.d(TAG, "surfaceChanged called");
+        // surface is changed again after the fixed size is set
+        if (mCamera == null && mImageReader != null && !isOpening)
+            openCamera();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        safeToTakePicture = false;
+        isFocusLocked = false;
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void openCamera() {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        isOpening = true;
+        try {
+            manager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    isOpening = false;
+                    mCamera = camera;
+                    createSession();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    isOpening = false;
+                    camera.close();
+                    mCamera = null;
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    LOG.s(TAG, "camera error: " + error);
+                    isOpening = false;
+                    camera.close();
+                    mCamera = null;
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            isOpening = false;
+            LOG.s(TAG, "opening camera failed", e);
+        }
+    }
+
+    private void createSession() {
+        try {
+            Surface preview = getHolder().getSurface();
+            mPreviewRequest = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequest.addTarget(preview);
+            mCamera.createCaptureSession(Arrays.asList(preview, mImageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession session) {
+                            mSession = session;
+                            lockFocus();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session) {
+                            LOG.s(TAG, "capture session configuration failed");
+                        }
+                    }, mCameraHandler);
+        } catch (CameraAccessException e) {
+            LOG.s(TAG, "creating capture session failed", e);
+        }
+    }
+
+    /**
+     * focuses once and keeps the focus for all pictures, all pictures of the panorama are taken
+     * from the same place so they need the same focus distance
+     */
+    private void lockFocus() {
+        int[] modes = mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        boolean hasAutoFocus = modes != null && Arrays.stream(modes).anyMatch(mode -> mode == CameraMetadata.CONTROL_AF_MODE_AUTO);
+        if (!hasAutoFocus) {
+            startPreview();
+            isFocusLocked = true;
+            safeToTakePicture = true;
+            return;
+        }
+        try {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_AUTO);
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+            mSession.capture(mPreviewRequest.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                    Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+                    LOG.d(TAG, "focus state: " + state);
+                }
+            }, mCameraHandler);
+            // repeating request keeps auto focus mode without trigger, so the focus stays locked
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            mSession.setRepeatingRequest(mPreviewRequest.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                    Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+                    if (!isFocusLocked && state != null
+                            && (state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                            || state == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
+                        isFocusLocked = true;
+                        safeToTakePicture = true;
+                        LOG.d(TAG, "focus locked: " + state);
+                    }
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException e) {
+            LOG.s(TAG, "focus lock failed", e);
+            isFocusLocked = true;
+            safeToTakePicture = true;
+        }
+    }
+
+    /**
+     * this method finds the biggest preview size which does not exceed full HD
+     */
+    private static Size getBestPreviewSize(Size[] sizes) {
+        return Arrays.stream(sizes)
+                .filter(size -> size.getWidth() * size.getHeight() <= MAX_PREVIEW_AREA)
+                .max(Comparator.comparingInt(size -> size.getWidth() * size.getHeight()))
+                .orElse(sizes[sizes.length - 1]);
+    }
+
+    /**
+     * this method chooses highest, middle or lowest YUV resolution, like CameraSurface does for
+     * JPEG pictures
+     */
+    private Size getPictureSize(Size[] sizes) {
+        List<Size> sorted = Arrays.asList(sizes);
+        sorted.sort((a, b) -> Integer.compare(b.getWidth() * b.getHeight(), a.getWidth() * a.getHeight()));
+        switch (mSettingsControl.getPictureQuality()) {
+            case LOW:
+                return sorted.get(sorted.size() - 1);
+            case NORMAL:
+                return sorted.get(sorted.size() / 2);
+            default:
+                return sorted.get(0);
+        }
+    }
+
+    /**
+     * @return clockwise rotation which makes the picture upright on the current display
+     */
+    private int getPictureRotation() {
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        int degrees = 0;
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+        }
+        Integer sensorOrientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return ((sensorOrientation == null ? 0 : sensorOrientation) - degrees + 360) % 360;
+    }
+
+    /**
+     * this is a trigger method for taking picture, a single frame is taken from the running
+     * preview with locked focus
+     */
+    @Override
+    public boolean takePicture() {
+        CameraDevice camera = mCamera;
+        CameraCaptureSession captureSession = mSession;
+        ImageReader imageReader = mImageReader;
+        // auto capture waits while the writer is full
+        if (camera == null || captureSession == null || imageReader == null || !safeToTakePicture
+                || mWriter.isFull())
+            return false;
+        safeToTakePicture = false;
+        mPictureId = PicturePosition.getInstance(mSettingsControl.getGridSize().getLAT(), mSettingsControl.getGridSize().getLON(), false).calculateCurrentPosition();
+        mRotation = getPictureRotation();
+        try {
+            // closed camera or session throws IllegalStateException
+            CaptureRequest.Builder request = camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            request.addTarget(imageReader.getSurface());
+            request.set(CaptureRequest.CONTROL_AF_MODE, mPreviewRequest.get(CaptureRequest.CONTROL_AF_MODE));
+            captureSession.capture(request.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+                    // sampled at exposure start, the same as CameraSurface onShutter
+                    mShutterTimestamp = SystemClock.elapsedRealtimeNanos();
+                    mShutterOrientation = mViewControl.getOrientationQuaternion();
+                }
+
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                    LOG.s(TAG, "Take picture failed: " + failure.getReason());
+                    safeToTakePicture = true;
+                }
+            }, mCameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            LOG.s(TAG, "Take picture failed", e);
+            safeToTakePicture = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * this method packs the frame to I420 memory, queues it to be saved as raw file and sends
+     * a scaled copy to sphere for a texture needs
+     */
+    private void onImageAvailable(ImageReader reader) {
+        long time = System.currentTimeMillis();
+        Image image = reader.acquireNextImage();
+        if (image == null) return;
+        int width = image.getWidth() & ~1;
+        int height = image.getHeight() & ~1;
+        ByteBuffer i420 = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        Image.Plane[] planes = image.getPlanes();
+        NativePanorama.packYuv(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                width, height, planes[0].getRowStride(), planes[1].getRowStride(),
+                planes[1].getPixelStride(), i420);
+        image.close();
+
+        final float[] orientation = mShutterOrientation;
+        final long timestamp = mShutterTimestamp;
+        final int rotation = mRotation;
+        mShutterOrientation = null;
+        mWriter.writeRaw(i420.duplicate(), width, height, rotation, mPictureId, orientation, timestamp);
+
+        Runnable processTexture = () -> {
+            Pixmap picture = new Pixmap(PHOTO_WIDTH, PHOTO_HEIGHT, Pixmap.Format.RGBA8888);
+            NativePanorama.yuvToRgba(i420, width, height, rotation, picture.getPixels(), PHOTO_WIDTH, PHOTO_HEIGHT);
+            mViewControl.post(() -> {
+                mSphereControl.setPicture(picture);
+                mViewControl.updateRender();
+                safeToTakePicture = true;
+            });
+        };
+        mTextureExecutor.execute(processTexture);
+        LOG.s(TAG, "onImageAvailable process time: " + (System.currentTimeMillis() - time));
+    }
+
+    @Override
+    public void startPreview() {
+        CameraCaptureSession session = mSession;
+        if (session == null) return;
+        try {
+            session.setRepeatingRequest(mPreviewRequest.build(), null, mCameraHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            LOG.s(TAG, "starting preview failed", e);
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        CameraCaptureSession session = mSession;
+        if (session == null) return;
+        try {
+            session.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            LOG.s(TAG, "stopping preview failed", e);
+        }
+    }
+
+    @Override
+    public SurfaceView getSurface() {
+        return this;
+    }
+
+    @Override
+    public SphereControl getSphereControl() {
+        return mSphereControl;
+    }
+
+    /**
+     * preview frames go straight to the surface, so only device motion is checked
+     */
+    @Override
+    public CaptureGate getCaptureGate() {
+        return mCaptureGate;
+    }
+
+    @Override
+    public void setPictureListener(IntConsumer listener) {
+        mWriter.setListener(listener);
+    }
+
+    @Override
+    public void awaitPicturesSaved() throws InterruptedException {
+        mWriter.awaitWritten();
+    }
+
+    @Override
+    public boolean getLivePanorama(List<Integer> ids, Mat result) {
+        return mSidecars.getLivePanorama(ids, result);
+    }
+
+    @Override
+    public void release() {
+        mWriter.close();
+        mTextureExecutor.shutdown();
+        mCameraThread.quitSafely();
+    }
+}
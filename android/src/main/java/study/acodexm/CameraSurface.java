@@ -7,6 +7,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.PixelFormat;
 import android.hardware.Camera;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.Surface;
@@ -14,23 +15,40 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.WindowManager;
 
-import java.io.ByteArrayOutputStream;
+import com.badlogic.gdx.graphics.Pixmap;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
 
 import study.acodexm.control.AndroidSphereControl;
 import study.acodexm.control.CameraControl;
 import study.acodexm.control.ViewControl;
+import study.acodexm.settings.ActionMode;
+import study.acodexm.settings.PictureQuality;
 import study.acodexm.settings.SettingsControl;
-import study.acodexm.utils.ImageRW;
+import study.acodexm.utils.CaptureGate;
+import study.acodexm.utils.CaptureWriter;
 import study.acodexm.utils.LOG;
+import study.acodexm.utils.SidecarGenerator;
 
 @SuppressWarnings("deprecation")
-public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback, Camera.PictureCallback, Camera.AutoFocusCallback, CameraControl {
+public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback, Camera.PictureCallback, Camera.AutoFocusCallback, Camera.ShutterCallback, CameraControl {
     private static final String TAG = CameraSurface.class.getSimpleName();
+    /**
+     * full resolution pictures waiting to be written, capture is held when the writer is full
+     */
+    private static final int WRITER_CAPACITY = 4;
+    private static final int SYNC_BATCH = 4;
+    private static final int PREVIEW_RING_SIZE = 3;
     private Handler handler;
     private Camera camera;
     private CameraSurface thisCamera;
-    private byte[] mPicture;
+    private Pixmap mPicture;
     private boolean safeToTakePicture = false;
     private ViewControl mViewControl;
     private SphereControl mSphereControl;
@@ -41,6 +59,15 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
     private Camera.Size lowRes;
     private Camera.Size lowestRes;
     private Context context;
+    private float[] mShutterOrientation;
+    private long mShutterTimestamp;
+    private final SidecarGenerator mSidecars = new SidecarGenerator();
+    private final CaptureWriter mWriter = new CaptureWriter(WRITER_CAPACITY, SYNC_BATCH, mSidecars);
+    private final ExecutorService mTextureExecutor = Executors.newSingleThreadExecutor();
+    private final CaptureGate mCaptureGate = new CaptureGate();
+    private PreviewRing mPreviewRing;
+    private boolean canGrabPreview = false;
+    private int mPreviewRotation;
 
     public CameraSurface(Context context) {
         super(context);
@@ -62,6 +89,7 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
         context = activity.getContext();
         mViewControl = activity;
         mSettingsControl = settingsControl;
+        mSidecars.setGridLat(settingsControl.getGridSize().getLAT());
         getHolder().addCallback(this);
         getHolder().setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
         mSphereControl = new AndroidSphereControl(this);
@@ -124,6 +152,15 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
             camera.setParameters(myParameters);
             camera.setDisplayOrientation(orientation);
             camera.startPreview();
+            // preview frames are sampled for sharpness, low quality pictures are not bigger
+            // than the preview so FullAuto mode grabs them from preview frames
+            if (mPreviewRing != null)
+                mPreviewRing.stop();
+            mPreviewRing = new PreviewRing(camera, myBestSize.width, myBestSize.height, PREVIEW_RING_SIZE);
+            mPreviewRing.setSampler(this::sampleSharpness);
+            mPreviewRotation = orientation;
+            canGrabPreview = mSettingsControl.getPictureQuality() == PictureQuality.LOW
+                    && myBestSize.width * myBestSize.height >= lowestRes.width * lowestRes.height;
         }
         safeToTakePicture = true;
     }
@@ -198,20 +235,76 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
+        if (mPreviewRing != null) {
+            mPreviewRing.stop();
+            mPreviewRing = null;
+        }
+        canGrabPreview = false;
         camera.stopPreview();
         camera.release();
         camera = null;
     }
 
+    private void sampleSharpness(byte[] nv21, int width, int height) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mCaptureGate.isSampleDue(now))
+            mCaptureGate.onSharpness(CaptureGate.sharpness(nv21, width, height), now);
+    }
+
     /**
      * this is a trigger method for taking picture
      */
     @Override
-    public void takePicture() {
-        if (camera != null && safeToTakePicture) {
-            safeToTakePicture = false;
+    public boolean takePicture() {
+        // auto capture waits while the writer is full
+        if (camera == null || !safeToTakePicture || mWriter.isFull())
+            return false;
+        safeToTakePicture = false;
+        if (canGrabPreview && mSettingsControl.getActionMode() == ActionMode.FullAuto)
+            grabPreviewPicture();
+        else
             safeAutoFocus();
-        }
+        return true;
+    }
+
+    /**
+     * takes the picture from the preview frame closest to this moment, there is no autofocus
+     * and no still shot
+     */
+    private void grabPreviewPicture() {
+        mShutterTimestamp = SystemClock.elapsedRealtimeNanos();
+        final float[] orientation = mViewControl.getOrientationQuaternion();
+        final long timestamp = mShutterTimestamp;
+        final int id = PicturePosition.getInstance(mSettingsControl.getGridSize().getLAT(), mSettingsControl.getGridSize().getLON(), false).calculateCurrentPosition();
+        final int rotation = mPreviewRotation;
+        mPreviewRing.grab(timestamp, (nv21, width, height) -> {
+            long time = System.currentTimeMillis();
+            int frameWidth = width & ~1;
+            int frameHeight = height & ~1;
+            // NV21 has full luma plane followed by interleaved V and U
+            ByteBuffer frame = ByteBuffer.allocateDirect(nv21.length).put(nv21);
+            ByteBuffer i420 = ByteBuffer.allocateDirect(frameWidth * frameHeight * 3 / 2);
+            NativePanorama.packYuv(plane(frame, 0), plane(frame, width * height + 1),
+                    plane(frame, width * height), frameWidth, frameHeight, width, width, 2, i420);
+            mWriter.writeRaw(i420.duplicate(), frameWidth, frameHeight, rotation, id, orientation, timestamp);
+            mTextureExecutor.execute(() -> {
+                Pixmap picture = new Pixmap(PHOTO_WIDTH, PHOTO_HEIGHT, Pixmap.Format.RGBA8888);
+                NativePanorama.yuvToRgba(i420, frameWidth, frameHeight, rotation, picture.getPixels(), PHOTO_WIDTH, PHOTO_HEIGHT);
+                mViewControl.post(() -> {
+                    mPicture = picture;
+                    mSphereControl.setPicture(mPicture);
+                    mViewControl.updateRender();
+                    safeToTakePicture = true;
+                });
+            });
+            LOG.s(TAG, "grabPreviewPicture process time: " + (System.currentTimeMillis() - time));
+        });
+    }
+
+    private static ByteBuffer plane(ByteBuffer frame, int offset) {
+        ByteBuffer plane = frame.duplicate();
+        plane.position(offset);
+        return plane.slice();
     }
 
 
@@ -227,7 +320,7 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
 
     private void scheduleAutoFocus() {
         handler.postDelayed(() -> {
-            if (camera != null && safeToTakePicture) {
+            if (camera != null && safeToTakePicture && !mWriter.isFull()) {
                 safeToTakePicture = false;
                 safeAutoFocus();
             }
@@ -241,26 +334,43 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
     public void onAutoFocus(boolean success, Camera camera) {
         LOG.d(TAG, "onAutoFocus: " + success);
         if (success && camera != null)
-            camera.takePicture(null, null, this);
+            camera.takePicture(this, null, this);
+    }
+
+    /**
+     * this method samples device orientation at the moment picture is taken
+     */
+    @Override
+    public void onShutter() {
+        mShutterTimestamp = SystemClock.elapsedRealtimeNanos();
+        mShutterOrientation = mViewControl.getOrientationQuaternion();
     }
 
     /**
-     * this method saves taken picture to external storage and sends it to sphere for a texture needs
+     * this method queues taken picture to be saved on external storage and sends it to sphere
+     * for a texture needs. Writing and decoding run off the UI thread, next picture can be taken
+     * as soon as the texture is set, no matter how fast the storage is
      */
     @Override
     public void onPictureTaken(final byte[] bytes, Camera camera) {
         long time = System.currentTimeMillis();
 
-        Runnable saveImage = () -> ImageRW.saveImageExternal(bytes, PicturePosition.getInstance(mSettingsControl.getGridSize().getLAT(), mSettingsControl.getGridSize().getLON(), false).calculateCurrentPosition());
-        mViewControl.post(saveImage);
+        final float[] orientation = mShutterOrientation;
+        final long timestamp = mShutterTimestamp;
+        mShutterOrientation = null;
+        int id = PicturePosition.getInstance(mSettingsControl.getGridSize().getLAT(), mSettingsControl.getGridSize().getLON(), false).calculateCurrentPosition();
+        mWriter.write(bytes, id, orientation, timestamp);
 
         Runnable processTexture = () -> {
-            mPicture = resizeImage(bytes);
-            mSphereControl.setPicture(mPicture);
-            mViewControl.updateRender();
-            safeToTakePicture = true;
+            Pixmap picture = decodeTexture(bytes);
+            mViewControl.post(() -> {
+                mPicture = picture;
+                mSphereControl.setPicture(mPicture);
+                mViewControl.updateRender();
+                safeToTakePicture = true;
+            });
         };
-        mViewControl.post(processTexture);
+        mTextureExecutor.execute(processTexture);
 
         camera.startPreview();
         LOG.s(TAG, "onPictureTaken process time: " + (System.currentTimeMillis() - time));
@@ -269,17 +379,36 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
 
 
     /**
-     * this method resize image to a given resolution
+     * this method decodes the picture once, subsampled by the decoder close to the texture
+     * resolution, and copies its pixels to a pixmap which is uploaded to the texture as it is
      */
-    private byte[] resizeImage(byte[] bytes) {
-        Bitmap original = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-        Bitmap resized = Bitmap.createScaledBitmap(original, PHOTO_WIDTH, PHOTO_HEIGHT, false);
-        ByteArrayOutputStream blob = new ByteArrayOutputStream();
-        resized.compress(Bitmap.CompressFormat.PNG, 0, blob);
-        byte[] resizedImg = blob.toByteArray();
-        resized.recycle();
-        original.recycle();
-        return resizedImg;
+    private Pixmap decodeTexture(byte[] bytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap sampled = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        Bitmap resized = Bitmap.createScaledBitmap(sampled, PHOTO_WIDTH, PHOTO_HEIGHT, false);
+        // ARGB_8888 bitmap keeps pixels as RGBA bytes, the same as RGBA8888 pixmap
+        Pixmap pixmap = new Pixmap(PHOTO_WIDTH, PHOTO_HEIGHT, Pixmap.Format.RGBA8888);
+        resized.copyPixelsToBuffer(pixmap.getPixels());
+        pixmap.getPixels().rewind();
+        if (resized != sampled)
+            resized.recycle();
+        sampled.recycle();
+        return pixmap;
+    }
+
+    /**
+     * @return biggest power of two which keeps decoded picture at least as big as the texture
+     */
+    private int getSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= PHOTO_WIDTH && height / (sampleSize * 2) >= PHOTO_HEIGHT)
+            sampleSize *= 2;
+        return sampleSize;
     }
 
     @Override
@@ -304,4 +433,30 @@ public class CameraSurface extends SurfaceView implements SurfaceHolder.Callback
         return mSphereControl;
     }
 
+    @Override
+    public CaptureGate getCaptureGate() {
+        return mCaptureGate;
+    }
+
+    @Override
+    public void setPictureListener(IntConsumer listener) {
+        mWriter.setListener(listener);
+    }
+
+    @Override
+    public void awaitPicturesSaved() throws InterruptedException {
+        mWriter.awaitWritten();
+    }
+
+    @Override
+    public boolean getLivePanorama(List<Integer> ids, Mat result) {
+        return mSidecars.getLivePanorama(ids, result);
+    }
+
+    @Override
+    public void release() {
+        mWriter.close();
+        mTextureExecutor.shutdown();
+    }
+
 }
@@ -1,6 +1,7 @@
 package study.acodexm;
 
 
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.graphics.PixelFormat;
 import android.hardware.SensorManager;
@@ -9,6 +10,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.NavigationView;
 import android.support.v4.content.ContextCompat;
@@ -33,9 +35,12 @@ import com.badlogic.gdx.backends.android.AndroidApplicationConfiguration;
 
 import org.opencv.core.Mat;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -52,6 +57,7 @@ import study.acodexm.gallery.GalleryActivity;
 import study.acodexm.orientationProvider.ImprovedOrientationSensor2Provider;
 import study.acodexm.orientationProvider.OrientationProvider;
 import study.acodexm.representation.MatrixF4x4;
+import study.acodexm.representation.Quaternion;
 import study.acodexm.settings.ActionMode;
 import study.acodexm.settings.GridSize;
 import study.acodexm.settings.PictureMode;
@@ -62,7 +68,14 @@ import study.acodexm.utils.DetectorType;
 import study.acodexm.utils.ExpCompType;
 import study.acodexm.utils.ImagePicker;
 import study.acodexm.utils.ImageRW;
+import study.acodexm.utils.JobPool;
 import study.acodexm.utils.LOG;
+import study.acodexm.utils.PartPlanner;
+import study.acodexm.utils.PartScheduler;
+import study.acodexm.utils.QualityPlanner;
+import study.acodexm.utils.SessionJournal;
+import study.acodexm.utils.SessionPack;
+import study.acodexm.utils.SidecarGenerator;
 import study.acodexm.utils.SeamType;
 import study.acodexm.utils.WrapType;
 
@@ -71,9 +84,24 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
     private static final String PART = "PART_";
     private static final int START_PROCESSING = 100;
     private static final int STOP_PROCESSING = 101;
-    private static final int PROCESS_PART_IMAGES = 102;
     private static final int PROCESS_FINAL_IMAGES = 103;
     private static final int SAVED_PART_IMAGE = 104;
+    /**
+     * times interrupted stitching is resumed before it is given up
+     */
+    private static final int MAX_RESUME_ATTEMPTS = 1;
+    /**
+     * directory in app storage where checkpoints of final stitching are kept
+     */
+    private static final String CHECKPOINT_DIR = "checkpoints";
+    /**
+     * memory budget when the system is low on memory, stitching then runs alone at low resolution
+     */
+    private static final long MIN_MEMORY_BUDGET = 64L * 1024 * 1024;
+    /**
+     * longest wait in milliseconds for cancelled stitching before the session is refreshed
+     */
+    private static final long CANCEL_TIMEOUT = 2000;
 
     static {
         System.loadLibrary("opencv_java3");
@@ -126,11 +154,10 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
     TextView mProgressInfo;
 
     // multithreading
-    private Thread imageHandler;
+    private JobPool mJobPool;
+    private PartScheduler mPartScheduler;
     private Handler threadHandler;
 
-    private int imageCount = 0;
-    private boolean mRunning = false;
     private RotationVector rotationVector = new AndroidRotationVector();
     private SettingsControl mSettingsControl = new AndroidSettingsControl();
     private CameraControl mCameraControl;
@@ -139,9 +166,10 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
     private SphereManualControl mManualControl;
     private boolean onBackBtnPressed = false;
     private boolean isNotSaving = true;
-    private boolean partProcessing = false;
+    private boolean isResumingStitch = false;
     private PicturePosition mPicturePosition;
     private OrientationProvider orientationProvider;
+    private final Quaternion orientationQuaternion = new Quaternion();
     private String wrapType;
     private String detectorType;
     private String seamType;
@@ -154,7 +182,11 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
         mPreferences = new UserPreferences(this);
         GridSize mGridSize = new GridSize(mPreferences.getLat(), mPreferences.getLon());
         mSettingsControl.setGridSize(mGridSize);
-        mCameraControl = new CameraSurface(this, mSettingsControl);
+        // camera2 takes raw frames with locked focus, legacy devices use the old camera api
+        if (Camera2Surface.isSupported(this))
+            mCameraControl = new Camera2Surface(this, mSettingsControl);
+        else
+            mCameraControl = new CameraSurface(this, mSettingsControl);
         //getting camera surface view
         SurfaceView mSurfaceView = mCameraControl.getSurface();
         FrameLayout layout = new FrameLayout(getContext());
@@ -191,38 +223,47 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
         ButterKnife.bind(this);
         NavigationView navigationView = findViewById(R.id.nav_view);
         navigationView.setNavigationItemSelectedListener(this);
-        //delete files from temporary picture folder
-        ImageRW.deleteTempFiles();
-        ImageRW.deletePartFiles();
+        //capture session taken on the same grid is restored from its journal, otherwise files
+        //are deleted from temporary picture folder unless unfinished stitching has to be resumed.
+        //Stitching which did not finish after it was resumed is given up, it would crash again
+        isResumingStitch = mPreferences.hasPendingStitch();
+        if (isResumingStitch && mPreferences.getPendingAttempts() >= MAX_RESUME_ATTEMPTS) {
+            LOG.s(TAG, "resumed stitching did not finish, it is given up");
+            // preview of stitching which will not finish is not left in the gallery
+            ImageRW.deleteResultImage(mPreferences.getPendingFileName());
+            mPreferences.clearPendingStitch();
+            isResumingStitch = false;
+            showToast(R.string.msg_resume_failed);
+        }
+        SessionJournal.Session restored = SessionJournal.restore(mGridSize.getLAT(), mGridSize.getLON());
+        if (restored == null && !isResumingStitch)
+            ImageRW.deleteTempFiles();
+        if (restored == null)
+            SessionJournal.start(mGridSize.getLAT(), mGridSize.getLON());
         //spinner init
         initSpinners();
         //init grid
         mPicturePosition = PicturePosition.getInstance(mGridSize.getLAT(), mGridSize.getLON(), true);
-
-        imageHandler = new Thread(new Runnable() {
-            public synchronized void run() {
-                LOG.s(TAG, "image handler call");
-                while (mRunning) {
-                    try {
-                        wait(500);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                    List<Integer> newImagePart = ImagePicker.loadPanoParts(mPicturePosition);
-                    if (newImagePart.size() == 3) {
-                        Message message = new Message();
-                        message.what = PROCESS_PART_IMAGES;
-                        mPicturePosition.markAsUsed(newImagePart);
-                        Bundle data = new Bundle();
-                        int id = imageCount++;
-                        message.arg1 = id;
-                        data.putIntegerArrayList(PART + id, (ArrayList<Integer>) newImagePart);
-                        message.setData(data);
-                        threadHandler.sendMessage(message);
-                    }
-                }
-            }
-        });
+        if (restored != null)
+            restored.applyTo(mPicturePosition);
+        //final stitching, parts and merges share workers, native stitching uses more threads
+        //itself so half of the cores run jobs
+        mJobPool = new JobPool(Runtime.getRuntime().availableProcessors() / 2, this::getMemoryBudget);
+        //parts are solved from captures as soon as they are written and merged when they are saved,
+        //parts and pictures of restored session which are not in any part yet are queued first
+        if (mPreferences.getPictureMode() == PictureMode.MULTITHREADED) {
+            PartPlanner planner = new PartPlanner(mGridSize.getLAT());
+            planner.markStitched(mPicturePosition.getUsedPositions());
+            mPartScheduler = new PartScheduler(mPreferences.getPartSize(), mPreferences.getPartLatency(),
+                    restored != null ? restored.getNextPart() : 0, planner, this::stitchPart, this::mergeParts, mJobPool);
+            mPartScheduler.pause();
+            if (restored != null)
+                for (Map.Entry<Integer, List<Integer>> part : restored.getSavedParts().entrySet())
+                    mPartScheduler.onPartSaved(part.getKey(), part.getValue());
+            for (int cell : ImagePicker.loadPanoParts(mPicturePosition))
+                mPartScheduler.onCapture(cell);
+            mCameraControl.setPictureListener(mPartScheduler::onCapture);
+        }
     }
 
     private void initSpinners() {
@@ -274,31 +315,28 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
                     case START_PROCESSING: {
                         LOG.s(TAG, "START_PROCESSING");
                         MainActivity.this.isNotSaving = true;
-                        MainActivity.this.mRunning = true;
-                        if (imageHandler.getState() == Thread.State.NEW) imageHandler.start();
+                        if (mPartScheduler != null) mPartScheduler.resume();
                         break;
                     }
                     case STOP_PROCESSING: {
                         LOG.s(TAG, "STOP_PROCESSING");
                         MainActivity.this.isNotSaving = true;
-                        MainActivity.this.mRunning = false;
-                        if (imageHandler.isAlive() && !imageHandler.isInterrupted())
-                            imageHandler.isInterrupted();
+                        if (mPartScheduler != null) mPartScheduler.pause();
                         break;
                     }
                     case PROCESS_FINAL_IMAGES: {
                         LOG.s(TAG, "PROCESS_FINAL_IMAGES");
                         MainActivity.this.isNotSaving = false;
                         MainActivity.this.orientationProvider.stop();
-                        new Thread(MainActivity.this.processPicture(PictureMode.intToEnum(msg.arg1), msg.arg2 == 1)).start();
-                        new Thread(MainActivity.this.getProgress()).start();
-                        break;
-                    }
-                    case PROCESS_PART_IMAGES: {
-                        LOG.s(TAG, "PROCESS_PART_IMAGES");
-                        MainActivity.this.partProcessing = true;
-                        new Thread(MainActivity.this.processPartPicture(msg.getData().getIntegerArrayList(PART + msg.arg1))).start();
-                        new Thread(MainActivity.this.getProgressPart()).start();
+                        MainActivity.this.showProgress();
+                        List<Integer> ids = msg.getData().getIntegerArrayList(PART + msg.what);
+                        PictureMode pictureMode = PictureMode.intToEnum(msg.arg1);
+                        boolean isInTestMode = msg.arg2 == 1;
+                        // no new parts are made while saving, running ones are preempted so
+                        // final stitching runs alone on all cores
+                        if (mPartScheduler != null) mPartScheduler.pause();
+                        mJobPool.submit("final", JobPool.PRIORITY_FINAL, JobPool.ALL_MEMORY,
+                                session -> MainActivity.this.processPicture(pictureMode, isInTestMode, ids, session));
                         break;
                     }
                     case SAVED_PART_IMAGE: {
@@ -314,6 +352,27 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
         });
         if (mPreferences.getPictureMode() == PictureMode.MULTITHREADED)
             threadHandler.sendEmptyMessage(START_PROCESSING);
+        if (isResumingStitch) {
+            isResumingStitch = false;
+            resumeStitch();
+        }
+    }
+
+    /**
+     * starts final stitching which was interrupted by recreating the activity or by process death,
+     * stages saved in checkpoints are not repeated
+     */
+    private void resumeStitch() {
+        post(LOG.r(TAG, "resuming stitching", mPreferences.getPendingIds().toString()));
+        mPreferences.addPendingAttempt();
+        Message message = new Message();
+        message.what = PROCESS_FINAL_IMAGES;
+        message.arg1 = mPreferences.getPendingMode();
+        message.arg2 = mPreferences.isPendingTest() ? 1 : 0;
+        Bundle data = new Bundle();
+        data.putIntegerArrayList(PART + PROCESS_FINAL_IMAGES, mPreferences.getPendingIds());
+        message.setData(data);
+        threadHandler.sendMessage(message);
     }
 
     @Override
@@ -330,6 +389,15 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
 
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mPartScheduler != null)
+            mPartScheduler.close();
+        mJobPool.close();
+        mCameraControl.release();
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         DrawerLayout drawer = findViewById(R.id.drawer_layout);
@@ -379,108 +447,278 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
         }
     }
 
+    @Override
+    public void onRotationVelocity(double velocity) {
+        mCameraControl.getCaptureGate().onRotationVelocity(velocity, SystemClock.elapsedRealtimeNanos());
+    }
+
+    @Override
+    public float[] getOrientationQuaternion() {
+        synchronized (orientationQuaternion) {
+            orientationProvider.getQuaternion(orientationQuaternion);
+            // provider keeps w inverted
+            return new float[]{
+                    orientationQuaternion.getX(),
+                    orientationQuaternion.getY(),
+                    orientationQuaternion.getZ(),
+                    -orientationQuaternion.getW()};
+        }
+    }
+
 
     /**
-     * this method is executed on new Thread.
+     * this method is executed on a worker of the job pool, it runs alone.
      * first depending on selected picture mode method loads selected pictures to be processed.
      * Next pictures are passed to native openCV stitcher to be processed.
      * If the stitching process is successful the picture is saved
      *
      * @param pictureMode
+     * @param pendingIds  ids of pictures of resumed stitching, null if they are chosen from the grid
+     * @param session     native session used for stitching, destroyed when processing ends
+     * @return status of the stitching
      */
-    private Runnable processPicture(final PictureMode pictureMode, boolean isInTestMode) {
-        return () -> {
-            final List<Mat> listImage;
-            try {
-                listImage = ImagePicker.loadPictures(pictureMode, mPicturePosition, isInTestMode);
-            } catch (Exception e) {
-                post(LOG.r(TAG, "run: loadPictures failed", e));
-                return;
-            }
-            try {
-                int images = listImage.size();
-                if (images > 0) {
-                    long[] tempObjAddress = new long[images];
-                    for (int i = 0; i < images; i++) {
-                        tempObjAddress[i] = listImage.get(i).getNativeObjAddr();
+    private int processPicture(final PictureMode pictureMode, boolean isInTestMode,
+                               final List<Integer> pendingIds, final StitchSession session) {
+        final List<Mat> listImage;
+        final List<Integer> ids;
+        final float[] orientations;
+        final SessionPack.Reader pack;
+        final List<Integer> parts = new ArrayList<>();
+        final String fileName;
+        try {
+            // pictures are written on the capture writer thread
+            mCameraControl.awaitPicturesSaved();
+            // no part or merge runs next to final stitching so every picture is in one saved
+            // part or in none, pictures are stitched at once seeded from solutions of the parts
+            if (mPartScheduler != null && pictureMode == PictureMode.MULTITHREADED)
+                parts.addAll(mPartScheduler.getSavedParts());
+            ids = pendingIds != null ? pendingIds
+                    : ImagePicker.loadPictureIds(pictureMode, mPicturePosition, isInTestMode);
+            // resumed stitching replaces the preview it saved before it was interrupted
+            String pendingFileName = pendingIds != null ? mPreferences.getPendingFileName() : null;
+            fileName = pendingFileName != null ? pendingFileName : ImageRW.newResultFileName();
+            mPreferences.setPendingStitch(PictureMode.enumToInt(pictureMode), isInTestMode, ids, fileName);
+            pack = ImagePicker.openPack();
+            listImage = ImagePicker.loadPictures(pack, ids, isInTestMode);
+            orientations = ImagePicker.loadOrientations(pack, ids);
+        } catch (Exception e) {
+            post(LOG.r(TAG, "run: loadPictures failed", e));
+            mPreferences.clearPendingStitch();
+            post(this::hideProgress);
+            return -1;
+        }
+        session.setProgressListener(new ProgressInfo(R.string.stitching_in_progress));
+        int status = -1;
+        boolean isResultSaved = false;
+        try {
+            int images = listImage.size();
+            if (images > 0) {
+                long[] tempObjAddress = new long[images];
+                for (int i = 0; i < images; i++) {
+                    tempObjAddress[i] = listImage.get(i).getNativeObjAddr();
+                }
+                Mat result = new Mat();
+                // Call the OpenCV C++ Code to perform stitching process
+                try {
+                    StitchConfig config = StitchConfig.forPictureMode(pictureMode);
+                    if (pictureMode == PictureMode.TEST)
+                        config.setTypes(detectorType, wrapType, seamType, expCompType);
+                    QualityPlanner.Plan plan = new QualityPlanner(getMemoryBudget(),
+                            mPreferences.getTimeBudget(), Runtime.getRuntime().availableProcessors())
+                            .plan(images, listImage.get(0).cols(), listImage.get(0).rows(),
+                                    WrapType.get(config.getWarper()), SeamType.get(config.getSeamFinder()));
+                    post(LOG.r(TAG, "quality plan", plan.toString()));
+                    if (!plan.fits())
+                        post(LOG.r(TAG, "quality plan does not fit the budget"));
+                    plan.applyTo(config);
+                    // stitching interrupted by process death continues from saved stages
+                    config.setCheckpoints(true);
+                    post(LOG.r(TAG, "stitch config", config.toString()));
+                    // panorama blended while the pictures were taken is saved at once, preview
+                    // and full resolution panorama replace it
+                    Mat live = new Mat();
+                    if (ids.size() == images && mCameraControl.getLivePanorama(ids, live))
+                        showToastRunnable(getString(R.string.msg_live_panorama_is_saved)
+                                + ImageRW.saveResultImageExternal(live, fileName));
+                    live.release();
+                    // low resolution preview is saved first, full resolution panorama
+                    // replaces it when it is composed, OpenCV Stitcher has no preview
+                    Mat preview = new Mat();
+                    // scaled pictures and features made at capture time, test pictures have none
+                    if (ids.size() == images) {
+                        session.setSidecars(ImagePicker.loadSidecars(pack, ids, SidecarGenerator.WORK),
+                                ImagePicker.loadSidecars(pack, ids, SidecarGenerator.SEAM));
+                        session.setFeatures(ImagePicker.loadFeatures(pack, ids));
+                        session.setSolutions(ImagePicker.loadSolutions(pack, parts));
+                        session.setCheckpoints(new File(getFilesDir(), CHECKPOINT_DIR),
+                                ImagePicker.loadInputKeys(pack, ids));
                     }
-                    Mat result = new Mat();
-                    // Call the OpenCV C++ Code to perform stitching process
-                    try {
-                        String[] args = {
-                                pictureMode.toString().toLowerCase(),
-                                detectorType.toLowerCase(),
-                                wrapType.toLowerCase(),
-                                seamType.toLowerCase(),
-                                expCompType.toLowerCase()
-                        };
-                        NativePanorama.processPanorama(tempObjAddress, result.getNativeObjAddr(), args);
-                        //save to external storage
+                    if (config.isOpenCvDefault())
+                        status = session.run(tempObjAddress, result.getNativeObjAddr(), config,
+                                toIntArray(ids), mPicturePosition.getLAT(), orientations);
+                    else
+                        status = session.preview(tempObjAddress, preview.getNativeObjAddr(), config,
+                                toIntArray(ids), mPicturePosition.getLAT(), orientations);
+                    if (status == 0 && !config.isOpenCvDefault()) {
                         boolean isSaved = false;
+                        if (!preview.empty())
+                            isSaved = ImageRW.saveResultImageExternal(preview, fileName);
+                        showToastRunnable(getString(R.string.msg_preview_is_saved) + isSaved);
+                        post(this::showRefining);
+                        status = session.compose(result.getNativeObjAddr());
+                    }
+                    preview.release();
+                    if (status == StitchSession.CANCELLED) {
+                        post(LOG.r(TAG, "stitching cancelled"));
+                        mPreferences.clearPendingAttempts();
+                    } else {
+                        //save to external storage
                         if (!result.empty())
-                            isSaved = ImageRW.saveResultImageExternal(result);
-                        showToastRunnable(getString(R.string.msg_is_saved) + isSaved);
-                    } catch (Exception e) {
-                        post(LOG.r(TAG, "native processPanorama not working ", e));
+                            isResultSaved = ImageRW.saveResultImageExternal(result, fileName);
+                        showToastRunnable(getString(R.string.msg_is_saved) + isResultSaved);
                     }
-                    for (Mat mat : listImage) mat.release();
-                    listImage.clear();
+                    result.release();
+                } catch (Exception e) {
+                    post(LOG.r(TAG, "native processPanorama not working ", e));
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                for (Mat mat : listImage) mat.release();
+                listImage.clear();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // cancelled session means that activity is restarted or destroyed
+        if (status != StitchSession.CANCELLED) {
+            // live panorama or preview is not left as the only output of failed stitching
+            if (!isResultSaved)
+                ImageRW.deleteResultImage(fileName);
+            mPreferences.clearPendingStitch();
+            if (mPartScheduler != null)
+                mPartScheduler.resume();
             isNotSaving = true;
             orientationProvider.start();
-            post(LOG.cpJ());
-        };
-
+            post(this::hideProgress);
+        }
+        post(LOG.cpJ());
+        return status;
     }
 
-    private Runnable processPartPicture(final ArrayList<Integer> ids) {
-        return () -> {
-            final List<Mat> listImage;
-            try {
-                listImage = ImagePicker.loadPictureParts(ids);
-            } catch (Exception e) {
-                post(LOG.r(TAG, "run: loadPictureParts failed", e));
-                return;
-            }
-            try {
-                int images = listImage.size();
-                if (images > 0) {
-                    long[] tempObjAddress = new long[images];
-                    for (int i = 0; i < images; i++) {
-                        tempObjAddress[i] = listImage.get(i).getNativeObjAddr();
-                    }
-                    Mat result = new Mat();
-                    //Call the OpenCV C++ Code to perform stitching process
-                    try {
-                        String[] args = {"part", "orb", "spherical", "dp_color", "no"};
-                        NativePanorama.processPanorama(tempObjAddress, result.getNativeObjAddr(), args);
-                        //save to external storage
-                        boolean isSaved = false;
-                        if (!result.empty())
-                            isSaved = ImageRW.savePartResultImageExternal(result);
-
-                        Message message = new Message();
-                        message.what = SAVED_PART_IMAGE;
-                        message.arg1 = isSaved ? 1 : 0;
+    /**
+     * runs on a worker of the job pool, cells are marked as used before they are stitched
+     */
+    private int stitchPart(int part, List<Integer> cells, StitchSession session) {
+        // part finishing after the session is refreshed does not write to the next one
+        int generation = ImageRW.getSessionPackGeneration();
+        mPicturePosition.markAsUsed(cells);
+        SessionJournal.partStarted(part, cells, generation);
+        session.setProgressListener(new ProgressInfo(R.string.stitching_part_in_progress));
+        return processPartPicture(part, new ArrayList<>(cells), session, generation);
+    }
 
-                        //if part pictures failed mark used pictures as unused
-                        if (!isSaved) post(() -> mPicturePosition.markAsUnused(ids));
-                        threadHandler.sendMessage(message);
-                    } catch (Exception e) {
-                        post(LOG.r(TAG, "native processPanorama not working ", e));
+    /**
+     * finds cameras of part of the pictures on the calling thread, their solution is saved in the
+     * session pack and the part is recorded in the session journal. Nothing is composed, final
+     * stitching adjusts all pictures at once from solutions of the parts. Part which is
+     * cancelled stays running in the journal so it is solved again when it is preempted or when
+     * the session is restored, part which is not saved for any other reason is recorded as failed
+     * and its pictures can be used again
+     *
+     * @param part       id of the part in the session
+     * @param generation generation of the session pack when the part started
+     * @return 0 if the part is saved, {@link StitchSession#CANCELLED} if it was cancelled
+     */
+    private int processPartPicture(final int part, final ArrayList<Integer> ids, final StitchSession session,
+                                   final int generation) {
+        int status = -1;
+        boolean isSaved = false;
+        try {
+            mCameraControl.awaitPicturesSaved();
+            SessionPack.Reader pack = ImagePicker.openPack();
+            List<Mat> listImage = ImagePicker.loadPictureParts(pack, ids);
+            float[] orientations = ImagePicker.loadOrientations(pack, ids);
+            int images = listImage.size();
+            if (images > 0) {
+                long[] tempObjAddress = new long[images];
+                for (int i = 0; i < images; i++) {
+                    tempObjAddress[i] = listImage.get(i).getNativeObjAddr();
+                }
+                //Call the OpenCV C++ Code to find cameras of the part
+                try {
+                    session.setSidecars(ImagePicker.loadSidecars(pack, ids, SidecarGenerator.WORK),
+                            Collections.emptyList());
+                    session.setFeatures(ImagePicker.loadFeatures(pack, ids));
+                    status = session.solve(tempObjAddress, StitchConfig.forPart(),
+                            toIntArray(ids), mPicturePosition.getLAT(), orientations);
+                    if (status == StitchSession.CANCELLED) {
+                        post(LOG.r(TAG, "part stitching cancelled"));
+                    } else {
+                        //solution is saved before the journal record of the part
+                        byte[] solution = session.takeSolution();
+                        isSaved = status == 0 && solution != null && ImageRW.saveSolution(solution, part, generation);
                     }
+                } catch (Exception e) {
+                    post(LOG.r(TAG, "native processPanorama not working ", e));
+                } finally {
                     for (Mat mat : listImage) mat.release();
                     listImage.clear();
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-            partProcessing = false;
-            post(LOG.cpJ());
-        };
+        } catch (Exception e) {
+            post(LOG.r(TAG, "run: loadPictureParts failed", e));
+        } finally {
+            if (status != StitchSession.CANCELLED) {
+                SessionJournal.partFinished(part, ids, isSaved, generation);
+                //if part pictures failed mark used pictures as unused
+                if (!isSaved) post(() -> mPicturePosition.markAsUnused(ids));
+                Message message = new Message();
+                message.what = SAVED_PART_IMAGE;
+                message.arg1 = isSaved ? 1 : 0;
+                threadHandler.sendMessage(message);
+            }
+        }
+        post(LOG.cpJ());
+        if (status == StitchSession.CANCELLED) return status;
+        return isSaved ? 0 : -1;
+    }
+
+    /**
+     * runs on a worker of the job pool, joins solutions of saved parts into a bigger part using
+     * their features, no picture is loaded. Merged parts are replaced in the journal together
+     * with saving the new one
+     *
+     * @return 0 if the new part is saved, {@link StitchSession#CANCELLED} if it was cancelled
+     */
+    private int mergeParts(int part, List<Integer> merged, List<Integer> cells, StitchSession session) {
+        int generation = ImageRW.getSessionPackGeneration();
+        int status = -1;
+        try {
+            status = session.merge(ImagePicker.loadSolutions(ImagePicker.openPack(), merged),
+                    StitchConfig.forPart(), mPicturePosition.getLAT());
+            byte[] solution = session.takeSolution();
+            if (status == 0 && (solution == null || !ImageRW.saveSolution(solution, part, generation)))
+                status = -1;
+        } catch (Exception e) {
+            post(LOG.r(TAG, "merging parts failed ", e));
+        }
+        if (status == 0)
+            SessionJournal.partsMerged(part, merged, cells, generation);
+        return status;
+    }
+
+    /**
+     * native memory which stitching can use, part of the memory available in the system above
+     * the low memory threshold, at least {@link #MIN_MEMORY_BUDGET}
+     */
+    private long getMemoryBudget() {
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryInfo(memoryInfo);
+        // available memory is below the threshold when the system is already low on memory
+        long available = Math.max(0, memoryInfo.availMem - memoryInfo.threshold);
+        return Math.max(MIN_MEMORY_BUDGET, (long) (available * mPreferences.getMemoryBudget()));
+    }
+
+    private static int[] toIntArray(List<Integer> ids) {
+        return ids.stream().mapToInt(Integer::intValue).toArray();
     }
 
     public void showToastRunnable(final String message) {
@@ -501,56 +739,48 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
      * when picture is processed, to release more cpu and gpu power camera preview is stopped, and
      * additionally progress info with circle is shown
      */
-    private Runnable getProgress() {
-        LOG.s(TAG, "getProgress");
-        post(() -> {
-            mCameraControl.stopPreview();
-            mProgressBar.setVisibility(View.VISIBLE);
-        });
-        final long time = System.currentTimeMillis();
-        post(LOG.r("getProgress", "START", (System.currentTimeMillis() - time)));
-        return () -> {
-            while (!isNotSaving) {
-                int progress = NativePanorama.getProgress();
-                post(LOG.r("getProgress", progress + "", (System.currentTimeMillis() - time)));
-                post(() -> mProgressInfo.setText(String.format(Locale.getDefault(), "%s%d%s", getString(R.string.stitching_in_progress), progress, "%")));
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            post(LOG.r("getProgress", "END", (System.currentTimeMillis() - time)));
-            post(() -> {
-                LOG.s(TAG, "hideProcessingDialog");
-                mCameraControl.startPreview();
-                mProgressBar.setVisibility(View.GONE);
-                mProgressInfo.setText("");
-            });
-        };
+    private void showProgress() {
+        LOG.s(TAG, "showProcessingDialog");
+        mCameraControl.stopPreview();
+        mProgressBar.setVisibility(View.VISIBLE);
     }
 
     /***
-     * when part of picture is processed
-     * additional progress info is shown
+     * preview of the panorama is ready and full resolution panorama is composed in the background,
+     * camera preview is started again and only progress info is left
      */
-    private Runnable getProgressPart() {
-        LOG.s(TAG, "getProgressPart");
-        final long time = System.currentTimeMillis();
-        post(LOG.r("getProgressPart", "START", (System.currentTimeMillis() - time)));
-        return () -> {
-            while (partProcessing) {
-                int progress = NativePanorama.getProgress();
-                post(LOG.r("getProgressPart", progress + "", (System.currentTimeMillis() - time)));
-                post(() -> mProgressInfo.setText(String.format(Locale.getDefault(), "%s%d%s", getString(R.string.stitching_part_in_progress), progress, "%")));
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    private void showRefining() {
+        LOG.s(TAG, "showRefining");
+        mCameraControl.startPreview();
+        mProgressBar.setVisibility(View.GONE);
+    }
+
+    private void hideProgress() {
+        LOG.s(TAG, "hideProcessingDialog");
+        mCameraControl.startPreview();
+        mProgressBar.setVisibility(View.GONE);
+        mProgressInfo.setText("");
+    }
+
+    /***
+     * shows progress of stitching, every stage change is saved to performance logs
+     */
+    private class ProgressInfo implements StitchProgressListener {
+        private final int mMessage;
+        private String mStage = "";
+
+        ProgressInfo(int message) {
+            mMessage = message;
+        }
+
+        @Override
+        public void onProgress(String stage, int index, int total, int progress, long elapsedMillis) {
+            if (!stage.equals(mStage)) {
+                mStage = stage;
+                post(LOG.r(TAG, stage, elapsedMillis));
             }
-            post(LOG.r("getProgressPart", "END", (System.currentTimeMillis() - time)));
-        };
+            post(() -> mProgressInfo.setText(String.format(Locale.getDefault(), "%s%d%s", getString(mMessage), progress, "%")));
+        }
     }
 
     private void loadPreferences() {
@@ -661,8 +891,17 @@ public class MainActivity extends AndroidApplication implements ViewControl, Nav
 
     @OnClick(R.id.refresh_picture)
     void onRefreshClickListener() {
-        if (isNotSaving) recreate();
-        else showToast(R.string.msg_wait);
+        // running stitching is stopped and waited for, so it does not write to deleted files
+        try {
+            if (!mJobPool.cancelAndWait(CANCEL_TIMEOUT))
+                LOG.s(TAG, "stitching did not stop in time, its records are dropped");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mPreferences.clearPendingStitch();
+        // new session starts with an empty grid
+        ImageRW.deleteTempFiles();
+        recreate();
     }
 
     @OnClick(R.id.open_gallery)
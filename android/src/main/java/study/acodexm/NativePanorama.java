@@ -1,10 +1,192 @@
 package study.acodexm;
 
+import java.nio.ByteBuffer;
 
 public class NativePanorama {
-    public native static void processPanorama(long[] imageAddressArray, long outputAddress, String[] stringArray);
+    /**
+     * @param config  binary settings written by {@link StitchConfig#toBytes()}
+     * @param cellIds sphere grid cell ids of the images in the same order as images, used to
+     *                match only neighbouring pictures. Empty array if positions are unknown
+     * @param gridLat amount of grid columns used to calculate cell ids
+     * @param orientations device orientation quaternions {x, y, z, w} sampled at shutter time,
+     *                     four values per image, used as initial camera rotations. Empty array if unknown
+     */
+    public native static void processPanorama(long[] imageAddressArray, long outputAddress, byte[] config, int[] cellIds, int gridLat, float[] orientations);
 
     public native static void cropPanorama(long imageAddress, long outputAddress);
 
-    public native static int getProgress();
+    /**
+     * creates native stitch session which owns its own progress, cancel flag and stitcher state
+     *
+     * @return native session address, has to be released with {@link #destroySession(long)}
+     */
+    public native static long createSession();
+
+    /**
+     * same as {@link #processPanorama} but runs in given session
+     *
+     * @param listener called on the calling thread with progress of the stitching, may be null
+     * @return 0 if stitching succeeded, -2 if it was cancelled
+     */
+    public native static int runSession(long session, long[] imageAddressArray, long outputAddress, byte[] config, int[] cellIds, int gridLat, float[] orientations, StitchProgressListener listener);
+
+    /**
+     * first phase of two phase stitching, registers images and keeps cameras, seams and exposure
+     * gains in the session, then blends a low resolution preview from the seam scale images
+     *
+     * @param previewAddress Mat for the preview
+     * @return 0 if registration succeeded, -2 if it was cancelled
+     */
+    public native static int previewSession(long session, long[] imageAddressArray, long previewAddress, byte[] config, int[] cellIds, int gridLat, float[] orientations, StitchProgressListener listener);
+
+    /**
+     * second phase of two phase stitching, composes full resolution panorama from the
+     * registration found by {@link #previewSession}
+     *
+     * @param crop if the panorama should be cropped to rectangular shape
+     * @return 0 if compositing succeeded, -2 if it was cancelled
+     */
+    public native static int composeSession(long session, long outputAddress, boolean crop, StitchProgressListener listener);
+
+    public native static int getSessionProgress(long session);
+
+    public native static void cancelSession(long session);
+
+    public native static void destroySession(long session);
+
+    /**
+     * sets work and seam scale versions of the images made at capture time, they are used by the
+     * next stitching of the session instead of resizing full images. Mats are released
+     *
+     * @param workAddressArray Mats in the same order as images, empty Mat if there is none
+     */
+    public native static void setSessionSidecars(long session, long[] workAddressArray, long[] seamAddressArray);
+
+    /**
+     * resizes image to work and seam scale the same way stitching does
+     *
+     * @param workMegapix negative for full resolution
+     */
+    public native static void makeSidecars(long imageAddress, double workMegapix, double seamMegapix, long workAddress, long seamAddress);
+
+    /**
+     * sets features of the images found at capture time, they are used by the next stitching of
+     * the session when they were found with the same finder settings
+     *
+     * @param features direct buffers with features in the same order as images, null for
+     *                 images without features
+     */
+    public native static void setSessionFeatures(long session, ByteBuffer[] features);
+
+    /**
+     * sets where checkpoints of the session are kept and what they are keyed on
+     *
+     * @param inputKeys id, offset, length and timestamp of the record of every image in the
+     *                  session pack
+     */
+    public native static void setSessionCheckpoints(long session, String dir, long[] inputKeys);
+
+    /**
+     * registers images only until their cameras are found, cameras with the features and matches
+     * they were adjusted from are kept in the session for {@link #takeSessionSolution}
+     *
+     * @return 0 if cameras were found, -2 if it was cancelled
+     */
+    public native static int solveSession(long session, long[] imageAddressArray, byte[] config, int[] cellIds, int gridLat, float[] orientations, StitchProgressListener listener);
+
+    /**
+     * joins solutions of neighbouring parts into one solution kept in the session for
+     * {@link #takeSessionSolution}, only pictures of different parts are matched
+     *
+     * @param solutions direct buffers with solutions found with the same config
+     * @return 0 if solutions were joined, -2 if it was cancelled
+     */
+    public native static int mergeSession(long session, ByteBuffer[] solutions, byte[] config, int gridLat);
+
+    /**
+     * sets solutions of parts of the images, cameras of the next stitching of the session are
+     * adjusted from them and their features and matches are reused
+     *
+     * @param solutions direct buffers with solutions, broken ones are skipped
+     */
+    public native static void setSessionSolutions(long session, ByteBuffer[] solutions);
+
+    /**
+     * @return solution found by {@link #solveSession} or {@link #mergeSession}, null if there is none
+     */
+    public native static byte[] takeSessionSolution(long session);
+
+    /**
+     * finds features of work scale image with the finder of the config
+     *
+     * @return features to be passed to {@link #setSessionFeatures} or null if the config is wrong
+     */
+    public native static byte[] precomputeFeatures(long workAddress, byte[] config);
+
+    /**
+     * decodes JPEG to 3 channel BGR Mat, the same channel order {@link #yuvToBgr} gives
+     *
+     * @param jpeg direct buffer, all its capacity is decoded
+     */
+    public native static void decodeImage(ByteBuffer jpeg, long outputAddress);
+
+    /**
+     * copies direct buffer of BGR pixels to a 3 channel Mat with a single copy, the Mat does
+     * not depend on the buffer, so the pack can be closed while it is used
+     *
+     * @param bgr buffer of width * height * 3 bytes
+     */
+    public native static void copyBgr(ByteBuffer bgr, int width, int height, long outputAddress);
+
+    /**
+     * copies planes of a YUV_420_888 camera image to continuous I420 memory, all buffers
+     * have to be direct
+     *
+     * @param i420 buffer of width * height * 3 / 2 bytes
+     */
+    public native static void packYuv(ByteBuffer y, ByteBuffer u, ByteBuffer v, int width, int height, int yRowStride, int uvRowStride, int uvPixelStride, ByteBuffer i420);
+
+    /**
+     * converts direct I420 buffer to 3 channel BGR Mat which stitching takes without conversion
+     *
+     * @param rotation clockwise rotation of the picture in degrees
+     */
+    public native static void yuvToBgr(ByteBuffer i420, int width, int height, int rotation, long outputAddress);
+
+    /**
+     * scales direct I420 buffer down and converts it to RGBA pixels of a texture
+     *
+     * @param rgba direct buffer of rgbaWidth * rgbaHeight * 4 bytes
+     */
+    public native static void yuvToRgba(ByteBuffer i420, int width, int height, int rotation, ByteBuffer rgba, int rgbaWidth, int rgbaHeight);
+
+    /**
+     * creates native incremental panorama builder, pictures are added one at a time and every
+     * add costs the same no matter how many pictures the panorama already has
+     *
+     * @param gridLat        amount of grid columns used to calculate cell ids, 0 if unknown
+     * @param composeMegapix resolution of pictures on the panorama, negative for the resolution
+     *                       of added pictures
+     * @return native builder address, has to be released with {@link #destroyBuilder(long)}
+     */
+    public native static long createBuilder(int gridLat, double composeMegapix);
+
+    /**
+     * @param imageAddress 3 channel picture, it is not changed
+     * @param cellId       sphere grid cell id of the picture, negative if unknown
+     * @return 0 if picture was registered, 1 if it is kept until one of its neighbours is registered
+     */
+    public native static int addToBuilder(long builder, long imageAddress, int cellId);
+
+    /**
+     * @return amount of pictures registered and blended into the panorama
+     */
+    public native static int getBuilderSize(long builder);
+
+    /**
+     * @return false if there is no panorama yet
+     */
+    public native static boolean getBuilderResult(long builder, long outputAddress);
+
+    public native static void destroyBuilder(long builder);
 }
@@ -0,0 +1,94 @@
+package study.acodexm;
+
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+/**
+ * ring of preallocated NV21 preview buffers. Camera fills them in turn and the newest frame is
+ * held back, so a picture can be grabbed from the preview instead of taking a still shot.
+ * Frames which are not grabbed can be sampled. No memory is allocated per frame
+ */
+@SuppressWarnings("deprecation")
+class PreviewRing implements Camera.PreviewCallback {
+    private final Camera mCamera;
+    private final int mWidth;
+    private final int mHeight;
+    private byte[] mHeld;
+    private long mHeldTimestamp;
+    private FrameListener mListener;
+    private FrameListener mSampler;
+    private long mShutterTimestamp;
+
+    interface FrameListener {
+        /**
+         * called on the camera thread, frame buffer goes back to the ring when it returns
+         */
+        void onFrame(byte[] nv21, int width, int height);
+    }
+
+    /**
+     * @param size amount of buffers, one is always held so camera fills the others
+     */
+    PreviewRing(Camera camera, int width, int height, int size) {
+        mCamera = camera;
+        mWidth = width;
+        mHeight = height;
+        int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        for (int i = 0; i < size; i++)
+            camera.addCallbackBuffer(new byte[bufferSize]);
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * passes the frame closest in time to the shutter to the listener, either the held frame or
+     * the next one
+     *
+     * @param shutterTimestamp elapsed realtime nanos of the shutter
+     */
+    void grab(long shutterTimestamp, FrameListener listener) {
+        mShutterTimestamp = shutterTimestamp;
+        mListener = listener;
+    }
+
+    /**
+     * sampler gets every frame which is not grabbed, it has to be quick
+     */
+    void setSampler(FrameListener sampler) {
+        mSampler = sampler;
+    }
+
+    void stop() {
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mListener = null;
+        mSampler = null;
+        mHeld = null;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        if (mListener != null) {
+            FrameListener listener = mListener;
+            mListener = null;
+            if (mHeld != null && Math.abs(mHeldTimestamp - mShutterTimestamp) < Math.abs(timestamp - mShutterTimestamp)) {
+                byte[] held = mHeld;
+                mHeld = data;
+                mHeldTimestamp = timestamp;
+                listener.onFrame(held, mWidth, mHeight);
+                camera.addCallbackBuffer(held);
+            } else {
+                listener.onFrame(data, mWidth, mHeight);
+                camera.addCallbackBuffer(data);
+            }
+            return;
+        }
+        if (mHeld != null)
+            camera.addCallbackBuffer(mHeld);
+        mHeld = data;
+        mHeldTimestamp = timestamp;
+        if (mSampler != null)
+            mSampler.onFrame(data, mWidth, mHeight);
+    }
+}
@@ -0,0 +1,376 @@
+package study.acodexm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import study.acodexm.settings.PictureMode;
+import study.acodexm.utils.DetectorType;
+import study.acodexm.utils.ExpCompType;
+import study.acodexm.utils.SeamType;
+import study.acodexm.utils.WrapType;
+
+/**
+ * settings of native stitching. Config is validated once and passed to native code as a binary
+ * struct, layout has to be the same as StitchConfig in jni/StitchConfig.h
+ */
+public class StitchConfig {
+    /**
+     * version of the binary layout, native side refuses configs of other versions
+     */
+    static final int VERSION = 1;
+    /**
+     * size of the binary struct, 14 ints followed by 6 doubles
+     */
+    static final int SIZE = 14 * 4 + 6 * 8;
+
+    /**
+     * detector, warper, seam finder and exposure compensator values are positions of their names
+     * in DetectorType, WrapType, SeamType and ExpCompType items
+     */
+    public static final int DETECTOR_ORB = 0;
+    public static final int DETECTOR_AKAZE = 1;
+    public static final int WARPER_SPHERICAL = 0;
+    public static final int WARPER_CYLINDRICAL = 1;
+    public static final int WARPER_PLANE = 2;
+    public static final int WARPER_FISHEYE = 3;
+    public static final int WARPER_STEREOGRAPHIC = 4;
+    public static final int SEAM_NO = 0;
+    public static final int SEAM_VORONOI = 1;
+    public static final int SEAM_GC_COLOR = 2;
+    public static final int SEAM_GC_COLORGRAD = 3;
+    public static final int SEAM_DP_COLOR = 4;
+    public static final int SEAM_DP_COLORGRAD = 5;
+    public static final int EXPOSURE_NO = 0;
+    public static final int EXPOSURE_GAIN = 1;
+    public static final int EXPOSURE_GAIN_BLOCKS = 2;
+    public static final int BLENDER_NO = 0;
+    public static final int BLENDER_FEATHER = 1;
+    public static final int BLENDER_MULTI_BAND = 2;
+    public static final int WAVE_NONE = 0;
+    public static final int WAVE_HORIZONTAL = 1;
+    public static final int WAVE_VERTICAL = 2;
+
+    /**
+     * registration resolutions of the best quality, sidecars made at capture time use them
+     */
+    public static final double DEFAULT_WORK_MEGAPIX = 0.6;
+    public static final double DEFAULT_SEAM_MEGAPIX = 0.1;
+
+    private static final int FLAG_CROP = 1;
+    private static final int FLAG_OPEN_CV_DEFAULT = 2;
+    private static final int FLAG_CHECKPOINTS = 4;
+
+    private int detector = DETECTOR_ORB;
+    private int features = 1500;
+    private int orbGridWidth = 3;
+    private int orbGridHeight = 1;
+    private int warper = WARPER_SPHERICAL;
+    private int seamFinder = SEAM_DP_COLOR;
+    private int blender = BLENDER_MULTI_BAND;
+    private int bands = 0;
+    private int exposureCompensator = EXPOSURE_NO;
+    private int waveCorrect = WAVE_HORIZONTAL;
+    private int threads = 0;
+    private int tileSize = -1;
+    private boolean crop = false;
+    private boolean openCvDefault = false;
+    private boolean checkpoints = false;
+    private double workMegapix = DEFAULT_WORK_MEGAPIX;
+    private double seamMegapix = DEFAULT_SEAM_MEGAPIX;
+    private double composeMegapix = -1;
+    private double blendStrength = 5;
+    private double matchConf = 0.25;
+    private double confThresh = 1;
+
+    /**
+     * settings of given picture mode, the same ones native stitcher used for the mode
+     */
+    public static StitchConfig forPictureMode(PictureMode pictureMode) {
+        StitchConfig config = new StitchConfig();
+        switch (pictureMode) {
+            case MULTITHREADED:
+            case PANORAMA:
+                config.setWarper(WARPER_CYLINDRICAL);
+                break;
+            case PICTURE_360:
+                config.setComposeMegapix(0.7);
+                break;
+            case OPEN_CV_DEFAULT:
+                config.setOpenCvDefault(true);
+                break;
+            default:
+                break;
+        }
+        return config;
+    }
+
+    /**
+     * settings of parts solved in multithreaded mode, features are found with the default finder
+     * the same as features found at capture time, so parts and final stitching reuse them
+     */
+    public static StitchConfig forPart() {
+        return new StitchConfig();
+    }
+
+    /**
+     * sets detector, warper, seam finder and exposure compensator from names used in settings
+     */
+    public void setTypes(String detectorType, String wrapType, String seamType, String expCompType) {
+        detector = DetectorType.getPosition(detectorType);
+        warper = WrapType.getPosition(wrapType);
+        seamFinder = SeamType.getPosition(seamType);
+        exposureCompensator = ExpCompType.getPosition(expCompType);
+    }
+
+    /**
+     * @throws IllegalArgumentException if any setting is out of its range
+     */
+    public void validate() {
+        check(detector >= DETECTOR_ORB && detector <= DETECTOR_AKAZE, "detector", detector);
+        check(features > 0, "features", features);
+        check(orbGridWidth > 0 && orbGridHeight > 0, "orb grid width", orbGridWidth);
+        check(warper >= WARPER_SPHERICAL && warper <= WARPER_STEREOGRAPHIC, "warper", warper);
+        check(seamFinder >= SEAM_NO && seamFinder <= SEAM_DP_COLORGRAD, "seam finder", seamFinder);
+        check(blender >= BLENDER_NO && blender <= BLENDER_MULTI_BAND, "blender", blender);
+        check(bands >= 0, "bands", bands);
+        check(exposureCompensator >= EXPOSURE_NO && exposureCompensator <= EXPOSURE_GAIN_BLOCKS,
+                "exposure compensator", exposureCompensator);
+        check(waveCorrect >= WAVE_NONE && waveCorrect <= WAVE_VERTICAL, "wave correct", waveCorrect);
+        check(threads >= 0, "threads", threads);
+        check(tileSize >= -1, "tile size", tileSize);
+        check(workMegapix > 0 || workMegapix == -1, "work megapix", workMegapix);
+        check(seamMegapix > 0, "seam megapix", seamMegapix);
+        check(composeMegapix > 0 || composeMegapix == -1, "compose megapix", composeMegapix);
+        check(blendStrength >= 0 && blendStrength <= 100, "blend strength", blendStrength);
+        check(matchConf > 0 && matchConf < 1, "match confidence", matchConf);
+        check(confThresh > 0, "confidence threshold", confThresh);
+    }
+
+    private static void check(boolean isValid, String name, Object value) {
+        if (!isValid)
+            throw new IllegalArgumentException("invalid " + name + ": " + value);
+    }
+
+    /**
+     * validates the config and writes it in native byte order
+     */
+    public byte[] toBytes() {
+        validate();
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.nativeOrder());
+        buffer.putInt(VERSION)
+                .putInt(detector)
+                .putInt(features)
+                .putInt(orbGridWidth)
+                .putInt(orbGridHeight)
+                .putInt(warper)
+                .putInt(seamFinder)
+                .putInt(blender)
+                .putInt(bands)
+                .putInt(exposureCompensator)
+                .putInt(waveCorrect)
+                .putInt(threads)
+                .putInt(tileSize)
+                .putInt((crop ? FLAG_CROP : 0) | (openCvDefault ? FLAG_OPEN_CV_DEFAULT : 0)
+                        | (checkpoints ? FLAG_CHECKPOINTS : 0))
+                .putDouble(workMegapix)
+                .putDouble(seamMegapix)
+                .putDouble(composeMegapix)
+                .putDouble(blendStrength)
+                .putDouble(matchConf)
+                .putDouble(confThresh);
+        return buffer.array();
+    }
+
+    public int getDetector() {
+        return detector;
+    }
+
+    public void setDetector(int detector) {
+        this.detector = detector;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public void setFeatures(int features) {
+        this.features = features;
+    }
+
+    public int getOrbGridWidth() {
+        return orbGridWidth;
+    }
+
+    public int getOrbGridHeight() {
+        return orbGridHeight;
+    }
+
+    public void setOrbGrid(int width, int height) {
+        this.orbGridWidth = width;
+        this.orbGridHeight = height;
+    }
+
+    public int getWarper() {
+        return warper;
+    }
+
+    public void setWarper(int warper) {
+        this.warper = warper;
+    }
+
+    public int getSeamFinder() {
+        return seamFinder;
+    }
+
+    public void setSeamFinder(int seamFinder) {
+        this.seamFinder = seamFinder;
+    }
+
+    public int getBlender() {
+        return blender;
+    }
+
+    public void setBlender(int blender) {
+        this.blender = blender;
+    }
+
+    /**
+     * @return bands of the multi band blender, 0 if they are calculated from blend strength
+     */
+    public int getBands() {
+        return bands;
+    }
+
+    public void setBands(int bands) {
+        this.bands = bands;
+    }
+
+    public int getExposureCompensator() {
+        return exposureCompensator;
+    }
+
+    public void setExposureCompensator(int exposureCompensator) {
+        this.exposureCompensator = exposureCompensator;
+    }
+
+    public int getWaveCorrect() {
+        return waveCorrect;
+    }
+
+    public void setWaveCorrect(int waveCorrect) {
+        this.waveCorrect = waveCorrect;
+    }
+
+    /**
+     * @return amount of threads, 0 means the number of cores
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return size of tiles in tiled compositing, 0 for no tiles, -1 if tiles are used only for
+     * big panoramas
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public boolean isCrop() {
+        return crop;
+    }
+
+    public void setCrop(boolean crop) {
+        this.crop = crop;
+    }
+
+    /**
+     * @return true if OpenCV Stitcher class is used instead of the customized stitcher
+     */
+    public boolean isOpenCvDefault() {
+        return openCvDefault;
+    }
+
+    public void setOpenCvDefault(boolean openCvDefault) {
+        this.openCvDefault = openCvDefault;
+    }
+
+    /**
+     * @return true if results of stitching stages are saved, stitching of the same images
+     * continues from the last saved stage
+     */
+    public boolean isCheckpoints() {
+        return checkpoints;
+    }
+
+    public void setCheckpoints(boolean checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    public double getWorkMegapix() {
+        return workMegapix;
+    }
+
+    public void setWorkMegapix(double workMegapix) {
+        this.workMegapix = workMegapix;
+    }
+
+    public double getSeamMegapix() {
+        return seamMegapix;
+    }
+
+    public void setSeamMegapix(double seamMegapix) {
+        this.seamMegapix = seamMegapix;
+    }
+
+    /**
+     * @return resolution of the panorama pictures, -1 for full resolution
+     */
+    public double getComposeMegapix() {
+        return composeMegapix;
+    }
+
+    public void setComposeMegapix(double composeMegapix) {
+        this.composeMegapix = composeMegapix;
+    }
+
+    public double getBlendStrength() {
+        return blendStrength;
+    }
+
+    public void setBlendStrength(double blendStrength) {
+        this.blendStrength = blendStrength;
+    }
+
+    public double getMatchConf() {
+        return matchConf;
+    }
+
+    public void setMatchConf(double matchConf) {
+        this.matchConf = matchConf;
+    }
+
+    public double getConfThresh() {
+        return confThresh;
+    }
+
+    public void setConfThresh(double confThresh) {
+        this.confThresh = confThresh;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "detector:%s features:%d warper:%s seam:%s exposure:%s work:%.2fMP seam:%.2fMP compose:%.1fMP threads:%d tile:%d",
+                DetectorType.get(detector), features, WrapType.get(warper), SeamType.get(seamFinder),
+                ExpCompType.get(exposureCompensator), workMegapix, seamMegapix, composeMegapix, threads, tileSize);
+    }
+}
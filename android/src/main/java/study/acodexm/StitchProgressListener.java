@@ -0,0 +1,17 @@
+package study.acodexm;
+
+
+/**
+ * receives progress of native stitching. It is called on the thread running the stitching, on
+ * every stage change and not more often than every 100 ms inside a stage
+ */
+public interface StitchProgressListener {
+    /**
+     * @param stage         name of the current stage
+     * @param index         images, pairs or tiles of the stage done so far
+     * @param total         images, pairs or tiles of the stage
+     * @param progress      progress of the whole stitching in percent
+     * @param elapsedMillis time since the stitching started
+     */
+    void onProgress(String stage, int index, int total, int progress, long elapsedMillis);
+}
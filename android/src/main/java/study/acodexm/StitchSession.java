@@ -0,0 +1,209 @@
+package study.acodexm;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * java side of native stitch session. Progress and cancel can be called from any thread,
+ * session is destroyed only after running stitch is finished
+ */
+public class StitchSession {
+    /**
+     * status returned by {@link #run} when the session was cancelled
+     */
+    public static final int CANCELLED = -2;
+    private long mSession;
+    private StitchProgressListener mListener;
+    private boolean isRunning = false;
+    private boolean isDestroyed = false;
+    private boolean isCropped = false;
+
+    public StitchSession() {
+        mSession = NativePanorama.createSession();
+    }
+
+    /**
+     * runs stitching on calling thread
+     *
+     * @return 0 if stitching succeeded, {@link #CANCELLED} if it was cancelled
+     * @throws IllegalArgumentException if config is not valid
+     */
+    public int run(long[] imageAddressArray, long outputAddress, StitchConfig config, int[] cellIds, int gridLat, float[] orientations) {
+        byte[] configBytes = config.toBytes();
+        if (!begin()) return -1;
+        try {
+            return NativePanorama.runSession(mSession, imageAddressArray, outputAddress, configBytes, cellIds, gridLat, orientations, mListener);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * registers images on calling thread and blends a low resolution preview, registration is
+     * kept in the session for {@link #compose(long)}
+     *
+     * @return 0 if registration succeeded, {@link #CANCELLED} if it was cancelled
+     */
+    public int preview(long[] imageAddressArray, long previewAddress, StitchConfig config, int[] cellIds, int gridLat, float[] orientations) {
+        byte[] configBytes = config.toBytes();
+        if (!begin()) return -1;
+        try {
+            isCropped = config.isCrop();
+            return NativePanorama.previewSession(mSession, imageAddressArray, previewAddress, configBytes, cellIds, gridLat, orientations, mListener);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * composes full resolution panorama on calling thread reusing cameras, seams and exposure
+     * gains found by {@link #preview}
+     *
+     * @return 0 if compositing succeeded, {@link #CANCELLED} if it was cancelled
+     */
+    public int compose(long outputAddress) {
+        if (!begin()) return -1;
+        try {
+            return NativePanorama.composeSession(mSession, outputAddress, isCropped, mListener);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * finds cameras of the images on calling thread without composing them, solution is kept for
+     * {@link #takeSolution()}
+     *
+     * @return 0 if cameras were found, {@link #CANCELLED} if it was cancelled
+     */
+    public int solve(long[] imageAddressArray, StitchConfig config, int[] cellIds, int gridLat, float[] orientations) {
+        byte[] configBytes = config.toBytes();
+        if (!begin()) return -1;
+        try {
+            return NativePanorama.solveSession(mSession, imageAddressArray, configBytes, cellIds, gridLat, orientations, mListener);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * joins solutions of neighbouring parts on calling thread, solution is kept for
+     * {@link #takeSolution()}
+     *
+     * @param config config the solutions were found with
+     * @return 0 if solutions were joined, {@link #CANCELLED} if it was cancelled
+     */
+    public int merge(ByteBuffer[] solutions, StitchConfig config, int gridLat) {
+        byte[] configBytes = config.toBytes();
+        if (!begin()) return -1;
+        try {
+            return NativePanorama.mergeSession(mSession, solutions, configBytes, gridLat);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * @return solution found by {@link #solve} or {@link #merge}, null if there is none
+     */
+    public synchronized byte[] takeSolution() {
+        if (isDestroyed) return null;
+        return NativePanorama.takeSessionSolution(mSession);
+    }
+
+    private synchronized boolean begin() {
+        if (isDestroyed) return false;
+        isRunning = true;
+        return true;
+    }
+
+    private synchronized void end() {
+        isRunning = false;
+        if (isDestroyed) release();
+    }
+
+    /**
+     * sets work and seam scale versions of the images made at capture time, they have to be set
+     * before {@link #run} or {@link #preview}. Lists are in the same order as images, empty
+     * lists if there are no sidecars
+     */
+    public synchronized void setSidecars(List<Mat> work, List<Mat> seam) {
+        if (isDestroyed || work.isEmpty()) return;
+        NativePanorama.setSessionSidecars(mSession, toAddresses(work), toAddresses(seam));
+    }
+
+    /**
+     * sets features found at capture time, they have to be set before {@link #run} or
+     * {@link #preview}. Features are in the same order as images, null if there are none
+     */
+    public synchronized void setFeatures(ByteBuffer[] features) {
+        if (isDestroyed || features.length == 0) return;
+        NativePanorama.setSessionFeatures(mSession, features);
+    }
+
+    /**
+     * sets directory of checkpoints and keys of the images they are keyed on, they have to be set
+     * before {@link #run} or {@link #preview}. Checkpoints of the config are used only when every
+     * image has a key
+     *
+     * @param inputKeys keys made by {@link study.acodexm.utils.ImagePicker#loadInputKeys}
+     */
+    public synchronized void setCheckpoints(File dir, long[] inputKeys) {
+        if (isDestroyed) return;
+        NativePanorama.setSessionCheckpoints(mSession, dir.getAbsolutePath(), inputKeys);
+    }
+
+    /**
+     * sets solutions of parts of the images, they have to be set before {@link #run} or
+     * {@link #preview}. Cameras are adjusted from them instead of being estimated
+     */
+    public synchronized void setSolutions(ByteBuffer[] solutions) {
+        if (isDestroyed || solutions.length == 0) return;
+        NativePanorama.setSessionSolutions(mSession, solutions);
+    }
+
+    private static long[] toAddresses(List<Mat> mats) {
+        return mats.stream().mapToLong(Mat::getNativeObjAddr).toArray();
+    }
+
+    /**
+     * listener is called on the thread running {@link #run}, it has to be set before the run
+     */
+    public void setProgressListener(StitchProgressListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized int getProgress() {
+        if (isDestroyed) return 100;
+        return NativePanorama.getSessionProgress(mSession);
+    }
+
+    public synchronized void cancel() {
+        if (!isDestroyed)
+            NativePanorama.cancelSession(mSession);
+    }
+
+    /**
+     * destroys native session, if stitching is still running session is destroyed when it ends
+     */
+    public synchronized void destroy() {
+        if (isDestroyed) return;
+        isDestroyed = true;
+        if (isRunning) NativePanorama.cancelSession(mSession);
+        else release();
+    }
+
+    public synchronized boolean isDestroyed() {
+        return isDestroyed;
+    }
+
+    private void release() {
+        if (mSession != 0) {
+            NativePanorama.destroySession(mSession);
+            mSession = 0;
+        }
+    }
+}
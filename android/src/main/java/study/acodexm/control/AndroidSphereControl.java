@@ -1,29 +1,48 @@
 package study.acodexm.control;
 
+import android.os.SystemClock;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Pixmap;
+
 import study.acodexm.SphereControl;
+import study.acodexm.utils.CaptureGate;
 
 public class AndroidSphereControl implements SphereControl {
-    private byte[] mPicture;
+    private volatile Pixmap mPicture;
     private CameraControl mCameraControl;
 
     public AndroidSphereControl(CameraControl cameraControl) {
         mCameraControl = cameraControl;
     }
 
+    /**
+     * shutter is pressed only when the device is steady, the preview is sharp and the last
+     * picture was not taken a moment ago
+     */
     @Override
     public void autoTakePicture() {
-        mCameraControl.takePicture();
+        CaptureGate gate = mCameraControl.getCaptureGate();
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (gate.isOpen(now) && mCameraControl.takePicture())
+            gate.onShutter(now);
     }
 
 
     @Override
-    public byte[] getPicture() {
+    public Pixmap getPicture() {
         return mPicture;
     }
 
+    /**
+     * previous picture is disposed on the GL thread, it can be uploaded to a texture right now
+     */
     @Override
-    public void setPicture(byte[] picture) {
+    public void setPicture(Pixmap picture) {
+        Pixmap previous = mPicture;
         this.mPicture = picture;
+        if (previous != null)
+            Gdx.app.postRunnable(previous::dispose);
     }
 
 }
@@ -1,20 +1,58 @@
 package study.acodexm.control;
 
 
-import study.acodexm.CameraSurface;
+import android.view.SurfaceView;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
 import study.acodexm.SphereControl;
+import study.acodexm.utils.CaptureGate;
 
 public interface CameraControl {
 
-    void takePicture();
+    /**
+     * @return false if the camera is busy or the writer is full and no picture is taken
+     */
+    boolean takePicture();
 
     void startPreview();
 
     void stopPreview();
 
-    CameraSurface getSurface();
+    SurfaceView getSurface();
 
     SphereControl getSphereControl();
 
+    /**
+     * gate auto capture has to pass, it is fed with device motion and preview sharpness
+     */
+    CaptureGate getCaptureGate();
+
+    /**
+     * @param listener called on the capture writer thread with the cell id of every picture
+     *                 which is written
+     */
+    void setPictureListener(IntConsumer listener);
+
+    /**
+     * waits until taken pictures are written to the storage, has to be called before they are loaded
+     */
+    void awaitPicturesSaved() throws InterruptedException;
+
+    /**
+     * copies the low resolution panorama blended while the pictures were taken, pictures have
+     * to be saved first
+     *
+     * @return false if it does not have exactly the given pictures
+     */
+    boolean getLivePanorama(List<Integer> ids, Mat result);
+
+    /**
+     * stops the capture writer after pending pictures are written
+     */
+    void release();
 
 }
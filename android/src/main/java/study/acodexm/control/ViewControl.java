@@ -14,4 +14,14 @@ public interface ViewControl {
 
     void rotateSphere(float[] matrix);
 
+    /**
+     * @return current device orientation as quaternion {x, y, z, w}
+     */
+    float[] getOrientationQuaternion();
+
+    /**
+     * @param velocity angular velocity of the device in rad/s, reported for every gyroscope event
+     */
+    void onRotationVelocity(double velocity);
+
 }
@@ -185,6 +185,7 @@ public class ImprovedOrientationSensor2Provider extends OrientationProvider {
 
                     // Calculate the angular speed of the sample
                     gyroscopeRotationVelocity = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+                    mViewControl.onRotationVelocity(gyroscopeRotationVelocity);
 
                     // Normalize the rotation vector if it's big enough to get the axis
                     if (gyroscopeRotationVelocity > EPSILON) {
@@ -266,6 +267,11 @@ public class ImprovedOrientationSensor2Provider extends OrientationProvider {
         } else {
             if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
                 SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
+                SensorManager.getQuaternionFromVector(temporaryQuaternion, event.values);
+                synchronized (synchronizationToken) {
+                    // keep the same inverted w convention as the fused quaternion
+                    currentOrientationQuaternion.setXYZW(temporaryQuaternion[1], temporaryQuaternion[2], temporaryQuaternion[3], -temporaryQuaternion[0]);
+                }
                 mViewControl.rotateSphere(rotationMatrix);
             }
         }
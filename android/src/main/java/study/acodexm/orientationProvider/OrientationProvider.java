@@ -98,4 +98,15 @@ public abstract class OrientationProvider implements SensorEventListener {
             matrix.set(currentOrientationRotationMatrix);
         }
     }
+
+    /**
+     * Get the current rotation of the device in the quaternion format (vector4f)
+     * <p>
+     * Note that the w component is stored inverted, same as it is used during the sensor fusion
+     */
+    public void getQuaternion(Quaternion quaternion) {
+        synchronized (synchronizationToken) {
+            quaternion.set(currentOrientationQuaternion);
+        }
+    }
 }
@@ -3,8 +3,13 @@ package study.acodexm.settings;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Environment;
+import android.text.TextUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import study.acodexm.utils.PartScheduler;
 
 
 public class UserPreferences {
@@ -18,6 +23,15 @@ public class UserPreferences {
     private static final String PREF_GRID_LAT = "grid_lat";
     private static final String PREF_GRID_LON = "grid_lon";
     private static final String PREF_SAVE_DIR = "save_dir";
+    private static final String PREF_MEMORY_BUDGET = "memory_budget";
+    private static final String PREF_TIME_BUDGET = "time_budget";
+    private static final String PREF_PART_SIZE = "part_size";
+    private static final String PREF_PART_LATENCY = "part_latency";
+    private static final String PREF_PENDING_MODE = "pending_mode";
+    private static final String PREF_PENDING_TEST = "pending_test";
+    private static final String PREF_PENDING_IDS = "pending_ids";
+    private static final String PREF_PENDING_ATTEMPTS = "pending_attempts";
+    private static final String PREF_PENDING_FILE = "pending_file";
     private static final String APP_PREF = "panorama_application";
     private final SharedPreferences mPreferences;
 
@@ -110,4 +124,126 @@ public class UserPreferences {
         mPreferences.edit().putInt(PREF_GRID_LON, lon).apply();
     }
 
+    /**
+     * @return part of the available memory which stitching can use
+     */
+    public float getMemoryBudget() {
+        return mPreferences.getFloat(PREF_MEMORY_BUDGET, 0.5f);
+    }
+
+    public void setMemoryBudget(float memoryBudget) {
+        mPreferences.edit().putFloat(PREF_MEMORY_BUDGET, memoryBudget).apply();
+    }
+
+    /**
+     * @return time in seconds stitching should not exceed
+     */
+    public int getTimeBudget() {
+        return mPreferences.getInt(PREF_TIME_BUDGET, 120);
+    }
+
+    public void setTimeBudget(int timeBudget) {
+        mPreferences.edit().putInt(PREF_TIME_BUDGET, timeBudget).apply();
+    }
+
+    /**
+     * @return true if final stitching was started and did not finish, it is resumed from its
+     * checkpoints when activity is created again
+     */
+    /**
+     * @return amount of pictures stitched together in multithreaded mode
+     */
+    public int getPartSize() {
+        return mPreferences.getInt(PREF_PART_SIZE, PartScheduler.DEFAULT_PART_SIZE);
+    }
+
+    public void setPartSize(int partSize) {
+        mPreferences.edit().putInt(PREF_PART_SIZE, partSize).apply();
+    }
+
+    /**
+     * @return time in ms a capture waits for other pictures of its part in multithreaded mode
+     */
+    public long getPartLatency() {
+        return mPreferences.getLong(PREF_PART_LATENCY, PartScheduler.DEFAULT_MAX_LATENCY);
+    }
+
+    public void setPartLatency(long partLatency) {
+        mPreferences.edit().putLong(PREF_PART_LATENCY, partLatency).apply();
+    }
+
+    public boolean hasPendingStitch() {
+        return mPreferences.getInt(PREF_PENDING_MODE, -1) >= 0;
+    }
+
+    public int getPendingMode() {
+        return mPreferences.getInt(PREF_PENDING_MODE, -1);
+    }
+
+    public boolean isPendingTest() {
+        return mPreferences.getBoolean(PREF_PENDING_TEST, false);
+    }
+
+    public ArrayList<Integer> getPendingIds() {
+        ArrayList<Integer> ids = new ArrayList<>();
+        String value = mPreferences.getString(PREF_PENDING_IDS, "");
+        for (String id : value.split(","))
+            if (!id.isEmpty()) ids.add(Integer.parseInt(id));
+        return ids;
+    }
+
+    /**
+     * @return file the preview of pending stitching is saved to and the result replaces, null
+     * if there is none
+     */
+    public String getPendingFileName() {
+        return mPreferences.getString(PREF_PENDING_FILE, null);
+    }
+
+    /**
+     * @return how many times pending stitching was resumed and did not finish
+     */
+    public int getPendingAttempts() {
+        return mPreferences.getInt(PREF_PENDING_ATTEMPTS, 0);
+    }
+
+    /**
+     * counts resumed stitching before it starts, saved synchronously so a resume killed by the
+     * system or a native crash is counted
+     */
+    public void addPendingAttempt() {
+        mPreferences.edit().putInt(PREF_PENDING_ATTEMPTS, getPendingAttempts() + 1).commit();
+    }
+
+    /**
+     * stitching which was interrupted on purpose is not a failed attempt
+     */
+    public void clearPendingAttempts() {
+        mPreferences.edit().remove(PREF_PENDING_ATTEMPTS).commit();
+    }
+
+    /**
+     * saved synchronously, process can be killed while stitching. Attempts of resumed stitching
+     * are kept
+     *
+     * @param fileName file of the preview and the result, resumed stitching saves to it again
+     */
+    public void setPendingStitch(int pictureMode, boolean isTest, List<Integer> ids, String fileName) {
+        mPreferences.edit()
+                .putInt(PREF_PENDING_MODE, pictureMode)
+                .putBoolean(PREF_PENDING_TEST, isTest)
+                .putString(PREF_PENDING_IDS, TextUtils.join(",", ids))
+                .putString(PREF_PENDING_FILE, fileName)
+                .commit();
+    }
+
+    public void clearPendingStitch() {
+        mPreferences.edit()
+                .remove(PREF_PENDING_MODE)
+                .remove(PREF_PENDING_TEST)
+                .remove(PREF_PENDING_IDS)
+                .remove(PREF_PENDING_ATTEMPTS)
+                .remove(PREF_PENDING_FILE)
+                .commit();
+    }
 }
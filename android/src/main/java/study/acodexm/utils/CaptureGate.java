@@ -0,0 +1,148 @@
+package study.acodexm.utils;
+
+/**
+ * decides when auto capture may press the shutter. Device has to rotate slower than the max
+ * velocity for the whole dwell window, the last preview frame sampled during that window has
+ * to be sharp enough and shutter can't be pressed more often than the min interval.
+ * Without a gyroscope velocity is never reported and without preview sampling sharpness is not
+ * checked. All timestamps are elapsed realtime nanos
+ */
+public class CaptureGate {
+    /**
+     * gyroscope velocity in rad/s, at 1/30 s exposure picture of 60 degrees field of view and
+     * 1000 px width moves by about 6 px
+     */
+    public static final double DEFAULT_MAX_VELOCITY = 0.2;
+    public static final long DEFAULT_DWELL = 150_000_000L;
+    /**
+     * variance of the Laplacian of a downscaled luma, frames below it are blurred or so flat
+     * that they would not have enough features to be stitched anyway
+     */
+    public static final double DEFAULT_MIN_SHARPNESS = 20;
+    public static final long DEFAULT_MIN_INTERVAL = 500_000_000L;
+    /**
+     * preview frames are sampled not more often than that
+     */
+    public static final long SAMPLE_INTERVAL = 100_000_000L;
+    /**
+     * width preview frames are downscaled to before sharpness is measured
+     */
+    private static final int SAMPLE_WIDTH = 320;
+
+    public enum State {
+        /** device rotates too fast **/
+        MOVING,
+        /** device is steady for shorter time than the dwell window **/
+        SETTLING,
+        /** no sharp frame was sampled since the device is steady **/
+        BLURRED,
+        /** shutter was pressed less than the min interval ago **/
+        COOLDOWN,
+        OPEN
+    }
+
+    private final double mMaxVelocity;
+    private final long mDwell;
+    private final double mMinSharpness;
+    private final long mMinInterval;
+    private long mSteadySince = 0;
+    private boolean isMoving = false;
+    private boolean hasSharpness = false;
+    private double mSharpness;
+    private long mSharpnessTimestamp;
+    private boolean hasShutter = false;
+    private long mShutterTimestamp;
+
+    public CaptureGate() {
+        this(DEFAULT_MAX_VELOCITY, DEFAULT_DWELL, DEFAULT_MIN_SHARPNESS, DEFAULT_MIN_INTERVAL);
+    }
+
+    public CaptureGate(double maxVelocity, long dwell, double minSharpness, long minInterval) {
+        mMaxVelocity = maxVelocity;
+        mDwell = dwell;
+        mMinSharpness = minSharpness;
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * @param velocity angular velocity of the device in rad/s
+     */
+    public synchronized void onRotationVelocity(double velocity, long timestamp) {
+        if (velocity > mMaxVelocity) {
+            isMoving = true;
+        } else if (isMoving) {
+            isMoving = false;
+            mSteadySince = timestamp;
+        }
+    }
+
+    /**
+     * @return true if a preview frame should be sampled now
+     */
+    public synchronized boolean isSampleDue(long timestamp) {
+        return !hasSharpness || timestamp - mSharpnessTimestamp >= SAMPLE_INTERVAL;
+    }
+
+    public synchronized void onSharpness(double sharpness, long timestamp) {
+        hasSharpness = true;
+        mSharpness = sharpness;
+        mSharpnessTimestamp = timestamp;
+    }
+
+    public synchronized State getState(long now) {
+        if (isMoving)
+            return State.MOVING;
+        if (now - mSteadySince < mDwell)
+            return State.SETTLING;
+        if (hasSharpness && (mSharpnessTimestamp < mSteadySince || mSharpness < mMinSharpness))
+            return State.BLURRED;
+        if (hasShutter && now - mShutterTimestamp < mMinInterval)
+            return State.COOLDOWN;
+        return State.OPEN;
+    }
+
+    public boolean isOpen(long now) {
+        return getState(now) == State.OPEN;
+    }
+
+    /**
+     * starts the min interval, called when the picture is really being taken
+     */
+    public synchronized void onShutter(long now) {
+        hasShutter = true;
+        mShutterTimestamp = now;
+    }
+
+    /**
+     * sharpness of the frame downscaled to about {@link #SAMPLE_WIDTH} pixels width
+     */
+    public static double sharpness(byte[] luma, int width, int height) {
+        return sharpness(luma, width, height, Math.max(1, width / SAMPLE_WIDTH));
+    }
+
+    /**
+     * variance of the Laplacian of luma plane sampled every step pixels, the same as Laplacian
+     * of the image downscaled step times
+     *
+     * @param luma first width * height bytes are luma, like in NV21 or I420 frames
+     */
+    public static double sharpness(byte[] luma, int width, int height, int step) {
+        double sum = 0;
+        double sumSquares = 0;
+        int samples = 0;
+        for (int y = step; y < height - step; y += step) {
+            int row = y * width;
+            for (int x = step; x < width - step; x += step) {
+                int laplacian = 4 * (luma[row + x] & 0xFF)
+                        - (luma[row + x - step] & 0xFF) - (luma[row + x + step] & 0xFF)
+                        - (luma[row - step * width + x] & 0xFF) - (luma[row + step * width + x] & 0xFF);
+                sum += laplacian;
+                sumSquares += (double) laplacian * laplacian;
+                samples++;
+            }
+        }
+        if (samples == 0) return 0;
+        double mean = sum / samples;
+        return sumSquares / samples - mean * mean;
+    }
+}
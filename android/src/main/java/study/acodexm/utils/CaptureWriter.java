@@ -0,0 +1,164 @@
+package study.acodexm.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * saves taken pictures on its own thread so writing to the storage never blocks the UI thread.
+ * Queue of pictures is bounded, capture should wait while the writer is full. Pictures are
+ * appended to the session pack which is synced in batches, when enough of them are written or
+ * when the queue is empty
+ */
+public class CaptureWriter {
+    private static final String TAG = CaptureWriter.class.getSimpleName();
+
+    private static final Runnable STOP = () -> {
+    };
+
+    private final BlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<>();
+    private final int mCapacity;
+    private final int mSyncBatch;
+    private int mUnsynced = 0;
+    private final SidecarGenerator mSidecars;
+    private volatile IntConsumer mListener;
+    private int mPending = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param capacity  amount of pictures which can wait to be written
+     * @param syncBatch amount of written pictures which are synced together
+     * @param sidecars  makes scaled versions of written pictures, can be null
+     */
+    public CaptureWriter(int capacity, int syncBatch, SidecarGenerator sidecars) {
+        mSidecars = sidecars;
+        mCapacity = Math.max(1, capacity);
+        mSyncBatch = Math.max(1, syncBatch);
+        Thread thread = new Thread(this::run, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param listener called on the writer thread with the cell id of every written picture
+     */
+    public void setListener(IntConsumer listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return true if next picture would not fit in the queue, capture should wait
+     */
+    public synchronized boolean isFull() {
+        return mPending >= mCapacity;
+    }
+
+    /**
+     * queues the picture and its orientation, orientation can be null
+     *
+     * @return false if the queue is full or the writer is closed and picture is not saved
+     */
+    public synchronized boolean write(byte[] bytes, int id, float[] orientation, long timestamp) {
+        return queue(id, generation -> ImageRW.writePicture(bytes, id, orientation, timestamp, generation));
+    }
+
+    /**
+     * queues raw camera frame, the buffer must not be changed until it is written
+     *
+     * @param i420     I420 pixels of the frame
+     * @param rotation clockwise rotation of the picture in degrees
+     * @return false if the queue is full or the writer is closed and picture is not saved
+     */
+    public synchronized boolean writeRaw(ByteBuffer i420, int width, int height, int rotation, int id, float[] orientation, long timestamp) {
+        return queue(id, generation -> ImageRW.writeRawPicture(i420, width, height, rotation, id, orientation,
+                timestamp, generation));
+    }
+
+    private boolean queue(int id, PictureWriter writer) {
+        if (isClosed || isFull()) {
+            LOG.s(TAG, "writer is full or closed, picture " + id + " is not saved");
+            return false;
+        }
+        mPending++;
+        // picture belongs to the session of the pack it was taken in
+        final int generation = ImageRW.getSessionPackGeneration();
+        mQueue.add(() -> {
+            try {
+                writer.write(generation);
+                mUnsynced++;
+                IntConsumer listener = mListener;
+                if (listener != null)
+                    listener.accept(id);
+                if (mSidecars != null)
+                    mSidecars.generate(id, generation);
+            } catch (IOException e) {
+                LOG.s(TAG, "File saving failed", e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * waits until all queued pictures are written and synced and their sidecars are made, so
+     * they can be read
+     */
+    public void awaitWritten() throws InterruptedException {
+        synchronized (this) {
+            while (mPending > 0)
+                wait();
+        }
+        if (mSidecars != null)
+            mSidecars.awaitGenerated();
+    }
+
+    /**
+     * writes queued pictures and stops the thread
+     */
+    public synchronized void close() {
+        if (isClosed) return;
+        isClosed = true;
+        mQueue.add(STOP);
+    }
+
+    private void run() {
+        while (true) {
+            Runnable task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            // pictures queued before closing are already written
+            if (task == STOP) break;
+            task.run();
+            if (mUnsynced >= mSyncBatch || mQueue.isEmpty())
+                sync();
+            synchronized (this) {
+                mPending--;
+                notifyAll();
+            }
+        }
+        sync();
+        if (mSidecars != null)
+            mSidecars.close();
+        LOG.s(TAG, "capture writer closed");
+    }
+
+    private interface PictureWriter {
+        void write(int generation) throws IOException;
+    }
+
+    private void sync() {
+        if (mUnsynced == 0) return;
+        long time = System.currentTimeMillis();
+        try {
+            ImageRW.syncSessionPack();
+            LOG.s(TAG, "synced " + mUnsynced + " pictures, time: " + (System.currentTimeMillis() - time));
+        } catch (IOException e) {
+            LOG.s(TAG, "File sync failed", e);
+        }
+        mUnsynced = 0;
+    }
+}
@@ -6,6 +6,8 @@ import android.graphics.Matrix;
 import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -35,18 +37,81 @@ public class ImagePicker {
         return result;
     }
 
-    public static List<Mat> loadPictureParts(ArrayList<Integer> ids) {
+    /**
+     * maps pack of the current session once, pictures and everything made from them are loaded
+     * from it
+     */
+    public static SessionPack.Reader openPack() throws IOException {
+        return ImageRW.openSessionPack();
+    }
+
+    public static List<Mat> loadPictureParts(SessionPack.Reader pack, List<Integer> ids) {
         return ids.stream()
-                .map(id -> bitmapToMat(ImageRW.loadImageExternal(id)))
+                .map(id -> ImageRW.loadPicture(pack, id))
                 .collect(Collectors.toList());
     }
 
-    private static List<Mat> loadAllPictureParts(PicturePosition position) {
-        List<Mat> parts = ImageRW.loadImagePartsExternal().stream()
-                .map(ImagePicker::bitmapToMat)
+    /**
+     * loads work or seam scale versions of the pictures made at capture time
+     *
+     * @param kind {@link SidecarGenerator#WORK} or {@link SidecarGenerator#SEAM}
+     * @return Mats in the same order as ids, empty Mat for pictures without sidecar
+     */
+    public static List<Mat> loadSidecars(SessionPack.Reader pack, List<Integer> ids, int kind) {
+        return ids.stream()
+                .map(id -> ImageRW.loadSidecar(pack, id, kind))
                 .collect(Collectors.toList());
-        parts.addAll(loadPictureParts((ArrayList<Integer>) loadPanoParts(position)));
-        return parts;
+    }
+
+    /**
+     * @return features of the pictures found at capture time in the same order as ids, null for
+     * pictures without features. Buffers are slices of the mapped pack
+     */
+    public static ByteBuffer[] loadFeatures(SessionPack.Reader pack, List<Integer> ids) {
+        return ids.stream().map(id -> ImageRW.loadFeatures(pack, id)).toArray(ByteBuffer[]::new);
+    }
+
+    /**
+     * loads orientation sidecars of given pictures
+     *
+     * @param ids
+     * @return quaternions {x, y, z, w} of all pictures one after another, or empty array if any
+     * picture has no orientation saved
+     */
+    public static float[] loadOrientations(SessionPack.Reader pack, List<Integer> ids) {
+        float[] orientations = new float[ids.size() * 4];
+        for (int i = 0; i < ids.size(); i++) {
+            float[] quaternion = ImageRW.loadOrientation(pack, ids.get(i));
+            if (quaternion == null) return new float[0];
+            System.arraycopy(quaternion, 0, orientations, i * 4, 4);
+        }
+        return orientations;
+    }
+
+    /**
+     * @return id, offset, length and timestamp of the record of every picture one after
+     * another, they identify the pictures without reading their pixels. Empty array if any
+     * picture is not in the pack
+     */
+    public static long[] loadInputKeys(SessionPack.Reader pack, List<Integer> ids) {
+        long[] keys = new long[ids.size() * 4];
+        for (int i = 0; i < ids.size(); i++) {
+            SessionPack.Entry entry = pack.get(SessionPack.KIND_PICTURE, ids.get(i));
+            if (entry == null) return new long[0];
+            keys[i * 4] = entry.id;
+            keys[i * 4 + 1] = entry.getOffset();
+            keys[i * 4 + 2] = entry.getLength();
+            keys[i * 4 + 3] = entry.timestamp;
+        }
+        return keys;
+    }
+
+    /**
+     * @return solutions of saved parts in the same order as parts, null for parts without one.
+     * Buffers are slices of the mapped pack
+     */
+    public static ByteBuffer[] loadSolutions(SessionPack.Reader pack, List<Integer> parts) {
+        return parts.stream().map(part -> ImageRW.loadSolution(pack, part)).toArray(ByteBuffer[]::new);
     }
 
     private static List<Mat> loadTestPictures() {
@@ -55,49 +120,55 @@ public class ImagePicker {
                 .collect(Collectors.toList());
     }
 
-    private static List<Mat> loadAllPictures(PicturePosition instance) {
-        return instance.getTakenPictures().stream()
-                .map(id -> bitmapToMat(ImageRW.loadImageExternal(id)))
-                .collect(Collectors.toList());
-    }
-
-    private static List<Mat> loadWidePictures(PicturePosition instance) {
+    private static List<Integer> loadWidePictureIds(PicturePosition instance) {
         Set<Integer> optimalIDS = maxArea(instance);
         if (optimalIDS != null && optimalIDS.size() > 0)
-            return optimalIDS.stream()
-                    .map(id -> bitmapToMat(ImageRW.loadImageExternal(id)))
-                    .collect(Collectors.toList());
+            return new ArrayList<>(optimalIDS);
         else
             LOG.e(TAG, "WIDE_PICTURE loadPictures failed: ", new Throwable("empty list or null"));
         return new ArrayList<>();
     }
 
-    private static List<Mat> loadPanoramaPictures(PicturePosition instance) {
+    private static List<Integer> loadPanoramaPictureIds(PicturePosition instance) {
         Set<Integer> longestIDS = maxLength(instance);
         if (longestIDS != null && longestIDS.size() > 0)
-            return longestIDS.stream()
-                    .map(id -> bitmapToMat(ImageRW.loadImageExternal(id)))
-                    .collect(Collectors.toList());
+            return new ArrayList<>(longestIDS);
         else
             LOG.e(TAG, "panorama loadPictures failed: ", new Throwable("empty list or null"));
         return new ArrayList<>();
 
     }
 
-    public static List<Mat> loadPictures(PictureMode pictureMode, PicturePosition instance, boolean isInTestMode) {
-        if (isInTestMode) return loadTestPictures();
+    /**
+     * picks grid cell ids of pictures that should be stitched in given picture mode.
+     * Test pictures are not bound to single grid cells so list is empty
+     *
+     * @param pictureMode
+     * @param instance
+     * @param isInTestMode
+     * @return ids in the order that pictures will be loaded
+     */
+    public static List<Integer> loadPictureIds(PictureMode pictureMode, PicturePosition instance, boolean isInTestMode) {
+        if (isInTestMode) return new ArrayList<>();
         switch (pictureMode) {
-            case MULTITHREADED:
-                return loadAllPictureParts(instance);
             case PANORAMA:
-                return loadPanoramaPictures(instance);
+                return loadPanoramaPictureIds(instance);
             case WIDE_PICTURE:
-                return loadWidePictures(instance);
+                return loadWidePictureIds(instance);
             default:
-                return loadAllPictures(instance);
+                return instance.getTakenPictures();
         }
     }
 
+    /**
+     * pictures of multithreaded mode are stitched once from the original pictures, parts only
+     * give their cameras
+     */
+    public static List<Mat> loadPictures(SessionPack.Reader pack, List<Integer> ids, boolean isInTestMode) {
+        if (isInTestMode) return loadTestPictures();
+        return loadPictureParts(pack, ids);
+    }
+
     /**
      * converts bitmap object to openCV Mat object
      *
@@ -10,52 +10,211 @@ import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
+import study.acodexm.NativePanorama;
+
 public class ImageRW {
     private static final String TAG = ImageRW.class.getSimpleName();
     private static final String MAIN_DIR = "/PanoramaApp";
     private static final String TEMP_DIR = "/PanoramaApp/temp";
-    private static final String PART_DIR = "/PanoramaApp/part";
     private static final String LOGS_DIR = "/PanoramaApp/logs";
     private static final String TEST_DIR = "/PanoramaApp/test";
     private static final String HIST_DIR = "/PanoramaApp/archived";
     private static final String MAIN_PREFIX = "/panorama_";
-    private static final String PART_PREFIX = "/part_panorama_";
     private static final String PNG = ".png";
+    private static final String SESSION_PACK = "/session.pack";
     private static final String PATTERN = "yyyyMMddHHmmss";
 
     /**
-     * method saves taken individual pictures on external storage
+     * pack with pictures of the current session, opened when the first picture is written
+     */
+    private static SessionPack sSessionPack;
+    /**
+     * changes every time the pack is closed, so readers of the old pack are not updated
+     */
+    private static int sSessionPackGeneration = 0;
+
+    /**
+     * @param generation generation of the pack when the writing job or capture started
+     * @return pack of the current session opened for appending
+     * @throws IOException if the pack was closed since then, records of an archived or deleted
+     *                     session must not go to the next one
+     */
+    static synchronized SessionPack getSessionPack(int generation) throws IOException {
+        if (generation != sSessionPackGeneration)
+            throw new IOException("session pack " + generation + " is closed, record is dropped");
+        if (sSessionPack == null) {
+            if (!isPathCreated(TEMP_DIR))
+                throw new IOException("cannot create " + TEMP_DIR);
+            sSessionPack = new SessionPack(getSessionPackFile());
+        }
+        return sSessionPack;
+    }
+
+    /**
+     * closes the pack so its file can be archived or deleted, next write opens it again
+     */
+    static synchronized void closeSessionPack() {
+        if (sSessionPack != null) {
+            sSessionPack.close();
+            sSessionPack = null;
+        }
+        sSessionPackGeneration++;
+    }
+
+    /**
+     * makes appended records of the open pack durable, closed pack is not opened again
+     */
+    static synchronized void syncSessionPack() throws IOException {
+        if (sSessionPack != null)
+            sSessionPack.sync();
+    }
+
+    /**
+     * @return generation of the pack, it changes when the pack is archived or deleted. Writers
+     * take it when they start and pass it with every record
+     */
+    public static synchronized int getSessionPackGeneration() {
+        return sSessionPackGeneration;
+    }
+
+    private static File getSessionPackFile() {
+        return new File(Environment.getExternalStorageDirectory().getAbsolutePath() + TEMP_DIR + SESSION_PACK);
+    }
+
+    /**
+     * maps pack of the current session to memory, pictures appended later are not visible
+     */
+    static SessionPack.Reader openSessionPack() throws IOException {
+        return SessionPack.open(getSessionPackFile());
+    }
+
+    /**
+     * appends taken JPEG picture with the device orientation sampled at shutter time, record
+     * is not synced
      *
-     * @param bytes
-     * @param currentPictureId
+     * @param orientation quaternion {x, y, z, w} or null if it is unknown
      */
-    public static void saveImageExternal(byte[] bytes, int currentPictureId) {
-        File folder = new File(Environment.getExternalStorageDirectory() + TEMP_DIR);
-        final String fileName = Environment.getExternalStorageDirectory().getAbsolutePath() + TEMP_DIR + "/" + currentPictureId + PNG;
-        boolean success = true;
-        isPathCreated(TEMP_DIR);
-        if (!folder.exists()) {
-            success = folder.mkdirs();
+    static void writePicture(byte[] bytes, int currentPictureId, float[] orientation, long timestamp,
+                             int generation) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        getSessionPack(generation).append(new SessionPack.Entry(currentPictureId, SessionPack.KIND_PICTURE,
+                SessionPack.CODEC_JPEG, options.outWidth, options.outHeight, 0, timestamp, orientation), ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * appends raw camera frame without encoding
+     *
+     * @param i420     buffer with I420 pixels, it is written from its position to its limit
+     * @param rotation clockwise rotation of the picture in degrees
+     */
+    static void writeRawPicture(ByteBuffer i420, int width, int height, int rotation, int currentPictureId,
+                                float[] orientation, long timestamp, int generation) throws IOException {
+        getSessionPack(generation).append(new SessionPack.Entry(currentPictureId, SessionPack.KIND_PICTURE,
+                SessionPack.CODEC_I420, width, height, rotation, timestamp, orientation), i420);
+    }
+
+    /**
+     * appends 3 channel BGR work or seam scale version of the picture
+     *
+     * @param kind {@link SessionPack#KIND_WORK} or {@link SessionPack#KIND_SEAM}
+     */
+    static void saveSidecar(Mat sidecar, int currentPictureId, int kind, int generation) throws IOException {
+        byte[] pixels = new byte[(int) sidecar.total() * sidecar.channels()];
+        sidecar.get(0, 0, pixels);
+        getSessionPack(generation).append(new SessionPack.Entry(currentPictureId, kind, SessionPack.CODEC_BGR,
+                sidecar.cols(), sidecar.rows(), 0, 0, null), ByteBuffer.wrap(pixels));
+    }
+
+    /**
+     * appends features of the picture found at capture time, native code writes and reads them
+     */
+    static void saveFeatures(byte[] features, int currentPictureId, int generation) throws IOException {
+        getSessionPack(generation).append(new SessionPack.Entry(currentPictureId, SessionPack.KIND_FEATURES,
+                SessionPack.CODEC_YML, 0, 0, 0, 0, null), ByteBuffer.wrap(features));
+    }
+
+    /**
+     * saves solution of a part under the id of the part, it has to be saved before the part is
+     * recorded as saved in the journal
+     *
+     * @param generation generation of the pack when the part started
+     */
+    public static boolean saveSolution(byte[] solution, int part, int generation) {
+        try {
+            getSessionPack(generation).append(new SessionPack.Entry(part, SessionPack.KIND_SOLUTION,
+                    SessionPack.CODEC_YML, 0, 0, 0, 0, null), ByteBuffer.wrap(solution));
+            return true;
+        } catch (IOException e) {
+            LOG.s(TAG, "solution saving failed", e);
+            return false;
         }
-        if (success) {
-            try {
-                FileOutputStream fos = new FileOutputStream(fileName);
-                fos.write(bytes);
-                fos.close();
-            } catch (IOException e) {
-                LOG.s(TAG, "File saving failed", e);
-            }
-        } else {
-            LOG.s(TAG, "File saving failed");
+    }
+
+    /**
+     * converts raw picture natively or decodes JPEG natively straight from the mapped pack
+     *
+     * @return 3 channel picture or empty Mat if there is none or loading failed
+     */
+    static Mat loadPicture(SessionPack.Reader pack, int currentPictureId) {
+        Mat mat = new Mat();
+        SessionPack.Entry entry = pack.get(SessionPack.KIND_PICTURE, currentPictureId);
+        if (entry == null) {
+            LOG.s(TAG, "picture " + currentPictureId + " is not in the pack");
+            return mat;
         }
+        if (entry.codec == SessionPack.CODEC_I420)
+            NativePanorama.yuvToBgr(pack.payload(entry), entry.width, entry.height, entry.rotation, mat.getNativeObjAddr());
+        else
+            NativePanorama.decodeImage(pack.payload(entry), mat.getNativeObjAddr());
+        return mat;
+    }
+
+    /**
+     * mapped payload is copied natively straight to the Mat
+     *
+     * @return sidecar of the picture or empty Mat if there is none
+     */
+    static Mat loadSidecar(SessionPack.Reader pack, int currentPictureId, int kind) {
+        Mat mat = new Mat();
+        SessionPack.Entry entry = pack.get(kind, currentPictureId);
+        if (entry == null)
+            return mat;
+        NativePanorama.copyBgr(pack.payload(entry), entry.width, entry.height, mat.getNativeObjAddr());
+        return mat;
+    }
+
+    /**
+     * @return features of the picture found at capture time or null if there are none
+     */
+    static ByteBuffer loadFeatures(SessionPack.Reader pack, int currentPictureId) {
+        SessionPack.Entry entry = pack.get(SessionPack.KIND_FEATURES, currentPictureId);
+        return entry != null ? pack.payload(entry) : null;
+    }
+
+    /**
+     * @return solution of the part or null if there is none
+     */
+    static ByteBuffer loadSolution(SessionPack.Reader pack, int part) {
+        SessionPack.Entry entry = pack.get(SessionPack.KIND_SOLUTION, part);
+        return entry != null ? pack.payload(entry) : null;
+    }
+
+    /**
+     * @return quaternion {x, y, z, w} saved with the picture or null if there is none
+     */
+    static float[] loadOrientation(SessionPack.Reader pack, int currentPictureId) {
+        SessionPack.Entry entry = pack.get(SessionPack.KIND_PICTURE, currentPictureId);
+        return entry != null ? entry.orientation : null;
     }
 
     public static boolean isPathCreated(String path) {
@@ -75,11 +234,16 @@ public class ImageRW {
      * @return true if success
      */
     public static boolean saveResultImageExternal(Mat result) {
-        LOG.s(TAG, "saveResultImageExternal: begin saving");
-        File folder = new File(Environment.getExternalStorageDirectory() + MAIN_DIR);
-        Date date = new Date();
-        SimpleDateFormat simple = new SimpleDateFormat(PATTERN, Locale.getDefault());
-        final String fileName = folder.getAbsolutePath() + MAIN_PREFIX + simple.format(date) + PNG;
+        return saveResultImageExternal(result, newResultFileName());
+    }
+
+    /**
+     * saves result under given name, used to replace a preview with the full resolution panorama
+     *
+     * @param fileName name created by {@link #newResultFileName()}
+     * @return true if success
+     */
+    public static boolean saveResultImageExternal(Mat result, String fileName) {
         LOG.s(TAG, "saveResultImageExternal: filename: " + fileName);
         if (isPathCreated(MAIN_DIR)) {
             try {
@@ -93,43 +257,38 @@ public class ImageRW {
         return false;
     }
 
-    public static boolean savePartResultImageExternal(Mat result) {
-        LOG.s(TAG, "savePartResultImageExternal: begin saving");
-        File folder = new File(Environment.getExternalStorageDirectory() + PART_DIR);
+    /**
+     * deletes a preview which is not replaced by a result, stitching failed or was given up
+     *
+     * @param fileName name created by {@link #newResultFileName()}, can be null
+     */
+    public static void deleteResultImage(String fileName) {
+        if (fileName != null && new File(fileName).delete())
+            LOG.s(TAG, "deleteResultImage: filename: " + fileName);
+    }
+
+    public static String newResultFileName() {
+        File folder = new File(Environment.getExternalStorageDirectory() + MAIN_DIR);
         Date date = new Date();
         SimpleDateFormat simple = new SimpleDateFormat(PATTERN, Locale.getDefault());
-        final String fileName = folder.getAbsolutePath() + PART_PREFIX + simple.format(date) + PNG;
-        LOG.s(TAG, "saveResultImageExternal: filename: " + fileName);
-        if (isPathCreated(PART_DIR)) {
-            try {
-                return Imgcodecs.imwrite(fileName, result);
-            } catch (Exception e) {
-                LOG.s(TAG, "Part File saving failed", e);
-            }
-        } else {
-            LOG.s(TAG, "Part File saving failed");
-        }
-        return false;
+        return folder.getAbsolutePath() + MAIN_PREFIX + simple.format(date) + PNG;
     }
 
     /**
      * methods deletes all pictures from temporary files if any exists
      */
     public static void deleteAllFiles() {
+        closeSessionPack();
         deleteFolderFiles(TEMP_DIR, false);
         deleteFolderFiles(HIST_DIR, false);
-        deleteFolderFiles(PART_DIR, false);
         deleteFolderFiles(LOGS_DIR, false);
     }
 
     public static void deleteTempFiles() {
+        closeSessionPack();
         deleteFolderFiles(TEMP_DIR, true);
     }
 
-    public static void deletePartFiles() {
-        deleteFolderFiles(PART_DIR, true);
-    }
-
     private static void deleteFolderFiles(String folder, boolean archive) {
         isPathCreated(folder);
         if (archive)
@@ -168,53 +327,6 @@ public class ImageRW {
         return false;
     }
 
-    /**
-     * method loads images from temporary folder
-     *
-     * @param currentPictureId
-     * @return requested image
-     */
-    static Bitmap loadImageExternal(int currentPictureId) {
-        if (!isPathCreated(TEMP_DIR))
-            return null;
-        final String fileName = Environment.getExternalStorageDirectory().getAbsolutePath()
-                + TEMP_DIR + "/" + currentPictureId + PNG;
-        Bitmap bitmap = null;
-        try {
-            FileInputStream fos = new FileInputStream(fileName);
-            bitmap = BitmapFactory.decodeStream(fos);
-            fos.close();
-        } catch (IOException e) {
-            LOG.s(TAG, "File loading failed", e);
-        }
-        return bitmap;
-    }
-
-    public static List<Bitmap> loadImagePartsExternal() {
-        isPathCreated(PART_DIR);
-        List<Bitmap> result = new ArrayList<>();
-        LOG.s(TAG, "load images from imagesFolder:" + PART_DIR);
-        File file = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + PART_DIR);
-        LOG.s(TAG, "loadImages file exist: " + file.exists());
-        LOG.s(TAG, "loadImages file id folder: " + file.isDirectory());
-        if (file.exists() && file.isDirectory()) {
-            File[] listFiles = file.listFiles();
-            for (File fileCurrent : listFiles) {
-                if (fileCurrent.isFile()) {
-                    try {
-                        FileInputStream fos = new FileInputStream(fileCurrent.getPath());
-                        result.add(BitmapFactory.decodeStream(fos));
-                        fos.close();
-                    } catch (IOException e) {
-                        LOG.s(TAG, "PART File loading failed", e);
-                    }
-                }
-            }
-        }
-        LOG.s(TAG, "loadImagePartsExternal parts count :" + result.size());
-        return result;
-    }
-
     public static List<Bitmap> loadTestImagesExternal() {
         isPathCreated(TEST_DIR);
         List<Bitmap> result = new ArrayList<>();
@@ -0,0 +1,249 @@
+package study.acodexm.utils;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import study.acodexm.StitchSession;
+
+/**
+ * runs native stitching jobs on a fixed pool of workers by priority, final stitching goes before
+ * parts and parts go before speculative work like merging parts. Job which cannot start because
+ * workers or native memory are taken by jobs of lower priority preempts them: their sessions are
+ * cancelled, they stop at the next check of native stitching and are queued again, speculative
+ * jobs are dropped instead. Job starts only when its estimated native memory fits the budget next
+ * to running jobs, job which does not fit the whole budget runs alone.
+ * Queued job of higher priority blocks jobs of lower priority, so they cannot take memory it
+ * waits for
+ */
+public class JobPool {
+    private static final String TAG = JobPool.class.getSimpleName();
+    /**
+     * work which only saves time later, dropped when it is preempted
+     */
+    public static final int PRIORITY_SPECULATIVE = 0;
+    public static final int PRIORITY_PART = 1;
+    /**
+     * stitching the user waits for, it runs on a thread of default priority
+     */
+    public static final int PRIORITY_FINAL = 2;
+    /**
+     * memory of a job which has to run alone
+     */
+    public static final long ALL_MEMORY = Long.MAX_VALUE;
+
+    public interface Job {
+        /**
+         * called on a worker thread
+         *
+         * @param session new native session of the job, it is destroyed when the job returns.
+         *                It is cancelled when the job is preempted or the pool is cancelled
+         * @return status of the stitching, preempted job which returns
+         * {@link StitchSession#CANCELLED} is queued again
+         */
+        int run(StitchSession session);
+    }
+
+    private static class Entry {
+        final Job job;
+        final String name;
+        final int priority;
+        final long memory;
+        final long order;
+        StitchSession session;
+        boolean isPreempted = false;
+
+        Entry(Job job, String name, int priority, long memory, long order) {
+            this.job = job;
+            this.name = name;
+            this.priority = priority;
+            this.memory = memory;
+            this.order = order;
+        }
+
+        /**
+         * @return true if this entry goes before the other one
+         */
+        boolean isBefore(Entry other) {
+            return priority != other.priority ? priority > other.priority : order < other.order;
+        }
+    }
+
+    private final int mWorkers;
+    private final LongSupplier mMemoryBudget;
+    private final List<Entry> mQueue = new ArrayList<>();
+    private final List<Entry> mRunning = new ArrayList<>();
+    private long mNextOrder = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param workers      amount of jobs which can run at once, native stitching of every job
+     *                     uses more threads itself
+     * @param memoryBudget native memory jobs can use in bytes, asked every time a job starts
+     */
+    public JobPool(int workers, LongSupplier memoryBudget) {
+        mWorkers = Math.max(1, workers);
+        mMemoryBudget = memoryBudget;
+        for (int i = 0; i < mWorkers; i++) {
+            Thread thread = new Thread(this::work, TAG + " " + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * queues the job, lower priority jobs are preempted if the job cannot start next to them
+     *
+     * @param name   name of the job in the logs
+     * @param memory estimated native memory of the job in bytes, {@link #ALL_MEMORY} if it has
+     *               to run alone
+     */
+    public synchronized void submit(String name, int priority, long memory, Job job) {
+        if (isClosed) return;
+        Entry entry = new Entry(job, name, priority, memory, mNextOrder++);
+        mQueue.add(entry);
+        preemptFor(entry, mMemoryBudget.getAsLong());
+        notifyAll();
+    }
+
+    /**
+     * cancels running jobs of lower priority, the lowest and the newest first, until the entry
+     * fits next to the rest of them
+     */
+    private void preemptFor(Entry entry, long budget) {
+        List<Entry> remaining = new ArrayList<>();
+        for (Entry running : mRunning)
+            if (!running.isPreempted) remaining.add(running);
+        while (!remaining.isEmpty() && !canStart(entry, remaining, budget)) {
+            Entry victim = null;
+            for (Entry running : remaining)
+                if (running.priority < entry.priority && (victim == null || victim.isBefore(running)))
+                    victim = running;
+            if (victim == null) return;
+            remaining.remove(victim);
+            victim.isPreempted = true;
+            victim.session.cancel();
+            LOG.s(TAG, victim.name + " preempted by " + entry.name);
+        }
+    }
+
+    /**
+     * @return true if the entry fits free workers and memory next to running entries
+     */
+    private boolean canStart(Entry entry, List<Entry> running, long budget) {
+        if (running.isEmpty()) return true;
+        if (running.size() >= mWorkers) return false;
+        long used = 0;
+        for (Entry other : running) {
+            if (other.memory > budget - used) return false;
+            used += other.memory;
+        }
+        return entry.memory <= budget - used;
+    }
+
+    /**
+     * @return first queued entry if it can start now, null if it has to wait
+     */
+    private Entry next() {
+        Entry first = null;
+        for (Entry entry : mQueue)
+            if (first == null || entry.isBefore(first))
+                first = entry;
+        if (first == null || !canStart(first, mRunning, mMemoryBudget.getAsLong()))
+            return null;
+        mQueue.remove(first);
+        return first;
+    }
+
+    private void work() {
+        while (true) {
+            Entry entry = null;
+            synchronized (this) {
+                while (!isClosed && (entry = next()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (isClosed) return;
+                entry.session = new StitchSession();
+                mRunning.add(entry);
+            }
+            Process.setThreadPriority(entry.priority == PRIORITY_FINAL
+                    ? Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+            long time = System.currentTimeMillis();
+            int status = -1;
+            try {
+                status = entry.job.run(entry.session);
+            } catch (RuntimeException e) {
+                LOG.s(TAG, entry.name + " failed", e);
+            } finally {
+                // errors still end the worker, but its session and memory are given back
+                entry.session.destroy();
+                synchronized (this) {
+                    mRunning.remove(entry);
+                    boolean isRequeued = !isClosed && entry.isPreempted && status == StitchSession.CANCELLED
+                            && entry.priority > PRIORITY_SPECULATIVE;
+                    if (isRequeued) {
+                        // queued again with its old order, so it goes before jobs submitted later
+                        entry.isPreempted = false;
+                        entry.session = null;
+                        mQueue.add(entry);
+                    }
+                    LOG.s(TAG, entry.name + " status: " + status + " time: " + (System.currentTimeMillis() - time)
+                            + (isRequeued ? " queued again" : ""));
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return jobs waiting for a worker or memory
+     */
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * cancels running jobs and drops queued ones, jobs submitted later run as usual
+     */
+    public synchronized void cancel() {
+        mQueue.clear();
+        for (Entry entry : mRunning) {
+            entry.isPreempted = false;
+            entry.session.cancel();
+        }
+    }
+
+    /**
+     * cancels running jobs and drops queued ones like {@link #cancel()} and waits until running
+     * jobs return, so files they write can be deleted
+     *
+     * @param timeout longest wait in milliseconds
+     * @return true if no job is running
+     */
+    public synchronized boolean cancelAndWait(long timeout) throws InterruptedException {
+        cancel();
+        long end = System.currentTimeMillis() + timeout;
+        long left = timeout;
+        while (!mRunning.isEmpty() && left > 0) {
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return mRunning.isEmpty();
+    }
+
+    /**
+     * cancels running jobs and drops queued ones, workers stop when running jobs return
+     */
+    public synchronized void close() {
+        if (isClosed) return;
+        isClosed = true;
+        cancel();
+        notifyAll();
+    }
+}
@@ -0,0 +1,107 @@
+package study.acodexm.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * groups captured grid cells into parts which can be stitched. Cells of a group are connected
+ * by neighbourhood, so every picture overlaps another picture of its part and native stitching
+ * does not leave any of them out. Neighbours are the same as the ones native stitching matches:
+ * cells of neighbouring rows and columns, columns wrap around at the 360 seam.
+ * Groups growing from cells next to already stitched parts are made first, so parts extend
+ * each other and overlap when they are stitched together
+ */
+public class PartPlanner {
+    private final int mLat;
+    private final Set<Integer> mStitched = new HashSet<>();
+
+    /**
+     * @param lat amount of grid columns used to calculate cell ids
+     */
+    public PartPlanner(int lat) {
+        mLat = lat;
+    }
+
+    public synchronized void markStitched(Collection<Integer> cells) {
+        mStitched.addAll(cells);
+    }
+
+    public synchronized void markUnstitched(Collection<Integer> cells) {
+        mStitched.removeAll(cells);
+    }
+
+    boolean areNeighbours(int cellA, int cellB) {
+        if (cellA == cellB) return false;
+        int rowDiff = Math.abs(cellA / (mLat + 1) - cellB / (mLat + 1));
+        int colDiff = Math.abs(cellA % (mLat + 1) - cellB % (mLat + 1));
+        // wrap around at the 360 seam
+        colDiff = Math.min(colDiff, mLat - colDiff);
+        return rowDiff <= 1 && colDiff <= 1;
+    }
+
+    /**
+     * @return true if any cell of one part is a neighbour of a cell of the other
+     */
+    boolean areAdjacent(Collection<Integer> partA, Collection<Integer> partB) {
+        for (int cell : partA)
+            if (count(cell, partB) > 0)
+                return true;
+        return false;
+    }
+
+    private int count(int cell, Collection<Integer> cells) {
+        int count = 0;
+        for (int other : cells)
+            if (areNeighbours(cell, other))
+                count++;
+        return count;
+    }
+
+    /**
+     * plans connected groups of available cells, every group starts from one of the seeds.
+     * Seeds next to most stitched cells go first, the rest in the given order. Group grows by
+     * the available neighbour touching most cells of the group and then most stitched cells
+     *
+     * @param available cells which are in no part yet, in capture order
+     * @param seeds     cells groups may start from, all of them available
+     * @param minSize   smaller groups are not planned, their cells stay available
+     * @return groups of minSize to maxSize cells, each cell is in one group at most
+     */
+    public synchronized List<List<Integer>> plan(List<Integer> available, List<Integer> seeds, int minSize, int maxSize) {
+        List<List<Integer>> groups = new ArrayList<>();
+        Set<Integer> assigned = new HashSet<>();
+        List<Integer> ordered = new ArrayList<>(seeds);
+        // stable sort keeps capture order of seeds next to the same amount of stitched cells
+        ordered.sort((a, b) -> count(b, mStitched) - count(a, mStitched));
+        for (int seed : ordered) {
+            if (assigned.contains(seed)) continue;
+            List<Integer> group = new ArrayList<>();
+            group.add(seed);
+            while (group.size() < maxSize) {
+                int best = -1;
+                int bestScore = 0;
+                for (int cell : available) {
+                    if (assigned.contains(cell) || group.contains(cell)) continue;
+                    int inGroup = count(cell, group);
+                    if (inGroup == 0) continue;
+                    // cell has 8 neighbours at most, touching the group always wins
+                    int score = inGroup * 9 + count(cell, mStitched);
+                    if (score > bestScore) {
+                        best = cell;
+                        bestScore = score;
+                    }
+                }
+                if (best < 0) break;
+                group.add(best);
+            }
+            if (group.size() >= minSize) {
+                assigned.addAll(group);
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+}
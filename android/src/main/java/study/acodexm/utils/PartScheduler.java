@@ -0,0 +1,322 @@
+package study.acodexm.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import study.acodexm.StitchSession;
+
+/**
+ * groups captured pictures into parts and stitches them in the background in multithreaded
+ * mode. Parts are planned by {@link PartPlanner} from neighbouring cells only. Part is made as
+ * soon as part size neighbouring pictures are captured, capture which waits longer than the
+ * max latency goes to a smaller part with at least one neighbour. Capture without any waiting
+ * neighbour waits for the next capture.
+ * Saved parts are reduced by a merge tree: two neighbouring saved parts of the most similar size
+ * are merged into a new part in the background, merged parts can be merged again. Final stitching
+ * is seeded from a few big parts instead of all of them. Parts and merges run on the shared
+ * {@link JobPool}, merges are speculative so parts and final stitching preempt them. Preempted
+ * part runs again, preempted merge is planned again
+ */
+public class PartScheduler {
+    private static final String TAG = PartScheduler.class.getSimpleName();
+    public static final int DEFAULT_PART_SIZE = 3;
+    public static final long DEFAULT_MAX_LATENCY = 5000;
+    /**
+     * stitching needs two pictures at least
+     */
+    public static final int MIN_PART_SIZE = 2;
+    /**
+     * rough native memory of a picture while its part is solved, 12 megapixel picture with its
+     * work scale version and features
+     */
+    static final long PICTURE_MEMORY = 40_000_000;
+    /**
+     * rough native memory of a picture while parts are merged, features and cameras only
+     */
+    static final long MERGED_PICTURE_MEMORY = 500_000;
+
+    public interface PartJob {
+        /**
+         * called on a pool thread
+         *
+         * @param part    id of the part in the session
+         * @param cells   grid cells of the pictures, connected by neighbourhood
+         * @param session native session the part is solved with
+         * @return 0 if the part is saved, {@link StitchSession#CANCELLED} if it was cancelled
+         * before it was saved. Cells of parts which failed can be used by others
+         */
+        int run(int part, List<Integer> cells, StitchSession session);
+    }
+
+    public interface MergeJob {
+        /**
+         * called on a pool thread, merged parts have to be replaced by the new part when it is
+         * saved
+         *
+         * @param part    id of the new part
+         * @param merged  ids of saved parts to be merged
+         * @param cells   grid cells of all merged parts
+         * @param session native session the parts are merged with
+         * @return 0 if the new part is saved, {@link StitchSession#CANCELLED} if it was cancelled
+         * before it was saved
+         */
+        int merge(int part, List<Integer> merged, List<Integer> cells, StitchSession session);
+    }
+
+    private final int mPartSize;
+    private final long mMaxLatency;
+    private final PartPlanner mPlanner;
+    private final PartJob mJob;
+    private final MergeJob mMergeJob;
+    private final JobPool mPool;
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * capture times of waiting cells in capture order
+     */
+    private final Map<Integer, Long> mPending = new LinkedHashMap<>();
+    /**
+     * cells of saved parts which are not being merged
+     */
+    private final Map<Integer, List<Integer>> mSaved = new LinkedHashMap<>();
+    /**
+     * cells of saved parts being merged by merges which are not finished
+     */
+    private final Map<Integer, List<Integer>> mMerging = new LinkedHashMap<>();
+    /**
+     * pairs of parts which could not be merged, they are not tried again
+     */
+    private final Set<Long> mFailedMerges = new HashSet<>();
+    private int mNextPart;
+    private int mRunning = 0;
+    private int mFinished = 0;
+    private long mLastLatency = 0;
+    private long mTotalLatency = 0;
+    private boolean isPaused = false;
+    private boolean isClosed = false;
+
+    /**
+     * @param partSize   amount of pictures in a part
+     * @param maxLatency time in ms a capture waits for other pictures of its part
+     * @param firstPart  id of the first part, parts of a restored session keep their ids
+     * @param planner    knows cells of already stitched parts
+     * @param mergeJob   merges saved parts, null if they are not merged
+     * @param pool       runs parts and merges
+     */
+    public PartScheduler(int partSize, long maxLatency, int firstPart, PartPlanner planner, PartJob job,
+                         MergeJob mergeJob, JobPool pool) {
+        mPartSize = Math.max(MIN_PART_SIZE, partSize);
+        mMaxLatency = maxLatency;
+        mNextPart = firstPart;
+        mPlanner = planner;
+        mJob = job;
+        mMergeJob = mergeJob;
+        mPool = pool;
+    }
+
+    /**
+     * queues captured picture, it has to be written already
+     */
+    public synchronized void onCapture(int cell) {
+        if (isClosed || mPending.containsKey(cell)) return;
+        mPending.put(cell, System.currentTimeMillis());
+        flush();
+        if (!isClosed)
+            mTimer.schedule(this::flush, mMaxLatency, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * adds saved part of a restored session, it can be merged with other parts
+     */
+    public synchronized void onPartSaved(int part, List<Integer> cells) {
+        mSaved.put(part, cells);
+        mergeNext();
+    }
+
+    private synchronized void flush() {
+        mergeNext();
+        if (isPaused || isClosed || mPending.size() < MIN_PART_SIZE) return;
+        List<Integer> waiting = new ArrayList<>(mPending.keySet());
+        for (List<Integer> cells : mPlanner.plan(waiting, waiting, mPartSize, mPartSize))
+            submit(cells);
+        long now = System.currentTimeMillis();
+        List<Integer> due = new ArrayList<>();
+        for (Map.Entry<Integer, Long> capture : mPending.entrySet())
+            if (now - capture.getValue() >= mMaxLatency)
+                due.add(capture.getKey());
+        if (!due.isEmpty())
+            for (List<Integer> cells : mPlanner.plan(new ArrayList<>(mPending.keySet()), due, MIN_PART_SIZE, mPartSize))
+                submit(cells);
+    }
+
+    private void submit(final List<Integer> cells) {
+        final int part = mNextPart++;
+        long oldest = Long.MAX_VALUE;
+        for (int cell : cells)
+            oldest = Math.min(oldest, mPending.remove(cell));
+        final long firstCapture = oldest;
+        mPlanner.markStitched(cells);
+        mPool.submit("part " + part, JobPool.PRIORITY_PART, cells.size() * PICTURE_MEMORY, session -> {
+            synchronized (this) {
+                mRunning++;
+            }
+            int status = -1;
+            try {
+                status = mJob.run(part, cells, session);
+            } catch (RuntimeException e) {
+                LOG.s(TAG, "part " + part + " failed", e);
+            }
+            synchronized (this) {
+                mRunning--;
+            }
+            // preempted part keeps its cells and runs again
+            if (status == StitchSession.CANCELLED) return status;
+            if (status == 0)
+                onPartSaved(part, cells);
+            else
+                mPlanner.markUnstitched(cells);
+            long latency = System.currentTimeMillis() - firstCapture;
+            synchronized (this) {
+                mFinished++;
+                mLastLatency = latency;
+                mTotalLatency += latency;
+            }
+            LOG.s(TAG, "part " + part + " " + cells + " latency: " + latency + " queued: " + getQueueDepth());
+            return status;
+        });
+    }
+
+    private static long pairKey(int partA, int partB) {
+        return ((long) Math.min(partA, partB) << 32) | Math.max(partA, partB);
+    }
+
+    /**
+     * submits merges of neighbouring saved parts, parts of the most similar size go first so the
+     * merge tree stays balanced
+     */
+    private synchronized void mergeNext() {
+        while (mMergeJob != null && !isPaused && !isClosed) {
+            int first = -1;
+            int second = -1;
+            int best = Integer.MAX_VALUE;
+            for (Map.Entry<Integer, List<Integer>> a : mSaved.entrySet()) {
+                for (Map.Entry<Integer, List<Integer>> b : mSaved.entrySet()) {
+                    if (a.getKey() >= b.getKey() || mFailedMerges.contains(pairKey(a.getKey(), b.getKey())))
+                        continue;
+                    int score = Math.abs(a.getValue().size() - b.getValue().size()) * 1000
+                            + a.getValue().size() + b.getValue().size();
+                    if (score < best && mPlanner.areAdjacent(a.getValue(), b.getValue())) {
+                        first = a.getKey();
+                        second = b.getKey();
+                        best = score;
+                    }
+                }
+            }
+            if (first < 0) return;
+            submitMerge(first, second);
+        }
+    }
+
+    private void submitMerge(final int first, final int second) {
+        final int part = mNextPart++;
+        final List<Integer> firstCells = mSaved.remove(first);
+        final List<Integer> secondCells = mSaved.remove(second);
+        final List<Integer> cells = new ArrayList<>(firstCells);
+        cells.addAll(secondCells);
+        mMerging.put(first, firstCells);
+        mMerging.put(second, secondCells);
+        mPool.submit("merge " + part, JobPool.PRIORITY_SPECULATIVE, cells.size() * MERGED_PICTURE_MEMORY, session -> {
+            int status = -1;
+            try {
+                status = mMergeJob.merge(part, Arrays.asList(first, second), cells, session);
+            } catch (RuntimeException e) {
+                LOG.s(TAG, "merge of " + first + " and " + second + " failed", e);
+            }
+            LOG.s(TAG, "merge of " + first + " and " + second + " to " + part + " status: " + status);
+            synchronized (this) {
+                mMerging.remove(first);
+                mMerging.remove(second);
+                if (status == 0) {
+                    onPartSaved(part, cells);
+                } else {
+                    // preempted merge is planned again
+                    if (status != StitchSession.CANCELLED)
+                        mFailedMerges.add(pairKey(first, second));
+                    mSaved.put(first, firstCells);
+                    mSaved.put(second, secondCells);
+                    mergeNext();
+                }
+            }
+            return status;
+        });
+    }
+
+    /**
+     * @return saved parts, parts of merges which are not finished are returned instead of the
+     * merge. Parts of a running merge may be replaced when it is saved, so the list is complete
+     * only when no merge runs
+     */
+    public synchronized List<Integer> getSavedParts() {
+        List<Integer> parts = new ArrayList<>(mSaved.keySet());
+        parts.addAll(mMerging.keySet());
+        return parts;
+    }
+
+    /**
+     * parts are not made while paused, captures wait
+     */
+    public synchronized void pause() {
+        isPaused = true;
+    }
+
+    public synchronized void resume() {
+        isPaused = false;
+        flush();
+    }
+
+    /**
+     * @return parts and other jobs waiting for a free worker of the pool
+     */
+    public int getQueueDepth() {
+        return mPool.getQueueDepth();
+    }
+
+    /**
+     * @return captures waiting for other pictures of their part
+     */
+    public synchronized int getPendingCaptures() {
+        return mPending.size();
+    }
+
+    public synchronized int getRunningParts() {
+        return mRunning;
+    }
+
+    /**
+     * @return time in ms from the first capture of the last finished part until it was stitched
+     */
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    public synchronized long getMeanLatency() {
+        return mFinished > 0 ? mTotalLatency / mFinished : 0;
+    }
+
+    /**
+     * waiting captures are dropped, submitted parts are left to the pool
+     */
+    public synchronized void close() {
+        if (isClosed) return;
+        isClosed = true;
+        mPending.clear();
+        mTimer.shutdownNow();
+    }
+}
@@ -0,0 +1,230 @@
+package study.acodexm.utils;
+
+import java.util.Locale;
+
+import study.acodexm.StitchConfig;
+
+/**
+ * chooses stitching resolutions so the stitching fits in given native memory and time budget.
+ * Memory and time of every stitching stage are estimated from the image count, input resolution,
+ * warper and seam finder, the biggest settings which fit are used.
+ * Estimates are rough, constants come from performance logs of a mid range device
+ */
+public class QualityPlanner {
+    private static final double MEGAPIX = 1e6;
+    /**
+     * compose resolutions to try, biggest first, -1 means full resolution
+     */
+    private static final double[] COMPOSE_MEGAPIX = {-1, 8, 4, 2, 1, 0.7, 0.4, 0.2};
+    /**
+     * registration settings to try, best first: work megapix, seam megapix, features count
+     */
+    private static final double[][] REGISTRATION = {{0.6, 0.1, 1500}, {0.4, 0.08, 1000}, {0.3, 0.05, 500}};
+    private static final int TILE_SIZE = 1024;
+    /**
+     * part of the warped images which is not covered by other images
+     */
+    private static final double OVERLAP = 0.6;
+    /**
+     * bytes per canvas pixel of multi band blender, CV_16SC3 image and float weights in pyramid
+     */
+    private static final double BLENDER_BYTES = (6 + 4) * 4 / 3.0;
+    /**
+     * bytes per keypoint, descriptor and KeyPoint
+     */
+    private static final int KEYPOINT_BYTES = 64;
+
+    private final long mMemoryBudget;
+    private final double mTimeBudget;
+    private final int mThreads;
+
+    /**
+     * @param memoryBudget native memory which can be used by stitching in bytes
+     * @param timeBudget   time in seconds stitching should not exceed
+     * @param threads      amount of threads used by stitching
+     */
+    public QualityPlanner(long memoryBudget, double timeBudget, int threads) {
+        mMemoryBudget = memoryBudget;
+        mTimeBudget = timeBudget;
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @return biggest settings which fit the budget, if nothing fits the smallest ones
+     */
+    public Plan plan(int images, int width, int height, String warpType, String seamType) {
+        double inputMegapix = (double) width * height / MEGAPIX;
+        Plan plan = null;
+        for (double compose : COMPOSE_MEGAPIX) {
+            // smaller compose scale than the input makes no difference
+            if (compose > 0 && compose >= inputMegapix) continue;
+            for (double[] registration : REGISTRATION) {
+                for (boolean tiled : new boolean[]{false, true}) {
+                    plan = estimate(images, inputMegapix, registration[0], registration[1], compose,
+                            (int) registration[2], tiled, warpType, seamType);
+                    if (plan.fits) return plan;
+                }
+            }
+        }
+        return plan;
+    }
+
+    Plan estimate(int images, double inputMegapix, double work, double seam, double compose,
+                  int features, boolean tiled, String warpType, String seamType) {
+        double warpFactor = getWarpFactor(warpType);
+        double workMp = Math.min(inputMegapix, work);
+        double seamMp = Math.min(inputMegapix, seam);
+        double composeMp = compose < 0 ? inputMegapix : Math.min(inputMegapix, compose);
+        int pairs = Math.min(images * (images - 1) / 2, 8 * images);
+        double canvasMp = images * composeMp * warpFactor * OVERLAP;
+
+        // memory in megabytes, input images are already loaded when the budget is measured
+        double keypoints = (double) images * features * KEYPOINT_BYTES / MEGAPIX;
+        double finding = images * seamMp * 3 + mThreads * workMp * 3 * 4;
+        double warping = images * seamMp * warpFactor * (3 + 12 + 2) + images * seamMp * 3;
+        double seams = images * seamMp * warpFactor * getSeamBytes(seamType);
+        double perImage = composeMp * warpFactor * (3 + 6 + 2 + BLENDER_BYTES);
+        double composing;
+        if (tiled) {
+            double tileMp = Math.pow(TILE_SIZE * 1.5, 2) / MEGAPIX;
+            // images are resized tile by tile, every thread keeps a source part next to its tile
+            composing = canvasMp * 3 + mThreads * tileMp * (BLENDER_BYTES * 2 + 9 + 3);
+        } else {
+            composing = canvasMp * BLENDER_BYTES + mThreads * perImage;
+        }
+        double memory = keypoints + Math.max(Math.max(finding, warping), Math.max(seams, composing));
+
+        // time in seconds
+        double time = images * workMp * 0.8 / mThreads
+                + pairs * features / 1000.0 * 0.03 / mThreads
+                + images * 0.05 + pairs * 0.01
+                + images * seamMp * warpFactor * getSeamTime(seamType)
+                + images * composeMp * warpFactor * 0.6 / mThreads * (tiled ? 1.2 : 1)
+                + canvasMp * 0.4;
+
+        long memoryBytes = (long) (memory * MEGAPIX);
+        boolean fits = memoryBytes <= mMemoryBudget && time <= mTimeBudget;
+        return new Plan(work, seam, compose, features, tiled ? TILE_SIZE : 0, mThreads, memoryBytes, time, fits);
+    }
+
+    private static double getWarpFactor(String warpType) {
+        switch (warpType.toLowerCase()) {
+            case "plane":
+                return 2.0;
+            case "fisheye":
+            case "stereographic":
+                return 1.6;
+            default:
+                return 1.3;
+        }
+    }
+
+    private static double getSeamBytes(String seamType) {
+        switch (seamType.toLowerCase()) {
+            case "gc_color":
+            case "gc_colorgrad":
+                return 24;
+            case "dp_color":
+            case "dp_colorgrad":
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    private static double getSeamTime(String seamType) {
+        switch (seamType.toLowerCase()) {
+            case "gc_color":
+            case "gc_colorgrad":
+                return 20;
+            case "dp_color":
+            case "dp_colorgrad":
+                return 3;
+            default:
+                return 0.5;
+        }
+    }
+
+    /**
+     * settings chosen by the planner with estimated memory and time
+     */
+    public static class Plan {
+        private final double workMegapix;
+        private final double seamMegapix;
+        private final double composeMegapix;
+        private final int features;
+        private final int tileSize;
+        private final int threads;
+        private final long memory;
+        private final double time;
+        private final boolean fits;
+
+        Plan(double workMegapix, double seamMegapix, double composeMegapix, int features,
+             int tileSize, int threads, long memory, double time, boolean fits) {
+            this.workMegapix = workMegapix;
+            this.seamMegapix = seamMegapix;
+            this.composeMegapix = composeMegapix;
+            this.features = features;
+            this.tileSize = tileSize;
+            this.threads = threads;
+            this.memory = memory;
+            this.time = time;
+            this.fits = fits;
+        }
+
+        public double getWorkMegapix() {
+            return workMegapix;
+        }
+
+        public double getSeamMegapix() {
+            return seamMegapix;
+        }
+
+        public double getComposeMegapix() {
+            return composeMegapix;
+        }
+
+        public int getFeatures() {
+            return features;
+        }
+
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getMemory() {
+            return memory;
+        }
+
+        public double getTime() {
+            return time;
+        }
+
+        public boolean fits() {
+            return fits;
+        }
+
+        /**
+         * sets resolutions, features count, tiles and threads of the plan to the config
+         */
+        public void applyTo(StitchConfig config) {
+            config.setWorkMegapix(workMegapix);
+            config.setSeamMegapix(seamMegapix);
+            config.setComposeMegapix(composeMegapix);
+            config.setFeatures(features);
+            config.setTileSize(tileSize);
+            config.setThreads(threads);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "work:%.2fMP seam:%.2fMP compose:%.1fMP features:%d tile:%d threads:%d memory:%dMB time:%.1fs fits:%b",
+                    workMegapix, seamMegapix, composeMegapix, features, tileSize, threads,
+                    memory / (1024 * 1024), time, fits);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package study.acodexm.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import study.acodexm.PicturePosition;
+
+/**
+ * write-ahead journal of the capture session kept in the session pack, so the session survives
+ * recreating the activity and process death. Pictures in the pack are the taken grid cells,
+ * the journal adds the grid size and the state of every part stitching. Part merged from other
+ * parts lists them in its own record, so they are replaced at once. Records are synced as
+ * soon as they are written, pictures are synced by the capture writer.
+ * Restoring only indexes the mapped pack, no picture is read
+ */
+public class SessionJournal {
+    private static final String TAG = SessionJournal.class.getSimpleName();
+    /**
+     * cells of the part are marked as used and the part is being stitched
+     */
+    static final int PART_RUNNING = 0;
+    static final int PART_SAVED = 1;
+    /**
+     * part was not saved, its cells can be used by another part
+     */
+    static final int PART_FAILED = 2;
+    /**
+     * part payload is state, amount of replaced parts, replaced parts and cells
+     */
+    private static final int PART_HEADER = 2;
+
+    /**
+     * state of a restored session
+     */
+    public static class Session {
+        private final List<Integer> mTaken = new ArrayList<>();
+        private final List<Integer> mUsed = new ArrayList<>();
+        private final Map<Integer, List<Integer>> mSavedParts = new HashMap<>();
+        private int mNextPart = 0;
+
+        /**
+         * @return grid cells of pictures in the pack
+         */
+        public List<Integer> getTaken() {
+            return mTaken;
+        }
+
+        /**
+         * @return cells of saved parts, cells of parts interrupted while stitching are not used
+         * so they are stitched again
+         */
+        public List<Integer> getUsed() {
+            return mUsed;
+        }
+
+        /**
+         * @return cells of saved parts which were not merged into other parts, solutions of the
+         * parts are in the pack
+         */
+        public Map<Integer, List<Integer>> getSavedParts() {
+            return mSavedParts;
+        }
+
+        /**
+         * @return id which is not used by any part of the session
+         */
+        public int getNextPart() {
+            return mNextPart;
+        }
+
+        public void applyTo(PicturePosition position) {
+            for (int cell : mTaken)
+                position.markAsTaken(cell);
+            position.markAsUsed(mUsed);
+        }
+    }
+
+    /**
+     * restores the session of the last capture
+     *
+     * @return session or null if there is none or it was taken on another grid
+     */
+    public static Session restore(int lat, int lon) {
+        long time = System.currentTimeMillis();
+        try {
+            Session session = replay(ImageRW.openSessionPack(), lat, lon);
+            if (session != null)
+                LOG.s(TAG, "session restored, pictures: " + session.mTaken.size() + " used: "
+                        + session.mUsed.size() + " time: " + (System.currentTimeMillis() - time));
+            return session;
+        } catch (IOException | RuntimeException e) {
+            LOG.s(TAG, "session restoring failed", e);
+            return null;
+        }
+    }
+
+    static Session replay(SessionPack.Reader pack, int lat, int lon) {
+        SessionPack.Entry grid = pack.get(SessionPack.KIND_GRID, 0);
+        if (grid == null || grid.width != lat || grid.height != lon)
+            return null;
+        Session session = new Session();
+        List<Integer> replacedParts = new ArrayList<>();
+        for (SessionPack.Entry picture : pack.getAll(SessionPack.KIND_PICTURE))
+            session.mTaken.add(picture.id);
+        for (SessionPack.Entry part : pack.getAll(SessionPack.KIND_PART)) {
+            session.mNextPart = Math.max(session.mNextPart, part.id + 1);
+            ByteBuffer payload = pack.payload(part);
+            if (payload.getInt() != PART_SAVED)
+                continue;
+            int replaced = payload.getInt();
+            for (int i = 0; i < replaced; i++)
+                replacedParts.add(payload.getInt());
+            List<Integer> cells = new ArrayList<>();
+            while (payload.hasRemaining())
+                cells.add(payload.getInt());
+            session.mSavedParts.put(part.id, cells);
+        }
+        for (int part : replacedParts)
+            session.mSavedParts.remove(part);
+        for (List<Integer> cells : session.mSavedParts.values())
+            session.mUsed.addAll(cells);
+        return session;
+    }
+
+    /**
+     * starts journal of a new session, pack has to be empty
+     */
+    public static void start(int lat, int lon) {
+        write(new SessionPack.Entry(0, SessionPack.KIND_GRID, SessionPack.CODEC_INT, lat, lon, 0, 0, null),
+                ByteBuffer.allocate(0), ImageRW.getSessionPackGeneration());
+    }
+
+    /**
+     * records that the cells are used by the part which is going to be stitched
+     *
+     * @param generation generation of the pack when the part started, records of parts of an
+     *                   archived or deleted session are dropped
+     */
+    public static void partStarted(int part, List<Integer> cells, int generation) {
+        writePart(part, PART_RUNNING, Collections.<Integer>emptyList(), cells, generation);
+    }
+
+    /**
+     * records that the part was saved or that its cells are free again
+     */
+    public static void partFinished(int part, List<Integer> cells, boolean isSaved, int generation) {
+        writePart(part, isSaved ? PART_SAVED : PART_FAILED, Collections.<Integer>emptyList(), cells, generation);
+    }
+
+    /**
+     * records saved part merged from other parts which are replaced by it
+     */
+    public static void partsMerged(int part, List<Integer> replaced, List<Integer> cells, int generation) {
+        writePart(part, PART_SAVED, replaced, cells, generation);
+    }
+
+    private static void writePart(int part, int state, List<Integer> replaced, List<Integer> cells, int generation) {
+        ByteBuffer payload = ByteBuffer.allocate((PART_HEADER + replaced.size() + cells.size()) * 4);
+        payload.putInt(state).putInt(replaced.size());
+        for (int replacedPart : replaced)
+            payload.putInt(replacedPart);
+        for (int cell : cells)
+            payload.putInt(cell);
+        payload.flip();
+        write(new SessionPack.Entry(part, SessionPack.KIND_PART, SessionPack.CODEC_INT, 0, 0, 0,
+                System.currentTimeMillis(), null), payload, generation);
+    }
+
+    private static void write(SessionPack.Entry entry, ByteBuffer payload, int generation) {
+        try {
+            SessionPack pack = ImageRW.getSessionPack(generation);
+            pack.append(entry, payload);
+            pack.sync();
+        } catch (IOException e) {
+            LOG.s(TAG, "journal writing failed", e);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package study.acodexm.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * all pictures of a capture session and everything made from them in one append-only file.
+ * File starts with a header of magic and version, every record is an index entry followed by
+ * its payload. Entry holds cell id, kind, codec, width, height, rotation, shutter timestamp,
+ * orientation quaternion and payload length, payload is encoded or raw pixels. Payload is
+ * followed by a commit marker with checksum of the entry.
+ * Record is valid only when its commit marker is in the file and matches its entry, records from
+ * the first invalid one on, torn or zero filled by process death, are cut off when the pack is
+ * opened again. Later records of the same cell and kind replace the earlier ones, so retaken
+ * pictures are just appended.
+ * Readers map the file once in windows of whole records and get payloads as slices of them,
+ * records appended later are mapped when the reader is updated
+ */
+public class SessionPack {
+    private static final String TAG = SessionPack.class.getSimpleName();
+    public static final int KIND_PICTURE = 0;
+    public static final int KIND_WORK = 1;
+    public static final int KIND_SEAM = 2;
+    public static final int KIND_FEATURES = 3;
+    public static final int KIND_GRID = 4;
+    public static final int KIND_PART = 5;
+    /**
+     * cameras, features and matches of a part, id is the id of the part
+     */
+    public static final int KIND_SOLUTION = 6;
+    public static final int CODEC_JPEG = 0;
+    public static final int CODEC_I420 = 1;
+    /**
+     * 3 channel pixels in the BGR order of stitching
+     */
+    public static final int CODEC_BGR = 2;
+    public static final int CODEC_YML = 3;
+    /**
+     * big endian ints
+     */
+    public static final int CODEC_INT = 4;
+
+    private static final int MAGIC = 0x50414e4b;
+    private static final int VERSION = 2;
+    private static final int COMMIT = 0x434d4954;
+    static final int HEADER_SIZE = 2 * 4;
+    /**
+     * 7 ints, 4 floats of orientation and 2 longs
+     */
+    static final int ENTRY_SIZE = 7 * 4 + 4 * 4 + 2 * 8;
+    /**
+     * commit marker and checksum of the entry
+     */
+    static final int COMMIT_SIZE = 2 * 4;
+    /**
+     * biggest mapping of a reader, a single mapping cannot be bigger than 2 GB
+     */
+    static final long MAX_WINDOW = 1L << 30;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE);
+    private final ByteBuffer mCommit = ByteBuffer.allocate(COMMIT_SIZE);
+
+    /**
+     * opens the pack for appending, creates it if it does not exist and cuts off torn records at
+     * its end. File which is not a pack of this version is renamed aside and a new pack is
+     * started, pictures in it are never deleted
+     *
+     * @throws IOException if the pack cannot be read or written or unreadable file cannot be
+     *                     renamed
+     */
+    public SessionPack(File file) throws IOException {
+        long valid;
+        try {
+            valid = open(file).mValidLength;
+        } catch (IOException e) {
+            File aside = new File(file.getPath() + "." + System.currentTimeMillis());
+            if (!file.renameTo(aside))
+                throw new IOException("session pack is not readable and cannot be renamed", e);
+            LOG.s(TAG, "session pack is not readable, it is renamed to " + aside.getName(), e);
+            valid = 0;
+        }
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        if (valid == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            mChannel.truncate(0);
+            while (header.hasRemaining())
+                mChannel.write(header, mChannel.size());
+            valid = HEADER_SIZE;
+        } else if (mChannel.size() > valid) {
+            LOG.s(TAG, "torn records cut off, " + (mChannel.size() - valid) + " bytes");
+            mChannel.truncate(valid);
+        }
+        mChannel.position(valid);
+    }
+
+    /**
+     * describes a payload, offset and length are known only to entries read from a pack
+     */
+    public static class Entry {
+        public final int id;
+        public final int kind;
+        public final int codec;
+        public final int width;
+        public final int height;
+        /**
+         * clockwise rotation of the picture in degrees
+         */
+        public final int rotation;
+        public final long timestamp;
+        /**
+         * quaternion {x, y, z, w} or null if it is unknown
+         */
+        public final float[] orientation;
+        private long mOffset;
+        private long mLength;
+        /**
+         * mapping of the reader the payload is in
+         */
+        private int mWindow;
+
+        public Entry(int id, int kind, int codec, int width, int height, int rotation, long timestamp, float[] orientation) {
+            this.id = id;
+            this.kind = kind;
+            this.codec = codec;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.timestamp = timestamp;
+            this.orientation = orientation;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return position of the payload in the pack
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        private void write(ByteBuffer buffer, long length) {
+            buffer.putInt(id).putInt(kind).putInt(codec).putInt(width).putInt(height)
+                    .putInt(rotation).putInt(orientation != null ? 1 : 0);
+            for (int i = 0; i < 4; i++)
+                buffer.putFloat(orientation != null ? orientation[i] : 0);
+            buffer.putLong(timestamp).putLong(length);
+        }
+
+        private static Entry read(ByteBuffer buffer) {
+            int id = buffer.getInt();
+            int kind = buffer.getInt();
+            int codec = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int rotation = buffer.getInt();
+            boolean hasOrientation = buffer.getInt() != 0;
+            float[] orientation = new float[4];
+            for (int i = 0; i < 4; i++)
+                orientation[i] = buffer.getFloat();
+            long timestamp = buffer.getLong();
+            Entry entry = new Entry(id, kind, codec, width, height, rotation, timestamp,
+                    hasOrientation ? orientation : null);
+            entry.mLength = buffer.getLong();
+            return entry;
+        }
+    }
+
+    private static int checksum(ByteBuffer entry) {
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), entry.arrayOffset(), ENTRY_SIZE);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * appends the entry with its payload and commit marker in a single gathering write, buffers
+     * are written from their positions to their limits. Record is not synced
+     */
+    public synchronized void append(Entry entry, ByteBuffer... payload) throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : payload)
+            length += buffer.remaining();
+        mEntry.clear();
+        entry.write(mEntry, length);
+        mEntry.flip();
+        mCommit.clear();
+        mCommit.putInt(COMMIT).putInt(checksum(mEntry));
+        mCommit.flip();
+        ByteBuffer[] buffers = new ByteBuffer[payload.length + 2];
+        buffers[0] = mEntry;
+        System.arraycopy(payload, 0, buffers, 1, payload.length);
+        buffers[buffers.length - 1] = mCommit;
+        long start = mChannel.position();
+        try {
+            while (mCommit.hasRemaining())
+                mChannel.write(buffers);
+        } catch (IOException e) {
+            // next record starts where this one started
+            mChannel.truncate(start);
+            mChannel.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * makes appended records durable
+     */
+    public synchronized void sync() throws IOException {
+        mChannel.force(false);
+    }
+
+    public synchronized void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            LOG.s(TAG, "closing pack failed", e);
+        }
+    }
+
+    /**
+     * indexes records of the pack and maps them to memory, pack which does not exist is empty
+     */
+    public static Reader open(File file) throws IOException {
+        return open(file, MAX_WINDOW);
+    }
+
+    /**
+     * @param maxWindow biggest mapping, smaller than a record only in tests
+     */
+    static Reader open(File file, long maxWindow) throws IOException {
+        Reader reader = new Reader(file, maxWindow);
+        reader.update();
+        return reader;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        buffer.flip();
+    }
+
+    /**
+     * index of records of a mapped pack, payloads are slices of the mappings and are valid as
+     * long as the reader is reachable. Reader is not thread safe
+     */
+    public static class Reader {
+        private final File mFile;
+        private final long mMaxWindow;
+        private final List<ByteBuffer> mWindows = new ArrayList<>();
+        private final List<Long> mWindowStarts = new ArrayList<>();
+        private final Map<Long, Entry> mEntries = new HashMap<>();
+        private long mValidLength = 0;
+
+        private Reader(File file, long maxWindow) {
+            mFile = file;
+            mMaxWindow = maxWindow;
+        }
+
+        /**
+         * indexes and maps records appended since the reader was opened or updated, records
+         * which are already mapped are not read again. Pack which does not exist is empty
+         */
+        public void update() throws IOException {
+            if (!mFile.isFile() || mFile.length() <= mValidLength)
+                return;
+            try (FileChannel channel = new RandomAccessFile(mFile, "r").getChannel()) {
+                // mappings stay valid after the channel is closed
+                index(channel);
+            }
+        }
+
+        private void index(FileChannel channel) throws IOException {
+            long size = channel.size();
+            long position = mValidLength;
+            if (position == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC)
+                    throw new IOException("not a session pack");
+                if (header.getInt(4) != VERSION)
+                    throw new IOException("session pack version " + header.getInt(4) + " differs from " + VERSION);
+                position = HEADER_SIZE;
+            }
+            ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+            ByteBuffer commit = ByteBuffer.allocate(COMMIT_SIZE);
+            long windowStart = position;
+            while (size - position >= ENTRY_SIZE + COMMIT_SIZE) {
+                readFully(channel, entryBuffer, position);
+                Entry entry = Entry.read(entryBuffer);
+                long end = position + ENTRY_SIZE + entry.mLength + COMMIT_SIZE;
+                if (entry.mLength < 0 || entry.mLength > size - position - ENTRY_SIZE - COMMIT_SIZE
+                        || end - position > mMaxWindow)
+                    break;
+                readFully(channel, commit, end - COMMIT_SIZE);
+                if (commit.getInt(0) != COMMIT || commit.getInt(4) != checksum(entryBuffer))
+                    break;
+                if (end - windowStart > mMaxWindow) {
+                    map(channel, windowStart, position);
+                    windowStart = position;
+                }
+                entry.mOffset = position + ENTRY_SIZE;
+                entry.mWindow = mWindows.size();
+                mEntries.put(key(entry.kind, entry.id), entry);
+                position = end;
+            }
+            mValidLength = position;
+            if (position > windowStart)
+                map(channel, windowStart, position);
+        }
+
+        private void map(FileChannel channel, long start, long end) throws IOException {
+            mWindows.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            mWindowStarts.add(start);
+        }
+
+        private static long key(int kind, int id) {
+            return ((long) kind << 32) | (id & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @return the last record of the cell and kind or null if there is none
+         */
+        public Entry get(int kind, int id) {
+            return mEntries.get(key(kind, id));
+        }
+
+        /**
+         * @return payload of the entry without copying, direct slice of its mapping
+         */
+        public ByteBuffer payload(Entry entry) {
+            ByteBuffer payload = mWindows.get(entry.mWindow).duplicate();
+            int offset = (int) (entry.mOffset - mWindowStarts.get(entry.mWindow));
+            payload.position(offset);
+            payload.limit(offset + (int) entry.mLength);
+            return payload.slice();
+        }
+
+        /**
+         * @return last records of all cells of the kind, in no particular order
+         */
+        public List<Entry> getAll(int kind) {
+            List<Entry> entries = new ArrayList<>();
+            for (Entry entry : mEntries.values())
+                if (entry.kind == kind)
+                    entries.add(entry);
+            return entries;
+        }
+
+        public int size() {
+            return mEntries.size();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package study.acodexm.utils;
+
+import android.os.Process;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+import study.acodexm.NativePanorama;
+import study.acodexm.StitchConfig;
+
+/**
+ * prepares every saved picture for stitching in the background while the user is still taking
+ * pictures: the picture is decoded, work and seam scale versions and features of the work
+ * scale version are appended to the session pack. Stitching loads
+ * them instead of resizing full resolution pictures and finding features.
+ * Decoding and feature finding run on their own threads, at most {@link #PREFETCH} decoded
+ * pictures wait for feature finding so memory stays bounded however fast pictures are taken.
+ * Pictures are read with one reader of the pack which maps only records appended since the
+ * previous picture, until the pack is archived or deleted.
+ * Sidecars are made for the default registration resolutions and finder, stitching with other
+ * settings does the work itself.
+ * Work scale versions are also added to a native incremental builder, which matches every
+ * picture only with its neighbours and blends only the region it covers, so a low resolution
+ * live panorama of the session is ready as soon as the last picture is added
+ */
+public class SidecarGenerator {
+    private static final String TAG = SidecarGenerator.class.getSimpleName();
+    public static final int WORK = SessionPack.KIND_WORK;
+    public static final int SEAM = SessionPack.KIND_SEAM;
+    private static final int PREFETCH = 2;
+    /**
+     * resolution of pictures on the live panorama
+     */
+    private static final double LIVE_MEGAPIX = 0.05;
+
+    private final PublishProcessor<Capture> mCaptures = PublishProcessor.create();
+    private final ExecutorService mScaleExecutor = newBackgroundExecutor(TAG + " scale");
+    private final ExecutorService mFeatureExecutor = newBackgroundExecutor(TAG + " features");
+    private final byte[] mConfig = new StitchConfig().toBytes();
+    /**
+     * used only on the scale thread
+     */
+    private SessionPack.Reader mPack;
+    private int mPackGeneration;
+    private int mPending = 0;
+    private boolean isClosed = false;
+    private volatile int mGridLat = 0;
+    /**
+     * builder of the live panorama and pictures added to it, used under the lock
+     */
+    private final Object mBuilderLock = new Object();
+    private long mBuilder = 0;
+    private int mBuilderGeneration;
+    private final Set<Integer> mBuilt = new HashSet<>();
+    private boolean isBuilderStale = false;
+
+    public SidecarGenerator() {
+        // captures are buffered, decoded pictures are requested only when feature finding takes them
+        mCaptures.onBackpressureBuffer()
+                .observeOn(Schedulers.from(mScaleExecutor), false, PREFETCH)
+                .map(this::scale)
+                .observeOn(Schedulers.from(mFeatureExecutor), false, PREFETCH)
+                .map(this::findFeatures)
+                .subscribe(capture -> done(), this::failed, this::shutdown);
+    }
+
+    private static ExecutorService newBackgroundExecutor(String name) {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param gridLat amount of grid columns, pictures are matched only with pictures of
+     *                neighbouring cells on the live panorama
+     */
+    public void setGridLat(int gridLat) {
+        mGridLat = gridLat;
+    }
+
+    /**
+     * queues sidecars of the picture, picture has to be written already
+     *
+     * @param generation generation of the pack the picture was written to, sidecars are
+     *                   dropped if the pack is closed before they are made
+     */
+    public synchronized void generate(int id, int generation) {
+        if (isClosed) return;
+        mPending++;
+        mCaptures.onNext(new Capture(id, generation));
+    }
+
+    /**
+     * picture with its work scale version which is released after feature finding
+     */
+    private static class Capture {
+        final int id;
+        final int generation;
+        final Mat work = new Mat();
+
+        Capture(int id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @return reader of the pack of the generation with the picture written last
+     * @throws IOException if the pack of the generation is closed
+     */
+    private SessionPack.Reader getPack(int generation) throws IOException {
+        if (generation != ImageRW.getSessionPackGeneration())
+            throw new IOException("session pack " + generation + " is closed");
+        if (mPack == null || generation != mPackGeneration) {
+            mPack = ImageRW.openSessionPack();
+            mPackGeneration = generation;
+        } else {
+            mPack.update();
+        }
+        return mPack;
+    }
+
+    private Capture scale(Capture capture) {
+        int id = capture.id;
+        long time = System.currentTimeMillis();
+        Mat picture = null;
+        Mat seam = new Mat();
+        try {
+            picture = ImageRW.loadPicture(getPack(capture.generation), id);
+            if (!picture.empty()) {
+                NativePanorama.makeSidecars(picture.getNativeObjAddr(), StitchConfig.DEFAULT_WORK_MEGAPIX,
+                        StitchConfig.DEFAULT_SEAM_MEGAPIX, capture.work.getNativeObjAddr(), seam.getNativeObjAddr());
+                ImageRW.saveSidecar(capture.work, id, WORK, capture.generation);
+                ImageRW.saveSidecar(seam, id, SEAM, capture.generation);
+                LOG.s(TAG, "sidecars of " + id + " time: " + (System.currentTimeMillis() - time));
+            }
+        } catch (Exception e) {
+            LOG.s(TAG, "sidecars of " + id + " failed", e);
+            capture.work.release();
+        } finally {
+            seam.release();
+            if (picture != null)
+                picture.release();
+        }
+        return capture;
+    }
+
+    private Capture findFeatures(Capture capture) {
+        long time = System.currentTimeMillis();
+        try {
+            if (!capture.work.empty()) {
+                byte[] features = NativePanorama.precomputeFeatures(capture.work.getNativeObjAddr(), mConfig);
+                if (features != null)
+                    ImageRW.saveFeatures(features, capture.id, capture.generation);
+                LOG.s(TAG, "features of " + capture.id + " saved: " + (features != null) + " time: "
+                        + (System.currentTimeMillis() - time));
+                addToLivePanorama(capture);
+            }
+        } catch (Exception e) {
+            LOG.s(TAG, "features of " + capture.id + " failed", e);
+        } finally {
+            capture.work.release();
+        }
+        return capture;
+    }
+
+    /**
+     * adds the work scale picture to the builder of its pack generation, builder of an archived
+     * or deleted session is dropped
+     */
+    private void addToLivePanorama(Capture capture) {
+        long time = System.currentTimeMillis();
+        synchronized (mBuilderLock) {
+            if (mBuilder == 0 || capture.generation != mBuilderGeneration) {
+                destroyBuilder();
+                mBuilder = NativePanorama.createBuilder(mGridLat, LIVE_MEGAPIX);
+                mBuilderGeneration = capture.generation;
+            }
+            // retaken picture cannot be taken out of the canvas, live panorama is not used then
+            if (isBuilderStale || !mBuilt.add(capture.id)) {
+                isBuilderStale = true;
+                return;
+            }
+            int status = NativePanorama.addToBuilder(mBuilder, capture.work.getNativeObjAddr(), capture.id);
+            LOG.s(TAG, "live panorama of " + capture.id + " status: " + status + " time: "
+                    + (System.currentTimeMillis() - time));
+        }
+    }
+
+    /**
+     * copies the live panorama of the current session
+     *
+     * @return false if the live panorama does not have exactly the given pictures, some of them
+     * were not registered or were retaken
+     */
+    public boolean getLivePanorama(List<Integer> ids, Mat result) {
+        synchronized (mBuilderLock) {
+            if (mBuilder == 0 || isBuilderStale || mBuilderGeneration != ImageRW.getSessionPackGeneration()
+                    || mBuilt.size() != ids.size() || !mBuilt.containsAll(ids)
+                    || NativePanorama.getBuilderSize(mBuilder) != ids.size())
+                return false;
+            return NativePanorama.getBuilderResult(mBuilder, result.getNativeObjAddr());
+        }
+    }
+
+    private void destroyBuilder() {
+        synchronized (mBuilderLock) {
+            if (mBuilder != 0)
+                NativePanorama.destroyBuilder(mBuilder);
+            mBuilder = 0;
+            mBuilt.clear();
+            isBuilderStale = false;
+        }
+    }
+
+    private synchronized void done() {
+        mPending--;
+        notifyAll();
+    }
+
+    /**
+     * stages catch their own errors, so the pipeline fails only if it is broken itself
+     */
+    private synchronized void failed(Throwable throwable) {
+        LOG.s(TAG, "sidecar pipeline failed", throwable);
+        isClosed = true;
+        mPending = 0;
+        notifyAll();
+        shutdown();
+    }
+
+    private void shutdown() {
+        mScaleExecutor.shutdown();
+        mFeatureExecutor.shutdown();
+        destroyBuilder();
+    }
+
+    /**
+     * waits until sidecars of all queued pictures are saved
+     */
+    public synchronized void awaitGenerated() throws InterruptedException {
+        while (mPending > 0)
+            wait();
+    }
+
+    /**
+     * makes sidecars of queued pictures and stops the threads
+     */
+    public synchronized void close() {
+        if (isClosed) return;
+        isClosed = true;
+        mCaptures.onComplete();
+    }
+}
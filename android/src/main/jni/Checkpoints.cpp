@@ -0,0 +1,338 @@
+//
+// Created by Adam on 23.04.2019.
+//
+
+#include "Checkpoints.h"
+#include <cstdio>
+#include <dirent.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <opencv2/imgcodecs.hpp>
+#include <android/log.h>
+
+using namespace std;
+using namespace cv;
+using namespace cv::detail;
+
+#define TAG "checkpoints "
+#define LOGD(...)  do{ __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__ ); FILE* f = fopen("/data/data/study.acodexm/files/jlogs.txt","a+"); fprintf(f, __VA_ARGS__); fprintf(f,"\r\n"); fclose(f); }while(0);
+
+static const char *TEMP_PREFIX = "tmp_";
+
+Hasher::Hasher(uint64_t seed) : hash(seed) {
+}
+
+Hasher &Hasher::add(const void *data, size_t size) {
+    auto bytes = static_cast<const uchar *>(data);
+    for (size_t i = 0; i < size; ++i) {
+        hash ^= bytes[i];
+        hash *= 1099511628211ULL;
+    }
+    return *this;
+}
+
+uint64_t Hasher::get() const {
+    return hash;
+}
+
+StoredGainCompensator::StoredGainCompensator(const vector<double> &gains) : gains(gains) {
+}
+
+void StoredGainCompensator::feed(const vector<Point> &corners, const vector<UMat> &images,
+                                 const vector<pair<UMat, uchar> > &masks) {
+}
+
+void StoredGainCompensator::apply(int index, Point corner, InputOutputArray image,
+                                  InputArray mask) {
+    multiply(image, gains[index], image);
+}
+
+static string toHex(uint64_t value) {
+    char buffer[17];
+    snprintf(buffer, sizeof(buffer), "%016llx", (unsigned long long) value);
+    return buffer;
+}
+
+CheckpointStore::CheckpointStore(const string &dir, uint64_t inputsKey) : dir(dir),
+                                                                         prefix(toHex(inputsKey)) {
+    mkdir(dir.c_str(), 0700);
+    removeOtherInputs();
+}
+
+string CheckpointStore::path(const char *stage, uint64_t key, const string &suffix) const {
+    return dir + "/" + prefix + "_" + stage + "_" + toHex(key) + suffix;
+}
+
+bool CheckpointStore::has(const char *stage, uint64_t key) const {
+    struct stat info;
+    return stat(path(stage, key, ".yml.gz").c_str(), &info) == 0;
+}
+
+bool CheckpointStore::begin(const char *stage, uint64_t key, FileStorage &fs) const {
+    string name = prefix + "_" + stage + "_" + toHex(key) + ".yml.gz";
+    return fs.open(dir + "/" + TEMP_PREFIX + name, FileStorage::WRITE | FileStorage::FORMAT_YAML);
+}
+
+void CheckpointStore::commit(const char *stage, uint64_t key, FileStorage &fs) const {
+    fs.release();
+    string name = prefix + "_" + stage + "_" + toHex(key) + ".yml.gz";
+    if (rename((dir + "/" + TEMP_PREFIX + name).c_str(), (dir + "/" + name).c_str()) != 0) {
+        LOGD("Saving %s checkpoint failed", stage)
+        return;
+    }
+    LOGD("Saved %s checkpoint", stage)
+}
+
+bool CheckpointStore::open(const char *stage, uint64_t key, FileStorage &fs) const {
+    if (!has(stage, key))
+        return false;
+    try {
+        return fs.open(path(stage, key, ".yml.gz"), FileStorage::READ);
+    } catch (const Exception &e) {
+        LOGD("Reading %s checkpoint failed: %s", stage, e.what())
+        return false;
+    }
+}
+
+void CheckpointStore::removeOtherInputs() const {
+    DIR *directory = opendir(dir.c_str());
+    if (directory == nullptr)
+        return;
+    string current = prefix + "_";
+    while (dirent *entry = readdir(directory)) {
+        string name = entry->d_name;
+        if (name == "." || name == ".." || name.compare(0, current.size(), current) == 0)
+            continue;
+        unlink((dir + "/" + name).c_str());
+    }
+    closedir(directory);
+}
+
+void CheckpointStore::saveImages(const char *stage, uint64_t key, const char *name,
+                                 const vector<UMat> &images) {
+    for (size_t i = 0; i < images.size(); ++i)
+        imwrite(path(stage, key, "_" + string(name) + to_string(i) + ".png"),
+                images[i].getMat(ACCESS_READ));
+}
+
+bool CheckpointStore::loadImages(const char *stage, uint64_t key, const char *name, int flags,
+                                 size_t amount, vector<UMat> &images) const {
+    vector<UMat> loaded(amount);
+    for (size_t i = 0; i < amount; ++i) {
+        Mat image = imread(path(stage, key, "_" + string(name) + to_string(i) + ".png"), flags);
+        if (image.empty())
+            return false;
+        image.copyTo(loaded[i]);
+    }
+    images.swap(loaded);
+    return true;
+}
+
+void writeFeatures(FileStorage &fs, const ImageFeatures &features) {
+    fs << "img_idx" << features.img_idx << "img_size" << features.img_size;
+    write(fs, "keypoints", features.keypoints);
+    fs << "descriptors" << features.descriptors.getMat(ACCESS_READ);
+}
+
+void readFeatures(const FileNode &node, ImageFeatures &features) {
+    Mat descriptors;
+    node["img_idx"] >> features.img_idx;
+    node["img_size"] >> features.img_size;
+    read(node["keypoints"], features.keypoints);
+    node["descriptors"] >> descriptors;
+    descriptors.copyTo(features.descriptors);
+}
+
+void writeMatches(FileStorage &fs, const MatchesInfo &matches) {
+    fs << "src" << matches.src_img_idx << "dst" << matches.dst_img_idx;
+    write(fs, "matches", matches.matches);
+    fs << "inliers" << matches.inliers_mask << "num_inliers" << matches.num_inliers << "H"
+       << matches.H << "confidence" << matches.confidence;
+}
+
+void readMatches(const FileNode &node, MatchesInfo &matches) {
+    node["src"] >> matches.src_img_idx;
+    node["dst"] >> matches.dst_img_idx;
+    read(node["matches"], matches.matches);
+    node["inliers"] >> matches.inliers_mask;
+    node["num_inliers"] >> matches.num_inliers;
+    node["H"] >> matches.H;
+    node["confidence"] >> matches.confidence;
+}
+
+void writeCamera(FileStorage &fs, const CameraParams &camera) {
+    fs << "focal" << camera.focal << "aspect" << camera.aspect << "ppx" << camera.ppx << "ppy"
+       << camera.ppy << "R" << camera.R << "t" << camera.t;
+}
+
+void readCamera(const FileNode &node, CameraParams &camera) {
+    node["focal"] >> camera.focal;
+    node["aspect"] >> camera.aspect;
+    node["ppx"] >> camera.ppx;
+    node["ppy"] >> camera.ppy;
+    node["R"] >> camera.R;
+    node["t"] >> camera.t;
+}
+
+void CheckpointStore::saveFeatures(uint64_t key, const vector<ImageFeatures> &features) {
+    FileStorage fs;
+    if (!begin("features", key, fs))
+        return;
+    fs << "features" << "[";
+    for (const ImageFeatures &f : features) {
+        fs << "{";
+        writeFeatures(fs, f);
+        fs << "}";
+    }
+    fs << "]";
+    commit("features", key, fs);
+}
+
+bool CheckpointStore::loadFeatures(uint64_t key, size_t amount,
+                                   vector<ImageFeatures> &features) const {
+    FileStorage fs;
+    if (!open("features", key, fs))
+        return false;
+    FileNode nodes = fs["features"];
+    if (amount == 0 || nodes.size() != amount)
+        return false;
+    vector<ImageFeatures> loaded(amount);
+    int i = 0;
+    for (FileNodeIterator it = nodes.begin(); it != nodes.end(); ++it, ++i)
+        readFeatures(*it, loaded[i]);
+    features.swap(loaded);
+    return true;
+}
+
+void CheckpointStore::saveMatches(uint64_t key, const vector<MatchesInfo> &matches) {
+    FileStorage fs;
+    if (!begin("matches", key, fs))
+        return;
+    fs << "matches" << "[";
+    for (const MatchesInfo &m : matches) {
+        fs << "{";
+        writeMatches(fs, m);
+        fs << "}";
+    }
+    fs << "]";
+    commit("matches", key, fs);
+}
+
+bool CheckpointStore::loadMatches(uint64_t key, size_t amount,
+                                  vector<MatchesInfo> &matches) const {
+    FileStorage fs;
+    if (!open("matches", key, fs))
+        return false;
+    FileNode nodes = fs["matches"];
+    if (amount == 0 || nodes.size() != amount)
+        return false;
+    vector<MatchesInfo> loaded(amount);
+    int i = 0;
+    for (FileNodeIterator it = nodes.begin(); it != nodes.end(); ++it, ++i)
+        readMatches(*it, loaded[i]);
+    matches.swap(loaded);
+    return true;
+}
+
+void CheckpointStore::saveCameras(uint64_t key, const vector<int> &indices,
+                                  const vector<CameraParams> &cameras) {
+    FileStorage fs;
+    if (!begin("cameras", key, fs))
+        return;
+    fs << "indices" << indices << "cameras" << "[";
+    for (const CameraParams &camera : cameras) {
+        fs << "{";
+        writeCamera(fs, camera);
+        fs << "}";
+    }
+    fs << "]";
+    commit("cameras", key, fs);
+}
+
+bool CheckpointStore::loadCameras(uint64_t key, vector<int> &indices,
+                                  vector<CameraParams> &cameras) const {
+    FileStorage fs;
+    if (!open("cameras", key, fs))
+        return false;
+    vector<int> loaded_indices;
+    fs["indices"] >> loaded_indices;
+    FileNode nodes = fs["cameras"];
+    if (loaded_indices.empty() || nodes.size() != loaded_indices.size())
+        return false;
+    vector<CameraParams> loaded(loaded_indices.size());
+    int i = 0;
+    for (FileNodeIterator it = nodes.begin(); it != nodes.end(); ++it, ++i)
+        readCamera(*it, loaded[i]);
+    indices.swap(loaded_indices);
+    cameras.swap(loaded);
+    return true;
+}
+
+void CheckpointStore::saveWarped(uint64_t key, const vector<Point> &corners,
+                                 const vector<Size> &sizes, const vector<UMat> &images,
+                                 const vector<UMat> &masks) {
+    FileStorage fs;
+    if (!begin("warped", key, fs))
+        return;
+    saveImages("warped", key, "image", images);
+    saveImages("warped", key, "mask", masks);
+    fs << "corners" << corners << "sizes" << sizes;
+    commit("warped", key, fs);
+}
+
+bool CheckpointStore::loadWarped(uint64_t key, size_t amount, vector<Point> &corners,
+                                 vector<Size> &sizes, vector<UMat> &images,
+                                 vector<UMat> &masks) const {
+    FileStorage fs;
+    if (!open("warped", key, fs))
+        return false;
+    vector<Point> loaded_corners;
+    vector<Size> loaded_sizes;
+    vector<UMat> loaded_images, loaded_masks;
+    fs["corners"] >> loaded_corners;
+    fs["sizes"] >> loaded_sizes;
+    if (amount == 0 || loaded_corners.size() != amount || loaded_sizes.size() != amount ||
+        !loadImages("warped", key, "image", IMREAD_COLOR, amount, loaded_images) ||
+        !loadImages("warped", key, "mask", IMREAD_GRAYSCALE, amount, loaded_masks))
+        return false;
+    corners.swap(loaded_corners);
+    sizes.swap(loaded_sizes);
+    images.swap(loaded_images);
+    masks.swap(loaded_masks);
+    return true;
+}
+
+void CheckpointStore::saveGains(uint64_t key, const vector<double> &gains) {
+    FileStorage fs;
+    if (!begin("gains", key, fs))
+        return;
+    fs << "gains" << gains;
+    commit("gains", key, fs);
+}
+
+bool CheckpointStore::loadGains(uint64_t key, vector<double> &gains) const {
+    FileStorage fs;
+    if (!open("gains", key, fs))
+        return false;
+    fs["gains"] >> gains;
+    return !gains.empty();
+}
+
+void CheckpointStore::saveSeams(uint64_t key, const vector<UMat> &masks) {
+    FileStorage fs;
+    if (!begin("seams", key, fs))
+        return;
+    saveImages("seams", key, "mask", masks);
+    fs << "amount" << static_cast<int>(masks.size());
+    commit("seams", key, fs);
+}
+
+bool CheckpointStore::loadSeams(uint64_t key, size_t amount, vector<UMat> &masks) const {
+    FileStorage fs;
+    if (!open("seams", key, fs))
+        return false;
+    int saved = 0;
+    fs["amount"] >> saved;
+    return amount > 0 && saved == static_cast<int>(amount) &&
+           loadImages("seams", key, "mask", IMREAD_GRAYSCALE, amount, masks);
+}
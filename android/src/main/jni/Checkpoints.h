@@ -0,0 +1,146 @@
+//
+// Created by Adam on 23.04.2019.
+//
+#include <opencv2/opencv.hpp>
+#include <cstdint>
+#include "opencv2/stitching/detail/camera.hpp"
+#include "opencv2/stitching/detail/exposure_compensate.hpp"
+#include "opencv2/stitching/detail/matchers.hpp"
+
+#ifndef PANORAMA360_CHECKPOINTS_H
+#define PANORAMA360_CHECKPOINTS_H
+
+/**
+ * FNV-1a hash of stitching inputs and settings. Key of every stage is the key of the previous
+ * stage mixed with the settings of the stage, so a checkpoint is valid only if all upstream
+ * inputs are the same
+ */
+class Hasher {
+public:
+    explicit Hasher(uint64_t seed = 14695981039346656037ULL);
+
+    Hasher &add(const void *data, size_t size);
+
+    template<class T>
+    Hasher &add(const T &value) {
+        return add(&value, sizeof(T));
+    }
+
+    template<class T>
+    Hasher &add(const std::vector<T> &values) {
+        add(values.size());
+        return values.empty() ? *this : add(values.data(), values.size() * sizeof(T));
+    }
+
+    uint64_t get() const;
+
+private:
+    uint64_t hash;
+};
+
+/** writes features into the current map of the storage **/
+void writeFeatures(cv::FileStorage &fs, const cv::detail::ImageFeatures &features);
+
+void readFeatures(const cv::FileNode &node, cv::detail::ImageFeatures &features);
+
+/** writes matches of an image pair into the current map of the storage **/
+void writeMatches(cv::FileStorage &fs, const cv::detail::MatchesInfo &matches);
+
+void readMatches(const cv::FileNode &node, cv::detail::MatchesInfo &matches);
+
+void writeCamera(cv::FileStorage &fs, const cv::detail::CameraParams &camera);
+
+void readCamera(const cv::FileNode &node, cv::detail::CameraParams &camera);
+
+/**
+ * exposure compensator restored from saved gains, applies them the same way GainCompensator does
+ */
+class StoredGainCompensator : public cv::detail::ExposureCompensator {
+public:
+    explicit StoredGainCompensator(const std::vector<double> &gains);
+
+    void feed(const std::vector<cv::Point> &corners, const std::vector<cv::UMat> &images,
+              const std::vector<std::pair<cv::UMat, uchar> > &masks) override;
+
+    void apply(int index, cv::Point corner, cv::InputOutputArray image,
+               cv::InputArray mask) override;
+
+private:
+    std::vector<double> gains;
+};
+
+/**
+ * results of stitching stages saved in app storage. Every checkpoint is a yml file named after
+ * the stage and its key with optional png images next to it, the yml file is written last so
+ * its presence means that the checkpoint is complete. Only checkpoints of one set of input
+ * images are kept.
+ * Loading fills the output only when the whole checkpoint is read and has the expected amount
+ * of images, outputs are not changed otherwise
+ */
+class CheckpointStore {
+public:
+    /**
+     * @param inputsKey hash of input images, checkpoints of other inputs are removed
+     */
+    CheckpointStore(const std::string &dir, uint64_t inputsKey);
+
+    bool has(const char *stage, uint64_t key) const;
+
+    void saveFeatures(uint64_t key, const std::vector<cv::detail::ImageFeatures> &features);
+
+    bool loadFeatures(uint64_t key, size_t amount,
+                      std::vector<cv::detail::ImageFeatures> &features) const;
+
+    void saveMatches(uint64_t key, const std::vector<cv::detail::MatchesInfo> &matches);
+
+    /** @param amount amount of image pairs, the square of the amount of images **/
+    bool loadMatches(uint64_t key, size_t amount,
+                     std::vector<cv::detail::MatchesInfo> &matches) const;
+
+    /** cameras after adjusting and wave correction with indices of the images they belong to **/
+    void saveCameras(uint64_t key, const std::vector<int> &indices,
+                     const std::vector<cv::detail::CameraParams> &cameras);
+
+    bool loadCameras(uint64_t key, std::vector<int> &indices,
+                     std::vector<cv::detail::CameraParams> &cameras) const;
+
+    /** seam scale warped images and their masks **/
+    void saveWarped(uint64_t key, const std::vector<cv::Point> &corners,
+                    const std::vector<cv::Size> &sizes, const std::vector<cv::UMat> &images,
+                    const std::vector<cv::UMat> &masks);
+
+    bool loadWarped(uint64_t key, size_t amount, std::vector<cv::Point> &corners,
+                    std::vector<cv::Size> &sizes, std::vector<cv::UMat> &images,
+                    std::vector<cv::UMat> &masks) const;
+
+    void saveGains(uint64_t key, const std::vector<double> &gains);
+
+    bool loadGains(uint64_t key, std::vector<double> &gains) const;
+
+    /** warped masks after seam finding **/
+    void saveSeams(uint64_t key, const std::vector<cv::UMat> &masks);
+
+    bool loadSeams(uint64_t key, size_t amount, std::vector<cv::UMat> &masks) const;
+
+private:
+    std::string dir, prefix;
+
+    std::string path(const char *stage, uint64_t key, const std::string &suffix) const;
+
+    void saveImages(const char *stage, uint64_t key, const char *name,
+                    const std::vector<cv::UMat> &images);
+
+    bool loadImages(const char *stage, uint64_t key, const char *name, int flags, size_t amount,
+                    std::vector<cv::UMat> &images) const;
+
+    /** opens a temporary file which is renamed by commit when it is complete **/
+    bool begin(const char *stage, uint64_t key, cv::FileStorage &fs) const;
+
+    void commit(const char *stage, uint64_t key, cv::FileStorage &fs) const;
+
+    bool open(const char *stage, uint64_t key, cv::FileStorage &fs) const;
+
+    void removeOtherInputs() const;
+};
+
+#endif //PANORAMA360_CHECKPOINTS_H
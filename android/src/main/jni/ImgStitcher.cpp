@@ -2,11 +2,17 @@
 // Created by Adam on 23.04.2019.
 //
 #include "ImgStitcher.h"
+#include "TiledCompositor.h"
+#include "Checkpoints.h"
+#include <memory>
 #include <iostream>
 #include "opencv2/core.hpp"
 #include "opencv2/features2d.hpp"
 #include "opencv2/opencv_modules.hpp"
 #include <fstream>
+#include <map>
+#include <set>
+#include <omp.h>
 #include <numeric>
 #include <string>
 #include <opencv2/imgproc.hpp>
@@ -36,31 +42,630 @@ using namespace cv::detail;
 /*************
  * STEPS & PROGRESS VALUES
  ************/
-int FINDER_STEP = 15;
-int MATCHER_STEP = 10;
-int ESTIMATOR_STEP = 5;
-int ADJUSTER_STEP = 5;
-int WRAPPER_STEP = 10;
-int COMPENSATOR_STEP = 20;
-int SEAM_STEP = 10;
-int COMPOSITOR_STEP = 30;
+const int FINDER_STEP = 15;
+const int MATCHER_STEP = 10;
+const int ESTIMATOR_STEP = 5;
+const int ADJUSTER_STEP = 5;
+const int WRAPPER_STEP = 10;
+const int COMPENSATOR_STEP = 20;
+const int SEAM_STEP = 10;
+const int COMPOSITOR_STEP = 30;
 
+/** listener is not called more often than that during a stage, seconds **/
+const double REPORT_INTERVAL = 0.1;
 
-float _progress = 1;
+/** panoramas bigger than that are composed in tiles, megapixels **/
+const double MAX_BLEND_MEGAPIX = 16;
 
-int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
-/** working resolution **/
-    double work_megapix = 0.6;
+/** returned when the session was cancelled during stitching **/
+const int STITCH_CANCELLED = -2;
 
-    /** seam finding resolution **/
-    double seam_megapix = 0.1;
 
-    /** final panorama resolution **/
-    double compose_megapix = -1; // -1 means ignore
+StitchSession::StitchSession() : progress(0), cancelled(false), solveOnly(false),
+                                 listener(nullptr), stage(""),
+                                 stageTotal(0), stageDone(0), startTime(getTickCount()),
+                                 lastReport(0) {
+}
 
-    /** Threshold for two images are from the same panorama confidence. **/
-    float conf_thresh = 1.f;    // frequent crashes when < 0.7
+void StitchSession::setListener(StitchListener *listener) {
+    this->listener = listener;
+    owner = this_thread::get_id();
+    startTime = getTickCount();
+}
+
+void StitchSession::addProgress(float step) {
+    float current = progress.load();
+    while (!progress.compare_exchange_weak(current, current + step));
+}
+
+void StitchSession::beginStage(const char *name, int total) {
+    stage = name;
+    stageTotal = total;
+    stageDone = 0;
+    report(true);
+}
+
+void StitchSession::stepStage(float step) {
+    addProgress(step);
+    stageDone++;
+    report(false);
+}
+
+/**
+ * workers of parallel loops never call the listener, the calling thread takes part in every
+ * loop so the listener is still called during the stage
+ */
+void StitchSession::report(bool force) {
+    if (listener == nullptr || this_thread::get_id() != owner)
+        return;
+    int64 now = getTickCount();
+    if (!force && (now - lastReport) / getTickFrequency() < REPORT_INTERVAL)
+        return;
+    lastReport = now;
+    listener->onProgress(stage, stageDone.load(), stageTotal, getProgress(),
+                         (now - startTime) / getTickFrequency());
+}
+
+int StitchSession::getProgress() const {
+    return (int) progress.load();
+}
+
+void StitchSession::cancel() {
+    cancelled = true;
+}
+
+bool StitchSession::isCancelled() const {
+    return cancelled.load();
+}
+
+void StitchBuffers::release() {
+    full_img.release();
+    img.release();
+    img_warped.release();
+    img_warped_s.release();
+    dilated_mask.release();
+    seam_mask.release();
+    mask.release();
+    mask_warped.release();
+}
+
+void StitchSession::release() {
+    finders.clear();
+    matcher.release();
+    matchingMask.release();
+    for (auto &worker_buffers : buffers)
+        worker_buffers.release();
+    buffers.clear();
+    registration.release();
+    workImages.clear();
+    seamImages.clear();
+    precomputed.clear();
+    seeds.clear();
+    inputKeys.clear();
+}
+
+double megapixScale(Size size, double megapix) {
+    return min(1.0, sqrt(megapix * 1e6 / size.area()));
+}
+
+void makeSidecars(const Mat &image, double workMegapix, double seamMegapix, Mat &work, Mat &seam) {
+    if (workMegapix < 0)
+        work = image;
+    else
+        resize(image, work, Size(), megapixScale(image.size(), workMegapix),
+               megapixScale(image.size(), workMegapix));
+    resize(image, seam, Size(), megapixScale(image.size(), seamMegapix),
+           megapixScale(image.size(), seamMegapix));
+}
+
+/** size resize gives for the scale **/
+static Size scaledSize(Size full, double scale) {
+    return Size(saturate_cast<int>(full.width * scale), saturate_cast<int>(full.height * scale));
+}
+
+/**
+ * sidecar of the image if it has the size resize would give for the scale, otherwise nullptr
+ */
+static const Mat *findSidecar(const vector<Mat> &sidecars, int index, Size full, double scale) {
+    if (index >= static_cast<int>(sidecars.size()) || sidecars[index].empty())
+        return nullptr;
+    const Mat &sidecar = sidecars[index];
+    return sidecar.size() == scaledSize(full, scale) && sidecar.type() == CV_8UC3 ? &sidecar
+                                                                                 : nullptr;
+}
+
+/**
+ * precomputed features of the image if they were found by the same finder in an image of the
+ * given size, otherwise nullptr
+ */
+static const ImageFeatures *findPrecomputed(const vector<PrecomputedFeatures> &precomputed,
+                                            int index, Size work, uint64_t finder_key) {
+    if (index >= static_cast<int>(precomputed.size()) || precomputed[index].empty())
+        return nullptr;
+    const PrecomputedFeatures &found = precomputed[index];
+    return found.finderKey == finder_key && found.features.img_size == work ? &found.features
+                                                                             : nullptr;
+}
+
+PrecomputedFeatures::PrecomputedFeatures() : finderKey(0) {
+}
+
+bool PrecomputedFeatures::empty() const {
+    return features.img_size.area() == 0;
+}
+
+uint64_t finderKey(const StitchConfig &config) {
+    return Hasher().add(config.detector).add(config.features).add(config.orbGridWidth)
+            .add(config.orbGridHeight).get();
+}
+
+Ptr<FeaturesFinder> createFinder(const StitchConfig &config) {
+    if (config.detector == DETECTOR_AKAZE)
+        return makePtr<AKAZEFeaturesFinder>();
+    return makePtr<OrbFeaturesFinder>(Size(config.orbGridWidth, config.orbGridHeight),
+                                      static_cast<size_t>(config.features));
+}
+
+string writePrecomputedFeatures(const Mat &work, const StitchConfig &config) {
+    ImageFeatures features;
+    (*createFinder(config))(work, features);
+    FileStorage fs(".yml", FileStorage::WRITE | FileStorage::MEMORY);
+    fs << "finder_key" << to_string(finderKey(config));
+    writeFeatures(fs, features);
+    return fs.releaseAndGetString();
+}
+
+PrecomputedFeatures readPrecomputedFeatures(const string &yml) {
+    PrecomputedFeatures precomputed;
+    try {
+        FileStorage fs(yml, FileStorage::READ | FileStorage::MEMORY);
+        if (!fs.isOpened())
+            return precomputed;
+        string key;
+        fs["finder_key"] >> key;
+        readFeatures(fs.root(), precomputed.features);
+        precomputed.finderKey = stoull(key);
+    } catch (const exception &e) {
+        LOGD("Precomputed features not read: %s", e.what())
+        return PrecomputedFeatures();
+    }
+    return precomputed;
+}
+
+PartSolution::PartSolution() : finderKey(0), workScale(1) {
+}
+
+bool PartSolution::empty() const {
+    return cameras.empty();
+}
+
+/**
+ * only matched pairs are written, finder key is a string because yml has no 64 bit integers
+ */
+string writePartSolution(const PartSolution &solution) {
+    FileStorage fs(".yml", FileStorage::WRITE | FileStorage::MEMORY);
+    int n = static_cast<int>(solution.cells.size());
+    fs << "finder_key" << to_string(solution.finderKey) << "work_scale" << solution.workScale
+       << "cells" << solution.cells << "features" << "[";
+    for (const ImageFeatures &features : solution.features) {
+        fs << "{";
+        writeFeatures(fs, features);
+        fs << "}";
+    }
+    fs << "]" << "cameras" << "[";
+    for (const CameraParams &camera : solution.cameras) {
+        fs << "{";
+        writeCamera(fs, camera);
+        fs << "}";
+    }
+    fs << "]" << "matches" << "[";
+    for (int i = 0; i < n; ++i) {
+        for (int j = i + 1; j < n; ++j) {
+            const MatchesInfo &info = solution.matches[i * n + j];
+            if (info.matches.empty())
+                continue;
+            fs << "{";
+            writeMatches(fs, info);
+            fs << "}";
+        }
+    }
+    fs << "]";
+    return fs.releaseAndGetString();
+}
+
+PartSolution readPartSolution(const string &yml) {
+    PartSolution solution;
+    try {
+        FileStorage fs(yml, FileStorage::READ | FileStorage::MEMORY);
+        if (!fs.isOpened())
+            return solution;
+        string key;
+        fs["finder_key"] >> key;
+        fs["work_scale"] >> solution.workScale;
+        fs["cells"] >> solution.cells;
+        int n = static_cast<int>(solution.cells.size());
+        FileNode features = fs["features"];
+        solution.features.assign(features.size(), ImageFeatures());
+        int i = 0;
+        for (FileNodeIterator it = features.begin(); it != features.end(); ++it, ++i)
+            readFeatures(*it, solution.features[i]);
+        FileNode cameras = fs["cameras"];
+        solution.cameras.assign(cameras.size(), CameraParams());
+        i = 0;
+        for (FileNodeIterator it = cameras.begin(); it != cameras.end(); ++it, ++i)
+            readCamera(*it, solution.cameras[i]);
+        solution.matches.assign(static_cast<size_t>(n * n), MatchesInfo());
+        FileNode matches = fs["matches"];
+        for (FileNodeIterator it = matches.begin(); it != matches.end(); ++it) {
+            MatchesInfo info;
+            readMatches(*it, info);
+            if (info.src_img_idx < 0 || info.src_img_idx >= n || info.dst_img_idx < 0 ||
+                info.dst_img_idx >= n)
+                continue;
+            solution.matches[info.src_img_idx * n + info.dst_img_idx] = info;
+            solution.matches[info.dst_img_idx * n + info.src_img_idx] = reversedMatches(info);
+        }
+        solution.finderKey = stoull(key);
+        if (static_cast<int>(solution.features.size()) != n ||
+            static_cast<int>(solution.cameras.size()) != n)
+            return PartSolution();
+    } catch (const exception &e) {
+        LOGD("Part solution not read: %s", e.what())
+        return PartSolution();
+    }
+    return solution;
+}
+
+StitchRegistration::StitchRegistration() : warpedImageScale(0), workScale(1), seamScale(1),
+                                           composeMegapix(-1), blendType(Blender::MULTI_BAND),
+                                           blendStrength(5), blendBands(0), tileSize(0),
+                                           workers(1),
+                                           startTime(0) {
+}
+
+bool StitchRegistration::empty() const {
+    return cameras.empty();
+}
+
+void StitchRegistration::release() {
+    images.clear();
+    fullSizes.clear();
+    indices.clear();
+    cameras.clear();
+    corners.clear();
+    sizes.clear();
+    seamMasks.clear();
+    compensator.release();
+    warperCreator.release();
+}
+
+MatchesInfo reversedMatches(const MatchesInfo &info) {
+    MatchesInfo reversed(info);
+    swap(reversed.src_img_idx, reversed.dst_img_idx);
+    if (!reversed.H.empty())
+        reversed.H = reversed.H.inv();
+    for (auto &match : reversed.matches)
+        swap(match.queryIdx, match.trainIdx);
+    return reversed;
+}
+
+/**
+ * matches image pairs allowed by the mask the same way FeaturesMatcher does, but pair by pair
+ * so the session can report progress and stop when it is cancelled
+ */
+void matchPairs(StitchSession &session, const vector<ImageFeatures> &features,
+                vector<MatchesInfo> &pairwise_matches, int workers, float progress_step) {
+    int n = static_cast<int>(features.size());
+    Mat mask = session.matchingMask.empty() ? Mat::ones(n, n, CV_8U)
+                                            : session.matchingMask.getMat(ACCESS_READ).clone();
+    vector<pair<int, int> > near_pairs;
+    for (int i = 0; i < n - 1; ++i)
+        for (int j = i + 1; j < n; ++j)
+            if (!features[i].keypoints.empty() && !features[j].keypoints.empty() &&
+                mask.at<uchar>(i, j))
+                near_pairs.push_back(make_pair(i, j));
+
+    pairwise_matches.clear();
+    pairwise_matches.resize(static_cast<size_t>(n * n));
+    int pairs = static_cast<int>(near_pairs.size());
+    session.beginStage("matching", pairs);
+    if (!session.matcher->isThreadSafe())
+        workers = 1;
+    float pair_step = pairs > 0 ? progress_step / pairs : 0;
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
+    for (int p = 0; p < pairs; ++p) {
+        if (session.isCancelled())
+            continue;
+        int from = near_pairs[p].first;
+        int to = near_pairs[p].second;
+        MatchesInfo &info = pairwise_matches[from * n + to];
+        (*session.matcher)(features[from], features[to], info);
+        info.src_img_idx = from;
+        info.dst_img_idx = to;
+        pairwise_matches[to * n + from] = reversedMatches(info);
+        session.stepStage(pair_step);
+    }
+}
+
+bool areNeighbourCells(int cellA, int cellB, int gridLat) {
+    int row_a = cellA / (gridLat + 1);
+    int col_a = cellA % (gridLat + 1);
+    int row_b = cellB / (gridLat + 1);
+    int col_b = cellB % (gridLat + 1);
+    int col_diff = abs(col_a - col_b);
+    // wrap around at the 360 seam
+    col_diff = min(col_diff, gridLat - col_diff);
+    return abs(row_a - row_b) <= 1 && col_diff <= 1;
+}
+
+/**
+ * builds a mask of image pairs worth matching from the sphere grid cell ids of the images
+ * cell id is calculated as row * (LAT + 1) + column, so only images from the same row or
+ * neighbouring rows with column distance of at most 1 are matched together, columns wrap around
+ * at the 360 seam. If ids are unknown or the neighbour graph is disconnected empty mask is
+ * returned which means that every image will be matched with every other
+ */
+UMat buildMatchingMask(const vector<int> &cellIds, int gridLat) {
+    UMat matchingMask;
+    int n = static_cast<int>(cellIds.size());
+    if (n < 3 || gridLat <= 0)
+        return matchingMask;
+
+    Mat_<uchar> mask = Mat::zeros(n, n, CV_8U);
+    for (int i = 0; i < n; ++i) {
+        for (int j = i + 1; j < n; ++j) {
+            if (areNeighbourCells(cellIds[i], cellIds[j], gridLat)) {
+                mask(i, j) = 1;
+                mask(j, i) = 1;
+            }
+        }
+    }
+
+    // check if every image can be reached from the first one
+    vector<bool> visited(n, false);
+    vector<int> queue;
+    queue.push_back(0);
+    visited[0] = true;
+    for (size_t q = 0; q < queue.size(); ++q) {
+        for (int j = 0; j < n; ++j) {
+            if (mask(queue[q], j) && !visited[j]) {
+                visited[j] = true;
+                queue.push_back(j);
+            }
+        }
+    }
+    if (static_cast<int>(queue.size()) != n) {
+        LOGD("Matching mask disconnected (%d of %d images reachable), matching all pairs",
+             (int) queue.size(), n)
+        return matchingMask;
+    }
+
+    int pairs = countNonZero(mask) / 2;
+    LOGD("Matching mask: %d of %d pairs", pairs, n * (n - 1) / 2)
+    mask.copyTo(matchingMask);
+    return matchingMask;
+}
+
+/**
+ * converts orientation quaternion {x, y, z, w} to rotation matrix, same as Android
+ * SensorManager.getRotationMatrixFromVector does (device to world coordinates)
+ */
+Mat quaternionToMat(const float *q) {
+    double x = q[0], y = q[1], z = q[2], w = q[3];
+    double norm = sqrt(x * x + y * y + z * z + w * w);
+    if (norm > 0) {
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        w /= norm;
+    }
+    Mat_<double> R(3, 3);
+    R(0, 0) = 1 - 2 * (y * y + z * z);
+    R(0, 1) = 2 * (x * y - z * w);
+    R(0, 2) = 2 * (x * z + y * w);
+    R(1, 0) = 2 * (x * y + z * w);
+    R(1, 1) = 1 - 2 * (x * x + z * z);
+    R(1, 2) = 2 * (y * z - x * w);
+    R(2, 0) = 2 * (x * z - y * w);
+    R(2, 1) = 2 * (y * z + x * w);
+    R(2, 2) = 1 - 2 * (x * x + y * y);
+    return R;
+}
+
+/**
+ * sets initial camera parameters from device orientations sampled at shutter time instead of
+ * estimating rotations from homographies. Focal lengths are still estimated from features.
+ * Relation between device axes and picture axes depends on how the picture was saved, so every
+ * in-plane rotation (and transposed sensor matrix) is checked against pairwise homographies and
+ * the one that agrees best is used.
+ * returns false if sensor rotations don't agree with features, cameras should be estimated
+ * the usual way then
+ */
+bool estimateFromOrientations(const vector<ImageFeatures> &features,
+                              const vector<MatchesInfo> &pairwise_matches,
+                              const vector<Mat> &deviceR, float conf_thresh,
+                              vector<CameraParams> &cameras) {
+    /** max mean distance between points mapped by sensor and feature homographies
+     *  relative to image width **/
+    const double max_error = 0.1;
+    int num_images = static_cast<int>(features.size());
+
+    vector<double> focals;
+    estimateFocal(features, pairwise_matches, focals);
+    cameras.assign(num_images, CameraParams());
+    for (int i = 0; i < num_images; ++i) {
+        cameras[i].focal = focals[i];
+        cameras[i].ppx = features[i].img_size.width * 0.5;
+        cameras[i].ppy = features[i].img_size.height * 0.5;
+        cameras[i].aspect = 1;
+    }
+
+    double best_error = DBL_MAX;
+    vector<Mat> best_R;
+    for (int candidate = 0; candidate < 8; ++candidate) {
+        // camera axes (x right, y down, z forward) to device axes, rotated in picture plane
+        double angle = CV_PI / 2 * (candidate % 4);
+        Mat_<double> C = (Mat_<double>(3, 3) <<
+                cos(angle), -sin(angle), 0,
+                -sin(angle), -cos(angle), 0,
+                0, 0, -1);
+        vector<Mat> R(num_images);
+        Mat R0;
+        for (int i = 0; i < num_images; ++i) {
+            Mat device = candidate < 4 ? deviceR[i] : Mat(deviceR[i].t());
+            Mat camera_R = device * C;
+            if (i == 0)
+                R0 = camera_R.t();
+            R[i] = R0 * camera_R;
+        }
+
+        double error = 0;
+        int pairs = 0;
+        for (const MatchesInfo &m : pairwise_matches) {
+            if (m.src_img_idx < 0 || m.dst_img_idx < 0 || m.H.empty() ||
+                m.confidence < conf_thresh)
+                continue;
+            Mat K_src, K_dst;
+            cameras[m.src_img_idx].K().convertTo(K_src, CV_64F);
+            cameras[m.dst_img_idx].K().convertTo(K_dst, CV_64F);
+            Mat_<double> H_pred = K_dst * R[m.dst_img_idx].t() * R[m.src_img_idx] * K_src.inv();
+            Mat_<double> H = m.H;
+            Size sz = features[m.src_img_idx].img_size;
+            for (int p = 0; p < 4; ++p) {
+                Mat_<double> pt = (Mat_<double>(3, 1) <<
+                        sz.width * (p % 2 == 0 ? 0.25 : 0.75),
+                        sz.height * (p < 2 ? 0.25 : 0.75), 1);
+                Mat_<double> a = H_pred * pt;
+                Mat_<double> b = H * pt;
+                double dx = a(0) / a(2) - b(0) / b(2);
+                double dy = a(1) / a(2) - b(1) / b(2);
+                error += sqrt(dx * dx + dy * dy) / sz.width;
+            }
+            pairs++;
+        }
+        if (pairs == 0)
+            return false;
+        error /= 4 * pairs;
+        if (error < best_error) {
+            best_error = error;
+            best_R = R;
+        }
+    }
+    LOGD("Sensor orientations mean error: %f", best_error)
+    if (best_error > max_error)
+        return false;
+
+    for (int i = 0; i < num_images; ++i)
+        best_R[i].convertTo(cameras[i].R, CV_32F);
+    return true;
+}
+
+/**
+ * rotates groups of cameras to each other, cameras of a group keep their relative rotations.
+ * Groups are joined along the most confident match between them starting from the biggest group,
+ * rotation between the matched images is found the same way HomographyBasedEstimator finds it.
+ * returns false if some group has no match with the joined ones
+ */
+static bool joinGroups(const vector<MatchesInfo> &pairwise_matches, const vector<int> &groups,
+                       vector<CameraParams> &cameras) {
+    int num_images = static_cast<int>(groups.size());
+    map<int, int> group_sizes;
+    for (int group : groups)
+        group_sizes[group]++;
+    int first = group_sizes.begin()->first;
+    for (auto &group : group_sizes)
+        if (group.second > group_sizes[first])
+            first = group.first;
+    set<int> joined;
+    joined.insert(first);
+    while (joined.size() < group_sizes.size()) {
+        int from = -1, to = -1;
+        double best_conf = 0;
+        for (int i = 0; i < num_images; ++i) {
+            if (!joined.count(groups[i]))
+                continue;
+            for (int j = 0; j < num_images; ++j) {
+                const MatchesInfo &m = pairwise_matches[i * num_images + j];
+                if (!joined.count(groups[j]) && !m.H.empty() && m.confidence > best_conf) {
+                    from = i;
+                    to = j;
+                    best_conf = m.confidence;
+                }
+            }
+        }
+        if (from < 0)
+            return false;
+        Mat K_from, K_to, R_from, R_to;
+        cameras[from].K().convertTo(K_from, CV_64F);
+        cameras[to].K().convertTo(K_to, CV_64F);
+        cameras[from].R.convertTo(R_from, CV_64F);
+        cameras[to].R.convertTo(R_to, CV_64F);
+        Mat H;
+        pairwise_matches[from * num_images + to].H.convertTo(H, CV_64F);
+        // nearest rotation to the one given by the homography
+        SVD svd(R_from * K_from.inv() * H.inv() * K_to, SVD::FULL_UV);
+        Mat R = svd.u * svd.vt;
+        if (determinant(R) < 0)
+            R *= -1;
+        Mat correction = R * R_to.t();
+        for (int k = 0; k < num_images; ++k) {
+            if (groups[k] != groups[to])
+                continue;
+            Mat R_k;
+            cameras[k].R.convertTo(R_k, CV_64F);
+            Mat(correction * R_k).convertTo(cameras[k].R, CV_32F);
+        }
+        joined.insert(groups[to]);
+    }
+    return true;
+}
+
+/**
+ * sets initial cameras of the images from solutions of their parts, images without a part
+ * start with the median focal length of the parts. Image k of the cameras is image indices[k]
+ * of the input, it is in seed seed_of with camera seed_cameras in the work scale.
+ * returns false if no image has a part or the parts can't be joined
+ */
+static bool estimateFromSeeds(int num_seeds, const vector<int> &seed_of,
+                              const vector<CameraParams> &seed_cameras, const vector<int> &indices,
+                              const vector<ImageFeatures> &features,
+                              const vector<MatchesInfo> &pairwise_matches,
+                              vector<CameraParams> &cameras) {
+    int num_images = static_cast<int>(indices.size());
+    vector<double> focals;
+    for (int k = 0; k < num_images; ++k)
+        if (seed_of[indices[k]] >= 0)
+            focals.push_back(seed_cameras[indices[k]].focal);
+    if (focals.empty())
+        return false;
+    nth_element(focals.begin(), focals.begin() + focals.size() / 2, focals.end());
+    double focal = focals[focals.size() / 2];
+
+    vector<int> groups(num_images);
+    cameras.assign(num_images, CameraParams());
+    for (int k = 0; k < num_images; ++k) {
+        int i = indices[k];
+        if (seed_of[i] >= 0) {
+            cameras[k] = seed_cameras[i];
+            groups[k] = seed_of[i];
+        } else {
+            cameras[k].focal = focal;
+            cameras[k].ppx = features[k].img_size.width * 0.5;
+            cameras[k].ppy = features[k].img_size.height * 0.5;
+            cameras[k].R = Mat::eye(3, 3, CV_32F);
+            groups[k] = num_seeds + k;
+        }
+    }
+    return joinGroups(pairwise_matches, groups, cameras);
+}
 
+/**
+ * refines cameras with ray bundle adjustment, cameras from sensors or part solutions only need
+ * refining
+ */
+static void adjustBundle(const vector<ImageFeatures> &features,
+                         const vector<MatchesInfo> &pairwise_matches, float conf_thresh,
+                         bool is_seeded, vector<CameraParams> &cameras) {
     /** Set refinement mask for bundle adjustment. It looks like 'x_xxx'
         where 'x' means refine respective parameter and '_' means don't
         refine one, and has the following format:
@@ -69,89 +674,216 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
         the respective flag is ignored. **/
     string ba_refine_mask = "xxxxx";
 
+    Ptr<detail::BundleAdjusterBase> adjuster = new detail::BundleAdjusterRay();
+    adjuster->setConfThresh(conf_thresh);
+    Mat_<uchar> refine_mask = Mat::zeros(3, 3, CV_8U);
+    if (ba_refine_mask[0] == 'x') refine_mask(0, 0) = 1;
+    if (ba_refine_mask[1] == 'x') refine_mask(0, 1) = 1;
+    if (ba_refine_mask[2] == 'x') refine_mask(0, 2) = 1;
+    if (ba_refine_mask[3] == 'x') refine_mask(1, 1) = 1;
+    if (ba_refine_mask[4] == 'x') refine_mask(1, 2) = 1;
+    adjuster->setRefinementMask(refine_mask);
+    refine_mask.release();
+    if (is_seeded)
+        adjuster->setTermCriteria(TermCriteria(TermCriteria::COUNT + TermCriteria::EPS, 100, 1e-4));
+    (*adjuster)(features, pairwise_matches, cameras);
+}
+
+static void correctWave(vector<CameraParams> &cameras, WaveCorrectKind kind) {
+    vector<Mat> rmats;
+    for (auto &camera : cameras)
+        rmats.push_back(camera.R);
+    waveCorrect(rmats, kind);
+    for (size_t i = 0; i < cameras.size(); ++i)
+        cameras[i].R = rmats[i];
+}
+
+int mergeSolutions(StitchSession &session, const vector<PartSolution> &parts,
+                   const StitchConfig &config, int gridLat) {
+    session.solution = PartSolution();
+    if (parts.size() < 2)
+        return -1;
+    for (const PartSolution &part : parts) {
+        if (part.empty() || part.finderKey != parts[0].finderKey ||
+            part.workScale != parts[0].workScale) {
+            LOGD("Solutions found with different settings can't be merged")
+            return -1;
+        }
+    }
+    float conf_thresh = static_cast<float>(config.confThresh);
+    int workers = config.threads > 0 ? config.threads : getNumberOfCPUs();
+
+    // images of all parts one after another, matches of every part are kept
+    vector<int> cells, groups, first;
+    vector<ImageFeatures> features;
+    vector<CameraParams> cameras;
+    for (int p = 0; p < static_cast<int>(parts.size()); ++p) {
+        first.push_back(static_cast<int>(cells.size()));
+        cells.insert(cells.end(), parts[p].cells.begin(), parts[p].cells.end());
+        features.insert(features.end(), parts[p].features.begin(), parts[p].features.end());
+        cameras.insert(cameras.end(), parts[p].cameras.begin(), parts[p].cameras.end());
+        groups.insert(groups.end(), parts[p].cells.size(), p);
+    }
+    int n = static_cast<int>(cells.size());
+    for (int i = 0; i < n; ++i)
+        features[i].img_idx = i;
+    Mat_<uchar> mask = Mat::zeros(n, n, CV_8U);
+    for (int i = 0; i < n; ++i)
+        for (int j = 0; j < n; ++j)
+            if (groups[i] != groups[j] && areNeighbourCells(cells[i], cells[j], gridLat))
+                mask(i, j) = 1;
+    mask.copyTo(session.matchingMask);
+    session.matcher = new BestOf2NearestMatcher(false, static_cast<float>(config.matchConf));
+    vector<MatchesInfo> pairwise_matches;
+    matchPairs(session, features, pairwise_matches, workers, MATCHER_STEP);
+    session.matcher->collectGarbage();
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+    for (int p = 0; p < static_cast<int>(parts.size()); ++p) {
+        int m = static_cast<int>(parts[p].cells.size());
+        for (int a = 0; a < m; ++a) {
+            for (int b = 0; b < m; ++b) {
+                if (a == b)
+                    continue;
+                MatchesInfo info = parts[p].matches[a * m + b];
+                info.src_img_idx = first[p] + a;
+                info.dst_img_idx = first[p] + b;
+                pairwise_matches[(first[p] + a) * n + first[p] + b] = info;
+            }
+        }
+    }
+
+    vector<int> indices = leaveBiggestComponent(features, pairwise_matches, conf_thresh);
+    vector<int> kept_cells, kept_groups;
+    vector<CameraParams> kept_cameras;
+    for (int i : indices) {
+        kept_cells.push_back(cells[i]);
+        kept_groups.push_back(groups[i]);
+        kept_cameras.push_back(cameras[i]);
+    }
+    if (set<int>(kept_groups.begin(), kept_groups.end()).size() < parts.size()) {
+        LOGD("Parts do not overlap, %d of %d images left", (int) indices.size(), n)
+        return -1;
+    }
+    if (!joinGroups(pairwise_matches, kept_groups, kept_cameras))
+        return -1;
+    session.beginStage("adjusting", 1);
+    adjustBundle(features, pairwise_matches, conf_thresh, true, kept_cameras);
+    if (config.waveCorrect != WAVE_NONE)
+        correctWave(kept_cameras, config.waveCorrect == WAVE_VERTICAL ? detail::WAVE_CORRECT_VERT
+                                                                      : detail::WAVE_CORRECT_HORIZ);
+    session.solution.cells = kept_cells;
+    session.solution.features = features;
+    session.solution.matches = pairwise_matches;
+    session.solution.cameras = kept_cameras;
+    session.solution.finderKey = parts[0].finderKey;
+    session.solution.workScale = parts[0].workScale;
+    LOGD("Merged %d parts, %d of %d images", (int) parts.size(), (int) indices.size(), n)
+    return 0;
+}
+
+/**
+ * blends seam scale warped images into a small panorama, images are compensated with the gains
+ * found for the final panorama so the preview looks the same only in lower resolution
+ */
+void blendPreview(const vector<UMat> &images_warped, const vector<UMat> &masks_warped,
+                  const vector<Point> &corners, const vector<Size> &sizes,
+                  const Ptr<ExposureCompensator> &compensator, float blend_strength,
+                  Mat &preview) {
+    Size dst_sz = resultRoi(corners, sizes).size();
+    float blend_width = sqrt(static_cast<float>(dst_sz.area())) * blend_strength / 100.f;
+    Ptr<Blender> blender;
+    if (blend_width < 1.f) {
+        blender = Blender::createDefault(Blender::NO, false);
+    } else {
+        blender = new MultiBandBlender(false, static_cast<int>(
+                ceil(log(blend_width) / log(2.)) - 1.));
+    }
+    blender->prepare(corners, sizes);
+    Mat img_warped, img_warped_s;
+    for (size_t i = 0; i < images_warped.size(); ++i) {
+        images_warped[i].copyTo(img_warped);
+        compensator->apply(static_cast<int>(i), corners[i], img_warped, masks_warped[i]);
+        img_warped.convertTo(img_warped_s, CV_16S);
+        blender->feed(img_warped_s, masks_warped[i], corners[i]);
+    }
+    Mat blended, blended_mask;
+    blender->blend(blended, blended_mask);
+    blended.convertTo(preview, CV_8U);
+}
+
+int registerImages(StitchSession &session, vector<Mat> &imagesArg, const StitchConfig &config,
+                   vector<int> &cellIds, int gridLat, vector<float> &orientations, Mat *preview) {
+/** working resolution **/
+    double work_megapix = config.workMegapix;
+
+    /** seam finding resolution **/
+    double seam_megapix = config.seamMegapix;
+
+    /** final panorama resolution **/
+    double compose_megapix = config.composeMegapix; // -1 means ignore
+
+    /** Threshold for two images are from the same panorama confidence. **/
+    float conf_thresh = static_cast<float>(config.confThresh);    // frequent crashes when < 0.7
+
     /** if we should keep horizon straight **/
-    bool do_wave_correct = true;
+    bool do_wave_correct = config.waveCorrect != WAVE_NONE;
 
-    WaveCorrectKind wave_correct = detail::WAVE_CORRECT_HORIZ;
+    WaveCorrectKind wave_correct = config.waveCorrect == WAVE_VERTICAL
+                                   ? detail::WAVE_CORRECT_VERT : detail::WAVE_CORRECT_HORIZ;
 
     /** Warp surface type.
-    plane|cylindrical|spherical
+    plane|cylindrical|spherical|fisheye|stereographic
     **/
-    string warp_type;
+    string warp_type = config.warperName();
 
     /** Exposure compensation method. **/
-    int expos_comp_type;
-    string exp_comp_type;
+    int expos_comp_type = config.exposureCompensator;
+    string exp_comp_type = config.exposureName();
 
     /** Confidence for feature matching step. **/
-    float match_conf = 0.25f;
+    float match_conf = static_cast<float>(config.matchConf);
 
     /** Seam estimation method.
     dp_** is WAY faster!!!
     **/
-    string seam_find_type;
+    string seam_find_type = config.seamFinderName();
 
     /** Blending method. **/
-    int blend_type = Blender::MULTI_BAND;
+    int blend_type = config.blender;
 
     /** Blending strength from [0,100] range. **/
-    float blend_strength = 5;
+    float blend_strength = static_cast<float>(config.blendStrength);
 
     /** Detector type orb or akaze **/
-    string detector;
+    string detector = config.detectorName();
     /** orb featureFinder parameters
     * highly important for performance and matching features
     *
     **/
-    Size ORB_GRID_SIZE; // ORIGINAL Size(3,1);
-    size_t ORB_FEATURES_N; // ORIGINAL 1500;
+    Size ORB_GRID_SIZE(config.orbGridWidth, config.orbGridHeight); // ORIGINAL Size(3,1);
+    auto ORB_FEATURES_N = static_cast<size_t>(config.features); // ORIGINAL 1500;
 
     /** loaded images loaded **/
     int img_amount;
 
+    /** amount of images processed at the same time in per image stages
+    defaults to the number of cores
+    **/
+    int workers = config.threads > 0 ? config.threads : getNumberOfCPUs();
+
+    /** size of tiles in tiled compositing
+    0 means the whole panorama is blended at once, -1 that it is chosen from panorama size
+    **/
+    int tile_size = config.tileSize;
 
-    /** mask used to know what images should we match together **/
-    static UMat _matchingMask;
 
     /** indices of used images **/
     vector<int> _indices;
 
     float _progressStep;
     /** current progression of the stitching **/
-    _progress = 0;
-
-    string s;
-    s = accumulate(begin(params), end(params), s);
-    LOGD("stitchImg params: %s", s.c_str())
-    string mode = string(params[0]);
-    detector = "orb";
-    warp_type = "spherical";
-    seam_find_type = "dp_color";
-    exp_comp_type = "no";
-    ORB_GRID_SIZE = Size(3, 1);
-    ORB_FEATURES_N = 1500;
-    if (mode == "multithreaded") {
-        warp_type = "cylindrical";
-    } else if (mode == "test") {
-        detector = string(params[1]);
-        warp_type = string(params[2]);
-        seam_find_type = string(params[3]);
-        exp_comp_type = string(params[4]);
-    } else if (mode == "part") {
-        ORB_FEATURES_N = 1000;
-    } else if (mode == "panorama") {
-        warp_type = "cylindrical";
-    } else if (mode == "picture_360") {
-        compose_megapix = 0.7;
-    }
-    // set expos_comp_type
-    if (exp_comp_type == "gain") {
-        expos_comp_type = ExposureCompensator::GAIN;
-    } else if (exp_comp_type == "gain_blocks") {
-        expos_comp_type = ExposureCompensator::GAIN_BLOCKS;
-    } else {
-        expos_comp_type = ExposureCompensator::NO;
-    }
+    session.progress = 0;
 
 #if ENABLE_LOG
     LOGD("Compose panorama...");
@@ -162,24 +894,58 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
 
     // Check if have enough images
     img_amount = static_cast<int>(imagesArg.size());
+    bool has_orientations = static_cast<int>(orientations.size()) == 4 * img_amount;
+    bool has_cell_ids = static_cast<int>(cellIds.size()) == img_amount;
     if (img_amount < 2) {
         LOGD("Not enough images...");
         return -1;
-    } else if (img_amount > 16) {
-        compose_megapix = 0.7;
-        LOGD("over 16 images, lowering quality");
     }
-    LOGD("All images: %d, MODE:%s, detector_type=%s, wrap_type=%s, seam_find_type=%s, expos_comp_type=%s, ORB_FEATURES_N=%d, ORB_GRID_SIZE=%d%d",
-         img_amount, mode.c_str(), detector.c_str(), warp_type.c_str(), seam_find_type.c_str(),
+    LOGD("All images: %d, detector_type=%s, wrap_type=%s, seam_find_type=%s, expos_comp_type=%s, ORB_FEATURES_N=%d, ORB_GRID_SIZE=%d%d, workers=%d",
+         img_amount, detector.c_str(), warp_type.c_str(), seam_find_type.c_str(),
          exp_comp_type.c_str(), (int) ORB_FEATURES_N, (int) ORB_GRID_SIZE.width,
-         (int) ORB_GRID_SIZE.height)
-    LOGP("All images: %d: MODE:%s: detector_type:%s:  wrap_type:%s: seam_find_type=%s: expos_comp_type=%s: ORB_FEATURES_N:%d: ORB_GRID_SIZE:%d%d",
-         img_amount, mode.c_str(), detector.c_str(), warp_type.c_str(), seam_find_type.c_str(),
+         (int) ORB_GRID_SIZE.height, workers)
+    LOGP("All images: %d: detector_type:%s:  wrap_type:%s: seam_find_type=%s: expos_comp_type=%s: ORB_FEATURES_N:%d: ORB_GRID_SIZE:%d%d: workers:%d",
+         img_amount, detector.c_str(), warp_type.c_str(), seam_find_type.c_str(),
          exp_comp_type.c_str(), (int) ORB_FEATURES_N, (int) ORB_GRID_SIZE.width,
-         (int) ORB_GRID_SIZE.height)
-
-    double work_scale = 1, seam_scale = 1, compose_scale = 1;
-    bool is_work_scale_set = false, is_seam_scale_set = false, is_compose_scale_set = false;
+         (int) ORB_GRID_SIZE.height, workers)
+
+    double work_scale = 1, seam_scale = 1;
+    bool is_work_scale_set = false, is_seam_scale_set = false;
+
+    // ================ Checkpoints... ==================
+    // key of every stage depends on the inputs and on the settings of the stage and all stages
+    // before it, the deepest stage with a saved result is resumed
+    unique_ptr<CheckpointStore> checkpoints;
+    uint64_t features_key = 0, matches_key = 0, cameras_key = 0, warped_key = 0, seams_key = 0;
+    bool has_input_keys = !session.checkpointDir.empty() &&
+                          static_cast<int>(session.inputKeys.size()) == 4 * img_amount;
+    if (config.useCheckpoints() && !has_input_keys)
+        LOGD("Checkpoints are not used, images have no keys")
+    if (config.useCheckpoints() && has_input_keys) {
+        // images are keyed on their records in the session pack, pixels are not hashed
+        uint64_t inputs_key = Hasher().add(session.inputKeys).add(cellIds).add(gridLat)
+                .add(orientations).get();
+        checkpoints.reset(new CheckpointStore(session.checkpointDir, inputs_key));
+        features_key = Hasher(inputs_key).add(config.detector).add(config.features)
+                .add(config.orbGridWidth).add(config.orbGridHeight).add(config.workMegapix).get();
+        matches_key = Hasher(features_key).add(config.matchConf).get();
+        cameras_key = Hasher(matches_key).add(config.confThresh).add(config.waveCorrect).get();
+        warped_key = Hasher(cameras_key).add(config.warper).add(config.seamMegapix).get();
+        seams_key = Hasher(warped_key).add(config.seamFinder).get();
+    }
+    vector<ImageFeatures> features(img_amount);
+    vector<MatchesInfo> pairwise_matches;
+    vector<CameraParams> cameras;
+    bool has_cameras = checkpoints && checkpoints->loadCameras(cameras_key, _indices, cameras);
+    bool has_matches = !has_cameras && checkpoints &&
+                       checkpoints->loadFeatures(features_key, img_amount, features) &&
+                       checkpoints->loadMatches(matches_key, img_amount * img_amount,
+                                                pairwise_matches);
+    bool has_features = has_cameras || has_matches ||
+                        (checkpoints &&
+                         checkpoints->loadFeatures(features_key, img_amount, features));
+    LOGD("Checkpoints, cameras: %d, matches: %d, features: %d", has_cameras, has_matches,
+         has_features)
 
     // ================ Finding features... ==================
 #if ENABLE_LOG
@@ -187,63 +953,146 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
     int64 t = getTickCount();
 #endif
     _progressStep = ((float) FINDER_STEP / (float) img_amount);
-    Ptr<FeaturesFinder> finder;
-    if (detector == "orb") {
-        finder = new OrbFeaturesFinder(ORB_GRID_SIZE, ORB_FEATURES_N);
-    } else if (detector == "akaze") {
-        finder = new AKAZEFeaturesFinder();
-    } else {
-        finder = new OrbFeaturesFinder(ORB_GRID_SIZE, ORB_FEATURES_N);
-    }
+    session.beginStage("features", img_amount);
+    session.finders.clear();
+    for (int w = 0; w < workers; ++w)
+        session.finders.push_back(createFinder(config));
+    uint64_t finder_key = finderKey(config);
+    session.buffers.resize(static_cast<size_t>(workers));
 
-    Mat full_img, img;
-    vector<ImageFeatures> features(img_amount);
     vector<Mat> images(img_amount);
     vector<Size> full_img_sizes(img_amount);
     double seam_work_aspect = 1;
 
+    // scales are calculated from the first image
+    if (imagesArg[0].empty()) {
+        LOGD("Image empty or corrupted");
+        return -1;
+    }
+    if (work_megapix < 0) {
+        work_scale = 1;
+    } else {
+        work_scale = megapixScale(imagesArg[0].size(), work_megapix);
+    }
+    is_work_scale_set = true;
+    seam_scale = megapixScale(imagesArg[0].size(), seam_megapix);
+    seam_work_aspect = seam_scale / work_scale;
+    is_seam_scale_set = true;
+
+    // images of parts take their features from the solutions of the parts so matches found by
+    // the parts stay valid, copies of cameras of the parts are rescaled to the work scale so
+    // the seeds stay the same for the next registration
+    vector<int> seed_of(img_amount, -1), seed_index(img_amount, -1);
+    vector<CameraParams> seed_cameras(img_amount);
+    vector<bool> seeded_features(img_amount, false);
+    bool is_seeded = !has_cameras && !session.seeds.empty() && has_cell_ids;
+    if (is_seeded) {
+        map<int, int> cell_index;
+        for (int i = 0; i < img_amount; ++i)
+            cell_index[cellIds[i]] = i;
+        session.precomputed.resize(static_cast<size_t>(img_amount));
+        for (int s = 0; s < static_cast<int>(session.seeds.size()); ++s) {
+            const PartSolution &seed = session.seeds[s];
+            double seed_work_aspect = work_scale / seed.workScale;
+            for (int k = 0; k < static_cast<int>(seed.cells.size()); ++k) {
+                auto found = cell_index.find(seed.cells[k]);
+                if (found == cell_index.end())
+                    continue;
+                int i = found->second;
+                seed_of[i] = s;
+                seed_index[i] = k;
+                CameraParams &camera = seed_cameras[i];
+                camera = seed.cameras[k];
+                camera.R = seed.cameras[k].R.clone();
+                camera.t = seed.cameras[k].t.clone();
+                camera.focal *= seed_work_aspect;
+                camera.ppx *= seed_work_aspect;
+                camera.ppy *= seed_work_aspect;
+                Size work_size = work_megapix < 0 ? imagesArg[i].size()
+                                                  : scaledSize(imagesArg[i].size(), work_scale);
+                if (!has_features && seed.finderKey == finder_key &&
+                    seed.features[k].img_size == work_size) {
+                    session.precomputed[i].finderKey = seed.finderKey;
+                    session.precomputed[i].features = seed.features[k];
+                    seeded_features[i] = true;
+                }
+            }
+        }
+    }
+
+    atomic<bool> is_corrupted(false);
+    atomic<int> sidecars_used(0);
+    atomic<int> precomputed_used(0);
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
     for (int i = 0; i < img_amount; ++i) {
+        if (session.isCancelled() || is_corrupted)
+            continue;
+        int worker = omp_get_thread_num();
+        Mat &full_img = session.buffers[worker].full_img, &img = session.buffers[worker].img;
         full_img = imagesArg[i];
         full_img_sizes[i] = full_img.size();
 
         if (full_img.empty()) {
             LOGD("Image empty or corrupted");
-            return -1;
+            is_corrupted = true;
+            continue;
         }
-        if (work_megapix < 0) {
-            img = full_img;
-            work_scale = 1;
-            is_work_scale_set = true;
-        } else {
-            if (!is_work_scale_set) {
-                work_scale = min(1.0, sqrt(work_megapix * 1e6 / full_img.size().area()));
-                is_work_scale_set = true;
+        // features of a saved checkpoint only need seam scale images
+        if (!has_features) {
+            Size work_size = work_megapix < 0 ? full_img.size()
+                                              : scaledSize(full_img.size(), work_scale);
+            const ImageFeatures *found = findPrecomputed(session.precomputed, i, work_size,
+                                                         finder_key);
+            const Mat *work_sidecar = findSidecar(session.workImages, i, full_img.size(), work_scale);
+            if (found != nullptr) {
+                features[i] = *found;
+                ++precomputed_used;
+            } else {
+                if (work_megapix < 0)
+                    img = full_img;
+                else if (work_sidecar != nullptr)
+                    img = *work_sidecar;
+                else
+                    resize(full_img, img, Size(), work_scale, work_scale);
+                (*session.finders[worker])(img, features[i]);
             }
-            resize(full_img, img, Size(), work_scale, work_scale);
+            features[i].img_idx = i;
+            LOGD("Features in image #%d: %f", i + 1, ((double) features[i].keypoints.size()));
         }
-        if (!is_seam_scale_set) {
-            seam_scale = min(1.0, sqrt(seam_megapix * 1e6 / full_img.size().area()));
-            seam_work_aspect = seam_scale / work_scale;
-            is_seam_scale_set = true;
-        }
-
-        (*finder)(img, features[i]);
-        features[i].img_idx = i;
-        LOGD("Features in image #%d: %f", i + 1, ((double) features[i].keypoints.size()));
 
-        resize(full_img, img, Size(), seam_scale, seam_scale);
-        images[i] = img.clone();
+        // solving stops before warping
+        const Mat *seam_sidecar = findSidecar(session.seamImages, i, full_img.size(), seam_scale);
+        if (seam_sidecar != nullptr && !session.solveOnly) {
+            images[i] = seam_sidecar->clone();
+            ++sidecars_used;
+        } else if (!session.solveOnly) {
+            resize(full_img, img, Size(), seam_scale, seam_scale);
+            images[i] = img.clone();
+        }
+        full_img.release();
+        img.release();
 
-        _progress += _progressStep;
+        session.stepStage(_progressStep);
     }
+    if (is_corrupted)
+        return -1;
+    LOGD("Seam scale sidecars used: %d of %d, precomputed features used: %d", sidecars_used.load(),
+         img_amount, precomputed_used.load())
+    session.workImages.clear();
+    session.seamImages.clear();
+    session.precomputed.clear();
 
-    finder->collectGarbage();
-    full_img.release();
-    img.release();
+    for (auto &finder : session.finders)
+        finder->collectGarbage();
+    if (checkpoints && !has_features && !session.isCancelled())
+        checkpoints->saveFeatures(features_key, features);
 
     LOGD("Finding features, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Finding features, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
 
     // ================ Pairwise matching... ==================
 #if ENABLE_LOG
@@ -252,19 +1101,56 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
 #endif
 
 
-    vector<MatchesInfo> pairwise_matches;
-    BestOf2NearestMatcher matcher(false, match_conf);
-    matcher(features, pairwise_matches, _matchingMask);
-    matcher.collectGarbage();
-    _progress += MATCHER_STEP;
+    if (has_cameras || has_matches) {
+        session.addProgress(MATCHER_STEP);
+    } else {
+        if (has_cell_ids)
+            session.matchingMask = buildMatchingMask(cellIds, gridLat);
+        else
+            session.matchingMask.release();
+        // pairs matched by their part are not matched again
+        if (is_seeded) {
+            Mat mask = session.matchingMask.empty() ? Mat::ones(img_amount, img_amount, CV_8U)
+                                                    : session.matchingMask.getMat(ACCESS_READ).clone();
+            for (int i = 0; i < img_amount; ++i)
+                for (int j = 0; j < img_amount; ++j)
+                    if (seeded_features[i] && seeded_features[j] && seed_of[i] == seed_of[j])
+                        mask.at<uchar>(i, j) = 0;
+            mask.copyTo(session.matchingMask);
+        }
+
+        session.matcher = new BestOf2NearestMatcher(false, match_conf);
+        matchPairs(session, features, pairwise_matches, workers, MATCHER_STEP);
+        session.matcher->collectGarbage();
+        if (session.isCancelled())
+            return STITCH_CANCELLED;
+        int reused = 0;
+        for (int i = 0; is_seeded && i < img_amount; ++i) {
+            for (int j = 0; j < img_amount; ++j) {
+                if (i == j || !seeded_features[i] || !seeded_features[j] || seed_of[i] != seed_of[j])
+                    continue;
+                const PartSolution &seed = session.seeds[seed_of[i]];
+                int m = static_cast<int>(seed.cells.size());
+                MatchesInfo &info = pairwise_matches[i * img_amount + j];
+                info = seed.matches[seed_index[i] * m + seed_index[j]];
+                info.src_img_idx = i;
+                info.dst_img_idx = j;
+                ++reused;
+            }
+        }
+        LOGD("Matches reused from parts: %d", reused / 2)
+        if (checkpoints)
+            checkpoints->saveMatches(matches_key, pairwise_matches);
+    }
 
     LOGD("Pairwise matching, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Pairwise matching, time: %f: %f: progress:%f",
          ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
 
-    // Leave only images we are sure are from the same panorama
-    _indices = leaveBiggestComponent(features, pairwise_matches, conf_thresh);
+    // Leave only images we are sure are from the same panorama, saved cameras have their indices
+    if (!has_cameras)
+        _indices = leaveBiggestComponent(features, pairwise_matches, conf_thresh);
 
 
     vector<Mat> img_subset;
@@ -291,49 +1177,63 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
     }
     LOGP("Left images: %d", img_amount);
 
-    // ================ estimate homography... ==================
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+
+    if (has_cameras) {
+        session.addProgress(ESTIMATOR_STEP + ADJUSTER_STEP);
+    } else {
+        // ================ estimate homography... ==================
 #if ENABLE_LOG
-    LOGD("Estimate homography");
-    t = getTickCount();
+        LOGD("Estimate homography");
+        t = getTickCount();
 #endif
-    HomographyBasedEstimator estimator;
-    vector<CameraParams> cameras;
-    estimator(features, pairwise_matches, cameras);
-    LOGD("Estimate homography, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
-    LOGP("Estimate homography, time: %f: %f: progress:%f",
-         ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+        session.beginStage("estimation", 1);
+        bool is_part_seeded = is_seeded &&
+                              estimateFromSeeds(static_cast<int>(session.seeds.size()), seed_of,
+                                                seed_cameras, _indices,
+                                                features, pairwise_matches, cameras);
+        LOGD("Cameras seeded from parts: %d", is_part_seeded)
+        bool is_sensor_seeded = false;
+        if (!is_part_seeded && has_orientations) {
+            vector<Mat> deviceR;
+            for (int _indice : _indices)
+                deviceR.push_back(quaternionToMat(&orientations[4 * _indice]));
+            is_sensor_seeded = estimateFromOrientations(features, pairwise_matches, deviceR,
+                                                        conf_thresh, cameras);
+            LOGD("Cameras seeded from sensor orientations: %d", is_sensor_seeded)
+        }
+        if (!is_part_seeded && !is_sensor_seeded) {
+            HomographyBasedEstimator estimator;
+            estimator(features, pairwise_matches, cameras);
+        }
+        LOGD("Estimate homography, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
+        LOGP("Estimate homography, time: %f: %f: progress:%f",
+             ((getTickCount() - t) / getTickFrequency()),
+             ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
 
 
-    for (auto &camera : cameras) {
-        Mat R;
-        camera.R.convertTo(R, CV_32F);
-        camera.R = R;
-        R.release();
-    }
-    _progress += ESTIMATOR_STEP;
+        for (auto &camera : cameras) {
+            Mat R;
+            camera.R.convertTo(R, CV_32F);
+            camera.R = R;
+            R.release();
+        }
+        session.addProgress(ESTIMATOR_STEP);
 
-    // ================ adjuster... ==================
-    Ptr<detail::BundleAdjusterBase> adjuster = new detail::BundleAdjusterRay();
-    adjuster->setConfThresh(conf_thresh);
-    Mat_<uchar> refine_mask = Mat::zeros(3, 3, CV_8U);
-    if (ba_refine_mask[0] == 'x') refine_mask(0, 0) = 1;
-    if (ba_refine_mask[1] == 'x') refine_mask(0, 1) = 1;
-    if (ba_refine_mask[2] == 'x') refine_mask(0, 2) = 1;
-    if (ba_refine_mask[3] == 'x') refine_mask(1, 1) = 1;
-    if (ba_refine_mask[4] == 'x') refine_mask(1, 2) = 1;
-    adjuster->setRefinementMask(refine_mask);
-    refine_mask.release();
+        // ================ adjuster... ==================
 #if ENABLE_LOG
-    LOGD("Adjusting bundle");
-    t = getTickCount();
+        LOGD("Adjusting bundle");
+        t = getTickCount();
 #endif
-    (*adjuster)(features, pairwise_matches, cameras);
-    _progress += ADJUSTER_STEP;
-    LOGD("Adjusting bundle, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
-    LOGP("Adjusting bundle, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
-
+        session.beginStage("adjusting", 1);
+        adjustBundle(features, pairwise_matches, conf_thresh, is_part_seeded || is_sensor_seeded,
+                     cameras);
+        session.addProgress(ADJUSTER_STEP);
+        LOGD("Adjusting bundle, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
+        LOGP("Adjusting bundle, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
+             ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+    }
 
     // Find median focal length
 #if ENABLE_LOG
@@ -358,17 +1258,34 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
          " sec");
     LOGP("Find median focal lengths, time: %f: %f: progress:%f",
          ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
-
-    if (do_wave_correct) {
-        vector<Mat> rmats;
-        for (auto &camera : cameras)
-            rmats.push_back(camera.R);
-        waveCorrect(rmats, wave_correct);
-        for (size_t i = 0; i < cameras.size(); ++i)
-            cameras[i].R = rmats[i];
-        rmats.clear();
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+
+    if (do_wave_correct && !has_cameras)
+        correctWave(cameras, wave_correct);
+    if (checkpoints && !has_cameras)
+        checkpoints->saveCameras(cameras_key, _indices, cameras);
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+
+    if (session.solveOnly) {
+        // solution without cells can't be seeded
+        if (!has_cell_ids)
+            return -1;
+        PartSolution &solution = session.solution;
+        solution = PartSolution();
+        for (int _indice : _indices)
+            solution.cells.push_back(cellIds[_indice]);
+        solution.features = features;
+        solution.matches = pairwise_matches;
+        solution.cameras = cameras;
+        solution.finderKey = finder_key;
+        solution.workScale = work_scale;
+        session.finders.clear();
+        session.matcher.release();
+        LOGD("Solved cameras of %d images", img_amount)
+        return 0;
     }
+
         // ================ Warping images... ==================
 
 #if ENABLE_LOG
@@ -411,10 +1328,23 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
         return 1;
     }
 
-    Ptr<RotationWarper> warper = warper_creator->create(
-            static_cast<float>(warped_image_scale * seam_work_aspect));
+    // warpers keep state of the current image so every worker needs its own one
+    vector<Ptr<RotationWarper> > warpers;
+    for (int w = 0; w < workers; ++w)
+        warpers.push_back(warper_creator->create(
+                static_cast<float>(warped_image_scale * seam_work_aspect)));
+    vector<UMat> images_warped_f(img_amount);
     _progressStep = (float) WRAPPER_STEP / (float) img_amount;
+    session.beginStage("warping", img_amount);
+    bool has_warped = checkpoints && checkpoints->loadWarped(warped_key, img_amount, corners,
+                                                             sizes, images_warped, masks_warped);
+    if (has_warped)
+        session.addProgress(WRAPPER_STEP);
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
     for (int i = 0; i < img_amount; ++i) {
+        if (session.isCancelled() || has_warped)
+            continue;
+        RotationWarper &warper = *warpers[omp_get_thread_num()];
         Mat_<float> K;
         cameras[i].K().convertTo(K, CV_32F);
         float swa = (float) seam_work_aspect;
@@ -423,42 +1353,79 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
         K(1, 1) *= swa;
         K(1, 2) *= swa;
 
-        corners[i] = warper->warp(images[i], K, cameras[i].R, INTER_LINEAR, BORDER_REFLECT,
-                                  images_warped[i]);
+        corners[i] = warper.warp(images[i], K, cameras[i].R, INTER_LINEAR, BORDER_REFLECT,
+                                 images_warped[i]);
         sizes[i] = images_warped[i].size();
 
-        warper->warp(masks[i], K, cameras[i].R, INTER_NEAREST, BORDER_CONSTANT, masks_warped[i]);
-        _progress += _progressStep;
+        warper.warp(masks[i], K, cameras[i].R, INTER_NEAREST, BORDER_CONSTANT, masks_warped[i]);
+        session.stepStage(_progressStep);
     }
-
-    vector<UMat> images_warped_f(img_amount);
-    for (int i = 0; i < img_amount; ++i)
-        images_warped[i].convertTo(images_warped_f[i], CV_32F);
-
+    if (checkpoints && !has_warped && !session.isCancelled())
+        checkpoints->saveWarped(warped_key, corners, sizes, images_warped, masks_warped);
 
     LOGD("Warping images, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Warping images, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+
+    // Multi band blender keeps the whole panorama pyramid in memory, big panoramas are
+    // composed tile by tile instead of lowering their quality
+    if (tile_size < 0) {
+        tile_size = 0;
+        double compose_seam_aspect = 1 / seam_scale;
+        if (compose_megapix > 0)
+            compose_seam_aspect = min(1.0, sqrt(compose_megapix * 1e6 /
+                                                imagesArg[0].size().area())) / seam_scale;
+        double compose_area = resultRoi(corners, sizes).area() * compose_seam_aspect *
+                              compose_seam_aspect;
+        if (img_amount > 16 || compose_area > MAX_BLEND_MEGAPIX * 1e6) {
+            tile_size = DEFAULT_TILE_SIZE;
+            LOGD("%d images, %f megapixels, compositing in tiles", img_amount, compose_area / 1e6)
+        }
+    }
+    if (tile_size > 0 && expos_comp_type == ExposureCompensator::GAIN_BLOCKS) {
+        // block gains are calculated for whole images and can't be applied to their parts
+        expos_comp_type = ExposureCompensator::GAIN;
+        LOGD("tiled compositing, using gain exposure compensation");
+    }
 
     // ================ Compensate exposure... ==================
 #if ENABLE_LOG
     LOGD("Compensate exposure");
     t = getTickCount();
 #endif
-    Ptr<ExposureCompensator> compensator = ExposureCompensator::createDefault(expos_comp_type);
-
-    compensator->feed(corners, images_warped, masks_warped);
-    _progress += COMPENSATOR_STEP;
+    session.beginStage("exposure", 1);
+    Ptr<ExposureCompensator> compensator;
+    // only gains of GainCompensator can be read, block gains are always calculated
+    uint64_t gains_key = Hasher(warped_key).add(expos_comp_type).get();
+    vector<double> gains;
+    if (checkpoints && expos_comp_type == ExposureCompensator::GAIN &&
+        checkpoints->loadGains(gains_key, gains) && gains.size() == images_warped.size()) {
+        compensator = makePtr<StoredGainCompensator>(gains);
+    } else {
+        compensator = ExposureCompensator::createDefault(expos_comp_type);
+        compensator->feed(corners, images_warped, masks_warped);
+        if (checkpoints && expos_comp_type == ExposureCompensator::GAIN)
+            checkpoints->saveGains(gains_key,
+                                   compensator.dynamicCast<GainCompensator>()->gains());
+    }
+    session.addProgress(COMPENSATOR_STEP);
     LOGD("Compensate exposure, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Compensate exposure, time: %f: %f: progress:%f",
          ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
 
     // ================ finding seam... ==================
 #if ENABLE_LOG
     LOGD("Finding seam TYPE:%s:", seam_find_type.c_str());
     t = getTickCount();
 #endif
+    session.beginStage("seams", 1);
     Ptr<SeamFinder> seam_finder;
     if (seam_find_type == "no")
         seam_finder = new detail::NoSeamFinder();
@@ -478,125 +1445,256 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
         return 1;
     }
 
-    seam_finder->find(images_warped_f, corners, masks_warped);
-    _progress += SEAM_STEP;
+    if (!checkpoints || !checkpoints->loadSeams(seams_key, img_amount, masks_warped)) {
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
+        for (int i = 0; i < img_amount; ++i)
+            images_warped[i].convertTo(images_warped_f[i], CV_32F);
+        seam_finder->find(images_warped_f, corners, masks_warped);
+        if (checkpoints && !session.isCancelled())
+            checkpoints->saveSeams(seams_key, masks_warped);
+    }
+    session.addProgress(SEAM_STEP);
     LOGD("Finding seam, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Finding seam, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+
+    if (preview != nullptr) {
+#if ENABLE_LOG
+        LOGD("Blending preview");
+        t = getTickCount();
+#endif
+        session.beginStage("preview", 1);
+        blendPreview(images_warped, masks_warped, corners, sizes, compensator, blend_strength,
+                     *preview);
+        LOGD("Blending preview, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
+        LOGP("Blending preview, time: %f: %f: progress:%f",
+             ((getTickCount() - t) / getTickFrequency()),
+             ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+    }
 
     // Release unused memory
     images.clear();
     images_warped.clear();
     images_warped_f.clear();
     masks.clear();
+    session.finders.clear();
+    session.matcher.release();
+
+    StitchRegistration &registration = session.registration;
+    registration.images = imagesArg;
+    registration.fullSizes = full_img_sizes;
+    registration.indices = _indices;
+    registration.cameras = cameras;
+    registration.corners = corners;
+    registration.sizes = sizes;
+    registration.seamMasks = masks_warped;
+    registration.compensator = compensator;
+    registration.warperCreator = warper_creator;
+    registration.warpType = warp_type;
+    registration.warpedImageScale = warped_image_scale;
+    registration.workScale = work_scale;
+    registration.seamScale = seam_scale;
+    registration.composeMegapix = compose_megapix;
+    registration.blendType = blend_type;
+    registration.blendStrength = blend_strength;
+    registration.blendBands = config.bands;
+    registration.tileSize = tile_size;
+    registration.workers = workers;
+    registration.startTime = app_start_time;
+    return 0;
+}
 
+/**
+ * cameras, seams and gains are taken from the registration, it is left untouched so the
+ * panorama can be composed again
+ */
+int composePanorama(StitchSession &session, Mat &result) {
+    StitchRegistration &registration = session.registration;
+    if (registration.empty()) {
+        LOGD("Images are not registered");
+        return -1;
+    }
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+    vector<Mat> &imagesArg = registration.images;
+    vector<Size> &full_img_sizes = registration.fullSizes;
+    vector<int> &_indices = registration.indices;
+    vector<CameraParams> cameras = registration.cameras;
+    vector<Point> corners = registration.corners;
+    vector<Size> sizes = registration.sizes;
+    vector<UMat> &masks_warped = registration.seamMasks;
+    Ptr<ExposureCompensator> &compensator = registration.compensator;
+    Ptr<WarperCreator> &warper_creator = registration.warperCreator;
+    string &warp_type = registration.warpType;
+    float warped_image_scale = registration.warpedImageScale;
+    double work_scale = registration.workScale;
+    double compose_megapix = registration.composeMegapix;
+    int blend_type = registration.blendType;
+    float blend_strength = registration.blendStrength;
+    int tile_size = registration.tileSize;
+    int workers = registration.workers;
+    int64 app_start_time = registration.startTime;
+    int img_amount = static_cast<int>(imagesArg.size());
+    double compose_scale = 1;
+    bool is_compose_scale_set = false;
+    float _progressStep;
+    vector<Ptr<RotationWarper> > warpers;
+    session.buffers.resize(static_cast<size_t>(workers));
 
     // ================ Compositing... ==================
 #if ENABLE_LOG
     LOGD("Compositing...");
-    t = getTickCount();
+    int64 t = getTickCount();
 #endif
 
-    Mat img_warped, img_warped_s;
-    Mat dilated_mask, seam_mask, mask, mask_warped;
     Ptr<Blender> blender;
     //double compose_seam_aspect = 1;
     double compose_work_aspect = 1;
-    _progressStep = (float) COMPOSITOR_STEP / (float) img_amount;
-    for (int img_idx = 0; img_idx < img_amount; ++img_idx) {
-        LOGD("Compositing image #%d", _indices[img_idx] + 1);
-
-        // Read image and resize it if necessary
-        full_img = imagesArg[img_idx];
-        if (!is_compose_scale_set) {
-            if (compose_megapix > 0)
-                compose_scale = min(1.0, sqrt(compose_megapix * 1e6 / full_img.size().area()));
-            is_compose_scale_set = true;
-
-            // Compute relative scales
-            //compose_seam_aspect = compose_scale / seam_scale;
-            compose_work_aspect = compose_scale / work_scale;
-
-            // Update warped image scale
-            warped_image_scale *= static_cast<float>(compose_work_aspect);
-            warper = warper_creator->create(warped_image_scale);
-
-            // Update corners and sizes
-            for (int i = 0; i < img_amount; ++i) {
-                // Update intrinsics
-                cameras[i].focal *= compose_work_aspect;
-                cameras[i].ppx *= compose_work_aspect;
-                cameras[i].ppy *= compose_work_aspect;
-
-                // Update corner and size
-                Size sz = full_img_sizes[i];
-                if (abs(compose_scale - 1) > 1e-1) {
-                    sz.width = cvRound(full_img_sizes[i].width * compose_scale);
-                    sz.height = cvRound(full_img_sizes[i].height * compose_scale);
-                }
 
-                Mat K;
-                cameras[i].K().convertTo(K, CV_32F);
-                Rect roi = warper->warpRoi(sz, K, cameras[i].R);
-                corners[i] = roi.tl();
-                sizes[i] = roi.size();
-            }
+    // compose scale is calculated from the first image
+    if (compose_megapix > 0)
+        compose_scale = min(1.0, sqrt(compose_megapix * 1e6 / imagesArg[0].size().area()));
+    is_compose_scale_set = true;
+
+    // Compute relative scales
+    //compose_seam_aspect = compose_scale / seam_scale;
+    compose_work_aspect = compose_scale / work_scale;
+
+    // Update warped image scale
+    warped_image_scale *= static_cast<float>(compose_work_aspect);
+    warpers.clear();
+    for (int w = 0; w < workers; ++w)
+        warpers.push_back(warper_creator->create(warped_image_scale));
+
+    // Update corners and sizes
+    for (int i = 0; i < img_amount; ++i) {
+        // Update intrinsics
+        cameras[i].focal *= compose_work_aspect;
+        cameras[i].ppx *= compose_work_aspect;
+        cameras[i].ppy *= compose_work_aspect;
+
+        // Update corner and size
+        Size sz = full_img_sizes[i];
+        if (abs(compose_scale - 1) > 1e-1) {
+            sz.width = cvRound(full_img_sizes[i].width * compose_scale);
+            sz.height = cvRound(full_img_sizes[i].height * compose_scale);
         }
-        if (abs(compose_scale - 1) > 1e-1)
-            resize(full_img, img, Size(), compose_scale, compose_scale);
-        else
-            img = full_img;
-        full_img.release();
-        Size img_size = img.size();
 
         Mat K;
-        cameras[img_idx].K().convertTo(K, CV_32F);
-
-        // Warp the current image
-        warper->warp(img, K, cameras[img_idx].R, INTER_LINEAR, BORDER_REFLECT, img_warped);
-        img.release();
+        cameras[i].K().convertTo(K, CV_32F);
+        Rect roi = warpers[0]->warpRoi(sz, K, cameras[i].R);
+        corners[i] = roi.tl();
+        sizes[i] = roi.size();
+    }
 
-        // Warp the current image mask
-        mask.create(img_size, CV_8U);
-        mask.setTo(Scalar::all(255));
-        warper->warp(mask, K, cameras[img_idx].R, INTER_NEAREST, BORDER_CONSTANT, mask_warped);
-        mask.release();
+    Size dst_sz = resultRoi(corners, sizes).size();
+    float blend_width = sqrt(static_cast<float>(dst_sz.area())) * blend_strength / 100.f;
+    int num_bands = 0;
+    if (blend_width >= 1.f && blend_type == Blender::MULTI_BAND)
+        num_bands = static_cast<int>(ceil(log(blend_width) / log(2.)) - 1.);
+    // bands set in the config are used instead of the ones calculated from blend strength
+    if (registration.blendBands > 0 && blend_type == Blender::MULTI_BAND)
+        num_bands = registration.blendBands;
+
+    if (tile_size > 0) {
+        // images are resized to the compose scale tile by tile
+        double tiled_scale = abs(compose_scale - 1) > 1e-1 ? compose_scale : 1;
+        int status = composeTiled(session, imagesArg, tiled_scale, cameras, corners, sizes,
+                                  masks_warped, compensator, warp_type, warped_image_scale,
+                                  num_bands, tile_size, workers, COMPOSITOR_STEP, result);
+        if (status != 0)
+            return status;
+        LOGD("Compositing, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
+        LOGP("Compositing tiled, time: %f: %f: progress:%f",
+             ((getTickCount() - t) / getTickFrequency()),
+             ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
+        LOGP("Finished, total time: %f", ((getTickCount() - app_start_time) / getTickFrequency()));
+        return 0;
+    }
 
-        // Compensate exposure
-        compensator->apply(img_idx, corners[img_idx], img_warped, mask_warped);
+    blender = Blender::createDefault(blend_type, false);
+    if (blend_width < 1.f)
+        blender = Blender::createDefault(Blender::NO, false);
+    else if (blend_type == Blender::MULTI_BAND) {
+        MultiBandBlender *mb = dynamic_cast<MultiBandBlender *>(static_cast<Blender *>(blender));
+        mb->setNumBands(num_bands);
+        LOGD("Multi-band blender, number of bands: %d", mb->numBands());
+    } else if (blend_type == Blender::FEATHER) {
+        FeatherBlender *fb = dynamic_cast<FeatherBlender *>(static_cast<Blender *>(blender));
+        fb->setSharpness(1.f / blend_width);
+        LOGD("Feather blender, sharpness: %f", ((double) fb->sharpness()));
+    }
+    blender->prepare(corners, sizes);
 
-        img_warped.convertTo(img_warped_s, CV_16S);
-        img_warped.release();
-
-        dilate(masks_warped[img_idx], dilated_mask, Mat());
-        resize(dilated_mask, seam_mask, mask_warped.size());
-        mask_warped = seam_mask & mask_warped;
-
-        if (!blender) {
-            blender = Blender::createDefault(blend_type, false);
-            Size dst_sz = resultRoi(corners, sizes).size();
-            float blend_width = sqrt(static_cast<float>(dst_sz.area())) * blend_strength / 100.f;
-            if (blend_width < 1.f)
-                blender = Blender::createDefault(Blender::NO, false);
-            else if (blend_type == Blender::MULTI_BAND) {
-                MultiBandBlender *mb = dynamic_cast<MultiBandBlender *>(static_cast<Blender *>(blender));
-                mb->setNumBands(static_cast<int>(ceil(log(blend_width) / log(2.)) - 1.));
-                LOGD("Multi-band blender, number of bands: %d", mb->numBands());
-            } else if (blend_type == Blender::FEATHER) {
-                FeatherBlender *fb = dynamic_cast<FeatherBlender *>(static_cast<Blender *>(blender));
-                fb->setSharpness(1.f / blend_width);
-                LOGD("Feather blender, sharpness: %f", ((double) fb->sharpness()));
-            }
-            blender->prepare(corners, sizes);
+    // images are warped and compensated in batches of workers size, every image of a batch
+    // uses its own buffers which are then fed to the blender in image order
+    _progressStep = (float) COMPOSITOR_STEP / (float) img_amount;
+    session.beginStage("compositing", img_amount);
+    for (int batch = 0; batch < img_amount; batch += workers) {
+        if (session.isCancelled())
+            return STITCH_CANCELLED;
+        int batch_size = min(workers, img_amount - batch);
+
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
+        for (int slot = 0; slot < batch_size; ++slot) {
+            if (session.isCancelled())
+                continue;
+            int img_idx = batch + slot;
+            LOGD("Compositing image #%d", _indices[img_idx] + 1);
+            StitchBuffers &buffers = session.buffers[slot];
+            RotationWarper &warper = *warpers[omp_get_thread_num()];
+
+            // Read image and resize it if necessary
+            buffers.full_img = imagesArg[img_idx];
+            if (abs(compose_scale - 1) > 1e-1)
+                resize(buffers.full_img, buffers.img, Size(), compose_scale, compose_scale);
+            else
+                buffers.img = buffers.full_img;
+            buffers.full_img.release();
+            Size img_size = buffers.img.size();
+
+            Mat K;
+            cameras[img_idx].K().convertTo(K, CV_32F);
+
+            // Warp the current image
+            warper.warp(buffers.img, K, cameras[img_idx].R, INTER_LINEAR, BORDER_REFLECT,
+                        buffers.img_warped);
+            buffers.img.release();
+
+            // Warp the current image mask
+            buffers.mask.create(img_size, CV_8U);
+            buffers.mask.setTo(Scalar::all(255));
+            warper.warp(buffers.mask, K, cameras[img_idx].R, INTER_NEAREST, BORDER_CONSTANT,
+                        buffers.mask_warped);
+            buffers.mask.release();
+
+            // Compensate exposure
+            compensator->apply(img_idx, corners[img_idx], buffers.img_warped,
+                               buffers.mask_warped);
+
+            buffers.img_warped.convertTo(buffers.img_warped_s, CV_16S);
+            buffers.img_warped.release();
+
+            dilate(masks_warped[img_idx], buffers.dilated_mask, Mat());
+            resize(buffers.dilated_mask, buffers.seam_mask, buffers.mask_warped.size());
+            buffers.mask_warped = buffers.seam_mask & buffers.mask_warped;
+            buffers.seam_mask.release();
+            buffers.dilated_mask.release();
+        }
+        if (session.isCancelled())
+            return STITCH_CANCELLED;
+
+        // Blend images of the batch in order so the result does not depend on threads timing
+        for (int slot = 0; slot < batch_size; ++slot) {
+            StitchBuffers &buffers = session.buffers[slot];
+            blender->feed(buffers.img_warped_s, buffers.mask_warped, corners[batch + slot]);
+            buffers.img_warped_s.release();
+            buffers.mask_warped.release();
+            session.stepStage(_progressStep);
         }
-
-        // Blend the current image
-        blender->feed(img_warped_s, mask_warped, corners[img_idx]);
-        img_warped_s.release();
-        mask_warped.release();
-        seam_mask.release();
-        dilated_mask.release();
-        _progress += _progressStep;
     }
 
     Mat result_mask;
@@ -604,7 +1702,7 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
 
     LOGD("Compositing, time: %f%s", ((getTickCount() - t) / getTickFrequency()), " sec");
     LOGP("Compositing, time: %f: %f: progress:%f", ((getTickCount() - t) / getTickFrequency()),
-         ((getTickCount() - app_start_time) / getTickFrequency()), _progress);
+         ((getTickCount() - app_start_time) / getTickFrequency()), session.progress.load());
 
     LOGD("Finished, total time: %f%s", ((getTickCount() - app_start_time) / getTickFrequency()),
          " sec");
@@ -613,7 +1711,12 @@ int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params) {
     return 0;
 }
 
-
-int getProgress() {
-    return (int) _progress;
-}
\ No newline at end of file
+int stitchImg(StitchSession &session, vector<Mat> &imagesArg, Mat &result,
+              const StitchConfig &config, vector<int> &cellIds, int gridLat,
+              vector<float> &orientations) {
+    int status = registerImages(session, imagesArg, config, cellIds, gridLat, orientations,
+                                nullptr);
+    if (status != 0)
+        return status;
+    return composePanorama(session, result);
+}
@@ -2,13 +2,258 @@
 // Created by Adam on 23.04.2019.
 //
 #include <opencv2/opencv.hpp>
+#include <atomic>
+#include <thread>
+#include "opencv2/stitching/detail/matchers.hpp"
+#include "opencv2/stitching/detail/camera.hpp"
+#include "opencv2/stitching/detail/exposure_compensate.hpp"
+#include "opencv2/stitching/warpers.hpp"
+#include "StitchConfig.h"
 
 #ifndef PANORAMA360_IMGSTITCHER_H
 #define PANORAMA360_IMGSTITCHER_H
 
-template<typename T>
-int stitchImg(T &, cv::Mat &, std::vector<std::string>);
+/**
+ * scratch buffers of a single worker
+ */
+struct StitchBuffers {
+    cv::Mat full_img, img;
+    cv::Mat img_warped, img_warped_s;
+    cv::Mat dilated_mask, seam_mask, mask, mask_warped;
 
-int getProgress();
+    void release();
+};
+
+/**
+ * result of registration which is needed to compose the panorama at any resolution: cameras,
+ * seams and exposure gains are found once at work and seam scale and reused by the compositing
+ */
+struct StitchRegistration {
+    /** full resolution images which are part of the panorama **/
+    std::vector<cv::Mat> images;
+    std::vector<cv::Size> fullSizes;
+    /** indices of used images in the input images **/
+    std::vector<int> indices;
+    /** cameras in work scale **/
+    std::vector<cv::detail::CameraParams> cameras;
+    /** seam scale corners and sizes of warped images and their masks after seam finding **/
+    std::vector<cv::Point> corners;
+    std::vector<cv::Size> sizes;
+    std::vector<cv::UMat> seamMasks;
+    cv::Ptr<cv::detail::ExposureCompensator> compensator;
+    cv::Ptr<cv::WarperCreator> warperCreator;
+    std::string warpType;
+    /** median focal length in work scale **/
+    float warpedImageScale;
+    double workScale, seamScale, composeMegapix;
+    int blendType;
+    float blendStrength;
+    /** bands set in the config, 0 if they are calculated from blend strength **/
+    int blendBands;
+    int tileSize, workers;
+    int64_t startTime;
+
+    StitchRegistration();
+
+    bool empty() const;
+
+    void release();
+};
+
+/**
+ * receives progress of stitching, it is called only on the thread which started the session
+ */
+struct StitchListener {
+    virtual ~StitchListener() {}
+
+    /**
+     * @param stage    name of the current stage
+     * @param index    images, pairs or tiles of the stage done so far
+     * @param total    images, pairs or tiles of the stage
+     * @param progress progress of the whole stitching in percent
+     * @param elapsed  seconds since the session started
+     */
+    virtual void onProgress(const char *stage, int index, int total, int progress,
+                            double elapsed) = 0;
+};
+
+/**
+ * features of a work scale image found at capture time, finder key identifies the settings of
+ * the finder which found them
+ */
+struct PrecomputedFeatures {
+    uint64_t finderKey;
+    cv::detail::ImageFeatures features;
+
+    PrecomputedFeatures();
+
+    bool empty() const;
+};
+
+/**
+ * cameras of a part stitched in multithreaded mode with the features and matches they were
+ * adjusted from. Final stitching adjusts all pictures at once seeded from the solutions of the
+ * parts instead of stitching panoramas of the parts
+ */
+struct PartSolution {
+    /** grid cells of the images **/
+    std::vector<int> cells;
+    std::vector<cv::detail::ImageFeatures> features;
+    /** matches of every pair of the images, n * n of them **/
+    std::vector<cv::detail::MatchesInfo> matches;
+    /** cameras in work scale **/
+    std::vector<cv::detail::CameraParams> cameras;
+    uint64_t finderKey;
+    double workScale;
+
+    PartSolution();
+
+    bool empty() const;
+};
+
+/**
+ * state of a single stitching job. Every session owns its finders, matcher, progress and scratch
+ * buffers so several sessions can stitch at the same time on different threads
+ */
+struct StitchSession {
+    std::atomic<float> progress;
+    std::atomic<bool> cancelled;
+
+    /** one finder per worker, finders are not thread safe **/
+    std::vector<cv::Ptr<cv::detail::FeaturesFinder> > finders;
+    cv::Ptr<cv::detail::FeaturesMatcher> matcher;
+    /** mask used to know what images should we match together **/
+    cv::UMat matchingMask;
+
+    /** scratch buffers, one per worker **/
+    std::vector<StitchBuffers> buffers;
+
+    /** kept between registerImages and composePanorama **/
+    StitchRegistration registration;
+
+    /**
+     * work and seam scale versions of the input images made at capture time, used instead of
+     * resizing the full images when they have the expected size. Empty Mats if missing
+     */
+    std::vector<cv::Mat> workImages, seamImages;
+
+    /**
+     * features of the input images found at capture time, used instead of finding them when
+     * they were found with the same finder in an image of the expected work size
+     */
+    std::vector<PrecomputedFeatures> precomputed;
+
+    /**
+     * solutions of parts of the input images, cameras of their images are adjusted from them
+     * and their features and matches are reused
+     */
+    std::vector<PartSolution> seeds;
+
+    /** directory in app storage where checkpoints are kept, empty if they are not kept **/
+    std::string checkpointDir;
+
+    /**
+     * identities of the input images in the session pack, id, offset, length and timestamp of
+     * every image. Checkpoints are keyed on them, they are used only when every image has one
+     */
+    std::vector<int64_t> inputKeys;
+
+    /** registration stops when cameras are found and keeps them in the solution **/
+    bool solveOnly;
+
+    /** cameras found by the last registration or merge when solving only **/
+    PartSolution solution;
+
+    StitchSession();
+
+    /** listener is called only on the calling thread, nullptr removes it **/
+    void setListener(StitchListener *listener);
+
+    void addProgress(float step);
+
+    /** starts new stage and reports it to the listener **/
+    void beginStage(const char *name, int total);
+
+    /** adds progress step for one image, pair or tile of the current stage **/
+    void stepStage(float step);
+
+    int getProgress() const;
+
+    void cancel();
+
+    bool isCancelled() const;
+
+    /** frees finders, matcher, scratch buffers and registration, solution is kept **/
+    void release();
+
+private:
+    StitchListener *listener;
+    std::thread::id owner;
+    const char *stage;
+    int stageTotal;
+    std::atomic<int> stageDone;
+    int64_t startTime, lastReport;
+
+    void report(bool force);
+};
+
+extern const int STITCH_CANCELLED;
+
+/** scale registration uses for images of given size to get given megapixels, at most 1 **/
+double megapixScale(cv::Size size, double megapix);
+
+/**
+ * makes work and seam scale versions of a 3 channel input image the same way registerImages
+ * resizes it
+ */
+void makeSidecars(const cv::Mat &image, double workMegapix, double seamMegapix, cv::Mat &work,
+                  cv::Mat &seam);
+
+/** hash of the finder settings of the config, finders with the same key find the same features **/
+uint64_t finderKey(const StitchConfig &);
+
+/** features finder registration uses for the config **/
+cv::Ptr<cv::detail::FeaturesFinder> createFinder(const StitchConfig &);
+
+/**
+ * finds features of a work scale image with the finder of the config and writes them to a yml
+ * string with the finder key
+ */
+std::string writePrecomputedFeatures(const cv::Mat &work, const StitchConfig &);
+
+/** features written by writePrecomputedFeatures, empty if the yml is broken **/
+PrecomputedFeatures readPrecomputedFeatures(const std::string &yml);
+
+std::string writePartSolution(const PartSolution &);
+
+/** solution written by writePartSolution, empty if the yml is broken **/
+PartSolution readPartSolution(const std::string &yml);
+
+/**
+ * joins solutions of neighbouring parts into one solution kept in the session, only pairs of
+ * images from different parts are matched. Solutions have to be found with the same config
+ */
+int mergeSolutions(StitchSession &, const std::vector<PartSolution> &, const StitchConfig &, int);
+
+/** true if grid cells are the same or touch each other, columns wrap around at the 360 seam **/
+bool areNeighbourCells(int, int, int);
+
+/** matches info of the opposite direction, the same thing the matcher does for image pairs **/
+cv::detail::MatchesInfo reversedMatches(const cv::detail::MatchesInfo &);
+
+/**
+ * finds features, cameras, exposure gains and seams and keeps them in the session registration.
+ * If preview is not null it is blended from the seam scale images, it takes a fraction of the
+ * compositing time
+ */
+int registerImages(StitchSession &, std::vector<cv::Mat> &, const StitchConfig &,
+                   std::vector<int> &, int, std::vector<float> &, cv::Mat *preview);
+
+/** composes the panorama from the registration kept in the session **/
+int composePanorama(StitchSession &, cv::Mat &);
+
+/** registerImages followed by composePanorama **/
+int stitchImg(StitchSession &, std::vector<cv::Mat> &, cv::Mat &, const StitchConfig &,
+              std::vector<int> &, int, std::vector<float> &);
 
 #endif //PANORAMA360_IMGSTITCHER_H
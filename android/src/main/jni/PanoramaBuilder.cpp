@@ -0,0 +1,344 @@
+//
+// Created by Adam on 23.04.2019.
+//
+
+#include "PanoramaBuilder.h"
+#include "ImgStitcher.h"
+#include <opencv2/imgproc.hpp>
+#include "opencv2/stitching/detail/autocalib.hpp"
+#include "opencv2/stitching/detail/motion_estimators.hpp"
+#include "opencv2/stitching/warpers.hpp"
+#include <android/log.h>
+
+using namespace std;
+using namespace cv;
+using namespace cv::detail;
+
+#define TAG "panorama builder "
+#define LOGD(...)  do{ __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__ ); FILE* f = fopen("/data/data/study.acodexm/files/jlogs.txt","a+"); fprintf(f, __VA_ARGS__); fprintf(f,"\r\n"); fclose(f); }while(0);
+#define LOGP(...)  do{ __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__ ); FILE* f = fopen("/data/data/study.acodexm/files/jperformance.txt","a+"); fprintf(f, __VA_ARGS__); fprintf(f,"\r\n"); fclose(f); }while(0);
+
+const int BUILDER_REGISTERED = 0;
+const int BUILDER_PENDING = 1;
+
+/** same values as the orb finder and matcher in stitchImg **/
+const Size ORB_GRID_SIZE = Size(3, 1);
+const size_t ORB_FEATURES_N = 1500;
+const float MATCH_CONF = 0.25f;
+/** feather blending sharpness, same as default FeatherBlender **/
+const float FEATHER_SHARPNESS = 0.02f;
+
+/**
+ * matches info of the opposite direction, the same thing the matcher does for image pairs
+ */
+MatchesInfo reversedMatches(const MatchesInfo &info) {
+    MatchesInfo reversed(info);
+    swap(reversed.src_img_idx, reversed.dst_img_idx);
+    if (!reversed.H.empty())
+        reversed.H = reversed.H.inv();
+    for (auto &match : reversed.matches)
+        swap(match.queryIdx, match.trainIdx);
+    return reversed;
+}
+
+PanoramaBuilder::PanoramaBuilder(int gridLat, double composeMegapix)
+        : gridLat(gridLat), workMegapix(0.6), composeMegapix(composeMegapix), workScale(1),
+          composeScale(1), isScaleSet(false), confThresh(1.f) {
+    finder = new OrbFeaturesFinder(ORB_GRID_SIZE, ORB_FEATURES_N);
+    matcher = new BestOf2NearestMatcher(false, MATCH_CONF);
+}
+
+int PanoramaBuilder::add(const Mat &image, int cellId) {
+    int64 t = getTickCount();
+    if (!isScaleSet) {
+        workScale = min(1.0, sqrt(workMegapix * 1e6 / image.size().area()));
+        if (composeMegapix > 0)
+            composeScale = min(1.0, sqrt(composeMegapix * 1e6 / image.size().area()));
+        isScaleSet = true;
+    }
+
+    int idx = static_cast<int>(frames.size());
+    frames.emplace_back();
+    Frame &frame = frames.back();
+    frame.cellId = cellId;
+    frame.registered = false;
+    Mat img;
+    resize(image, img, Size(), workScale, workScale);
+    (*finder)(img, frame.features);
+    frame.features.img_idx = idx;
+    img.release();
+    if (abs(composeScale - 1) > 1e-1)
+        resize(image, frame.image, Size(), composeScale, composeScale);
+    else
+        frame.image = image.clone();
+
+    // match only with neighbouring pictures, the best registered one becomes the anchor
+    int anchor = -1;
+    int pendingAnchor = -1;
+    double bestConfidence = 0;
+    double bestPendingConfidence = 0;
+    for (int k = 0; k < idx; ++k) {
+        if (!isNeighbour(frames[k], frame))
+            continue;
+        MatchesInfo info;
+        (*matcher)(frame.features, frames[k].features, info);
+        if (info.confidence < confThresh || info.H.empty())
+            continue;
+        info.src_img_idx = idx;
+        info.dst_img_idx = k;
+        matches[make_pair(k, idx)] = reversedMatches(info);
+        matches[make_pair(idx, k)] = info;
+        if (frames[k].registered && info.confidence > bestConfidence) {
+            bestConfidence = info.confidence;
+            anchor = k;
+        } else if (!frames[k].registered && info.confidence > bestPendingConfidence) {
+            bestPendingConfidence = info.confidence;
+            pendingAnchor = k;
+        }
+    }
+    matcher->collectGarbage();
+
+    vector<int> queue;
+    if (anchor >= 0) {
+        registerFrame(idx, anchor);
+        queue.push_back(idx);
+    } else if (size() == 0 && pendingAnchor >= 0) {
+        bootstrap(pendingAnchor, idx);
+        queue.push_back(pendingAnchor);
+        queue.push_back(idx);
+    }
+    // pictures which had no registered neighbour so far may be registered now
+    for (size_t q = 0; q < queue.size(); ++q) {
+        for (int k = 0; k < static_cast<int>(frames.size()); ++k) {
+            if (!frames[k].registered && isMatched(k, queue[q])) {
+                registerFrame(k, queue[q]);
+                queue.push_back(k);
+            }
+        }
+    }
+
+    LOGP("Builder add, registered: %d of %d, time: %f", size(), (int) frames.size(),
+         ((getTickCount() - t) / getTickFrequency()))
+    return frames[idx].registered ? BUILDER_REGISTERED : BUILDER_PENDING;
+}
+
+bool PanoramaBuilder::result(Mat &pano) const {
+    if (contentRect.area() == 0)
+        return false;
+    canvas(contentRect - canvasRect.tl()).copyTo(pano);
+    return true;
+}
+
+int PanoramaBuilder::size() const {
+    int registered = 0;
+    for (const Frame &frame : frames)
+        if (frame.registered)
+            registered++;
+    return registered;
+}
+
+/**
+ * neighbours are found from grid cell ids, if the position of a picture is unknown it is
+ * matched with every other picture
+ */
+bool PanoramaBuilder::isNeighbour(const Frame &a, const Frame &b) const {
+    if (gridLat <= 0 || a.cellId < 0 || b.cellId < 0)
+        return true;
+    return areNeighbourCells(a.cellId, b.cellId, gridLat);
+}
+
+bool PanoramaBuilder::isMatched(int src, int dst) const {
+    return matches.count(make_pair(src, dst)) > 0;
+}
+
+/**
+ * registers the first pair of pictures. Focal length is estimated from their homography,
+ * the first picture defines the panorama frame and the warping scale
+ */
+void PanoramaBuilder::bootstrap(int first, int second) {
+    const MatchesInfo &info = matches.at(make_pair(second, first));
+    double f0, f1;
+    bool f0_ok, f1_ok;
+    focalsFromHomography(info.H, f0, f1, f0_ok, f1_ok);
+    Size size = frames[first].features.img_size;
+    double focal;
+    if (f0_ok && f1_ok)
+        focal = sqrt(f0 * f1);
+    else if (f0_ok)
+        focal = f0;
+    else if (f1_ok)
+        focal = f1;
+    else
+        focal = size.width + size.height;
+
+    CameraParams &camera = frames[first].camera;
+    camera.focal = focal;
+    camera.aspect = 1;
+    camera.ppx = size.width / 2.0;
+    camera.ppy = size.height / 2.0;
+    camera.R = Mat::eye(3, 3, CV_32F);
+    frames[first].registered = true;
+    LOGD("Builder bootstrap, focal: %f", focal)
+
+    Ptr<WarperCreator> warperCreator = new cv::SphericalWarper();
+    warper = warperCreator->create(static_cast<float>(focal * composeScale / workScale));
+    compose(first);
+    registerFrame(second, first);
+}
+
+/**
+ * initial rotation is calculated from the homography to the anchor picture, the same way
+ * HomographyBasedEstimator does, and then refined together with registered neighbours
+ */
+void PanoramaBuilder::registerFrame(int idx, int anchor) {
+    Frame &frame = frames[idx];
+    const CameraParams &anchorCamera = frames[anchor].camera;
+    frame.camera.focal = anchorCamera.focal;
+    frame.camera.aspect = 1;
+    frame.camera.ppx = frame.features.img_size.width / 2.0;
+    frame.camera.ppy = frame.features.img_size.height / 2.0;
+
+    Mat anchorR;
+    anchorCamera.R.convertTo(anchorR, CV_64F);
+    Mat R = anchorR * anchorCamera.K().inv() * matches.at(make_pair(idx, anchor)).H *
+            frame.camera.K();
+    SVD svd(R, SVD::FULL_UV);
+    R = svd.u * svd.vt;
+    if (determinant(R) < 0)
+        R *= -1;
+    R.convertTo(frame.camera.R, CV_32F);
+
+    adjustLocally(idx, anchor);
+    frame.registered = true;
+    compose(idx);
+}
+
+/**
+ * runs bundle adjustment on the new picture and its registered neighbours, neighbours are
+ * already on the canvas so only the new camera is taken, moved back to the anchor's frame
+ */
+void PanoramaBuilder::adjustLocally(int idx, int anchor) {
+    vector<int> local;
+    local.push_back(idx);
+    for (int k = 0; k < static_cast<int>(frames.size()); ++k)
+        if (frames[k].registered && isMatched(idx, k))
+            local.push_back(k);
+    int n = static_cast<int>(local.size());
+    if (n < 2)
+        return;
+
+    vector<ImageFeatures> features(static_cast<size_t>(n));
+    vector<CameraParams> cameras(static_cast<size_t>(n));
+    vector<MatchesInfo> pairwise_matches(static_cast<size_t>(n * n));
+    int anchorLocal = 0;
+    for (int i = 0; i < n; ++i) {
+        features[i] = frames[local[i]].features;
+        features[i].img_idx = i;
+        cameras[i] = frames[local[i]].camera;
+        if (local[i] == anchor)
+            anchorLocal = i;
+        for (int j = 0; j < n; ++j) {
+            if (i == j || !isMatched(local[i], local[j]))
+                continue;
+            MatchesInfo &info = pairwise_matches[i * n + j];
+            info = matches.at(make_pair(local[i], local[j]));
+            info.src_img_idx = i;
+            info.dst_img_idx = j;
+        }
+    }
+
+    Ptr<BundleAdjusterBase> adjuster = new BundleAdjusterRay();
+    adjuster->setConfThresh(confThresh);
+    if (!(*adjuster)(features, pairwise_matches, cameras) || !checkRange(cameras[0].R)) {
+        LOGD("Builder local adjustment failed, keeping initial camera")
+        return;
+    }
+
+    Mat anchorR, adjustedAnchorR, adjustedR;
+    frames[anchor].camera.R.convertTo(anchorR, CV_64F);
+    cameras[anchorLocal].R.convertTo(adjustedAnchorR, CV_64F);
+    cameras[0].R.convertTo(adjustedR, CV_64F);
+    Mat R = anchorR * adjustedAnchorR.t() * adjustedR;
+    R.convertTo(frames[idx].camera.R, CV_32F);
+    frames[idx].camera.focal =
+            cameras[0].focal * frames[anchor].camera.focal / cameras[anchorLocal].focal;
+}
+
+/**
+ * warps the picture and feather blends it into the canvas, only the region covered by the
+ * picture is blended again and the picture is released
+ */
+void PanoramaBuilder::compose(int idx) {
+    Frame &frame = frames[idx];
+    double compose_work_aspect = composeScale / workScale;
+    CameraParams camera = frame.camera;
+    camera.focal *= compose_work_aspect;
+    camera.ppx *= compose_work_aspect;
+    camera.ppy *= compose_work_aspect;
+    Mat K;
+    camera.K().convertTo(K, CV_32F);
+
+    Mat warped, warped_mask;
+    Point corner = warper->warp(frame.image, K, camera.R, INTER_LINEAR, BORDER_REFLECT, warped);
+    Mat mask(frame.image.size(), CV_8U, Scalar::all(255));
+    warper->warp(mask, K, camera.R, INTER_NEAREST, BORDER_CONSTANT, warped_mask);
+    frame.image.release();
+
+    Rect roi(corner, warped.size());
+    ensureCanvas(roi);
+    contentRect = contentRect.area() == 0 ? roi : (contentRect | roi);
+
+    Mat weight;
+    distanceTransform(warped_mask, weight, DIST_L1, 3);
+    threshold(weight * FEATHER_SHARPNESS, weight, 1.f, 1.f, THRESH_TRUNC);
+    Mat weight3;
+    merge(vector<Mat>{weight, weight, weight}, weight3);
+    Mat warpedF;
+    warped.convertTo(warpedF, CV_32F);
+
+    Rect local = roi - canvasRect.tl();
+    Mat accumulatorRoi = accumulator(local);
+    Mat weightsRoi = weights(local);
+    accumulatorRoi += warpedF.mul(weight3);
+    weightsRoi += weight;
+
+    Mat weightsSum = weightsRoi + 1e-5f;
+    merge(vector<Mat>{weightsSum, weightsSum, weightsSum}, weight3);
+    Mat blended = accumulatorRoi / weight3;
+    Mat canvasRoi = canvas(local);
+    blended.convertTo(canvasRoi, CV_8U);
+}
+
+/**
+ * makes sure rect fits the canvas, when the canvas has to grow it grows by half of the rect
+ * in every direction it is extended so it is not reallocated with every new picture
+ */
+void PanoramaBuilder::ensureCanvas(const Rect &rect) {
+    if (!canvas.empty() && (canvasRect & rect) == rect)
+        return;
+    Rect grown = canvas.empty() ? rect : (canvasRect | rect);
+    if (!canvas.empty()) {
+        int marginX = rect.width / 2;
+        int marginY = rect.height / 2;
+        int left = grown.x < canvasRect.x ? grown.x - marginX : grown.x;
+        int top = grown.y < canvasRect.y ? grown.y - marginY : grown.y;
+        int right = grown.br().x > canvasRect.br().x ? grown.br().x + marginX : grown.br().x;
+        int bottom = grown.br().y > canvasRect.br().y ? grown.br().y + marginY : grown.br().y;
+        grown = Rect(left, top, right - left, bottom - top);
+    }
+
+    Mat newAccumulator = Mat::zeros(grown.size(), CV_32FC3);
+    Mat newWeights = Mat::zeros(grown.size(), CV_32F);
+    Mat newCanvas = Mat::zeros(grown.size(), CV_8UC3);
+    if (!canvas.empty()) {
+        Rect old(canvasRect.tl() - grown.tl(), canvasRect.size());
+        accumulator.copyTo(newAccumulator(old));
+        weights.copyTo(newWeights(old));
+        canvas.copyTo(newCanvas(old));
+    }
+    accumulator = newAccumulator;
+    weights = newWeights;
+    canvas = newCanvas;
+    canvasRect = grown;
+    LOGD("Builder canvas resized to %dx%d", grown.width, grown.height)
+}
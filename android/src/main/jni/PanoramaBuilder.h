@@ -0,0 +1,92 @@
+//
+// Created by Adam on 23.04.2019.
+//
+#include <opencv2/opencv.hpp>
+#include <map>
+#include "opencv2/stitching/detail/camera.hpp"
+#include "opencv2/stitching/detail/matchers.hpp"
+#include "opencv2/stitching/detail/warpers.hpp"
+
+#ifndef PANORAMA360_PANORAMABUILDER_H
+#define PANORAMA360_PANORAMABUILDER_H
+
+/** image was registered and blended into the panorama **/
+extern const int BUILDER_REGISTERED;
+/** image is kept and will be registered when one of its neighbours is **/
+extern const int BUILDER_PENDING;
+
+/**
+ * panorama which grows one picture at a time. New picture is matched only with already registered
+ * neighbouring pictures, its camera is adjusted together with them while cameras of the rest of
+ * the panorama stay fixed and only the canvas region covered by the new picture is blended again,
+ * so the cost of a single add does not grow with the size of the panorama.
+ * Only features and cameras of pictures are kept next to the canvas, pictures are released as
+ * soon as they are blended.
+ * Builder is not thread safe, it has to be used from one thread at a time
+ */
+class PanoramaBuilder {
+public:
+    /**
+     * @param gridLat amount of grid columns used to calculate cell ids, 0 if unknown
+     * @param composeMegapix resolution of pictures on the canvas, negative for full resolution
+     */
+    PanoramaBuilder(int gridLat, double composeMegapix);
+
+    /**
+     * @param image 3 channel picture
+     * @param cellId sphere grid cell id of the picture, negative if unknown
+     * @return BUILDER_REGISTERED or BUILDER_PENDING
+     */
+    int add(const cv::Mat &image, int cellId);
+
+    /** @return false if no picture was registered yet **/
+    bool result(cv::Mat &pano) const;
+
+    /** @return amount of registered pictures **/
+    int size() const;
+
+private:
+    struct Frame {
+        int cellId;
+        bool registered;
+        cv::detail::ImageFeatures features;
+        cv::detail::CameraParams camera;
+        /** compose scale picture, released once the picture is blended **/
+        cv::Mat image;
+    };
+
+    int gridLat;
+    double workMegapix, composeMegapix;
+    double workScale, composeScale;
+    bool isScaleSet;
+    float confThresh;
+
+    std::vector<Frame> frames;
+    /** matches of frame pairs, key is {src frame, dst frame} **/
+    std::map<std::pair<int, int>, cv::detail::MatchesInfo> matches;
+
+    cv::Ptr<cv::detail::FeaturesFinder> finder;
+    cv::Ptr<cv::detail::FeaturesMatcher> matcher;
+    cv::Ptr<cv::detail::RotationWarper> warper;
+
+    /** weighted sum of pictures and sum of weights, canvas is their quotient **/
+    cv::Mat accumulator, weights, canvas;
+    /** canvas position in warper coordinates and the part of it covered by pictures **/
+    cv::Rect canvasRect, contentRect;
+
+    bool isNeighbour(const Frame &a, const Frame &b) const;
+
+    bool isMatched(int src, int dst) const;
+
+    void bootstrap(int first, int second);
+
+    void registerFrame(int idx, int anchor);
+
+    void adjustLocally(int idx, int anchor);
+
+    void compose(int idx);
+
+    void ensureCanvas(const cv::Rect &rect);
+};
+
+#endif //PANORAMA360_PANORAMABUILDER_H
@@ -0,0 +1,95 @@
+//
+// Created by Adam on 23.04.2019.
+//
+
+#include "RawImage.h"
+
+using namespace std;
+using namespace cv;
+
+void packI420(const uchar *y, const uchar *u, const uchar *v, int width, int height,
+              int yRowStride, int uvRowStride, int uvPixelStride, uchar *i420) {
+    Mat(height, width, CV_8UC1, const_cast<uchar *>(y), static_cast<size_t>(yRowStride))
+            .copyTo(Mat(height, width, CV_8UC1, i420));
+    int uvWidth = width / 2, uvHeight = height / 2;
+    uchar *dstU = i420 + width * height;
+    uchar *dstV = dstU + uvWidth * uvHeight;
+    if (uvPixelStride == 1) {
+        Mat(uvHeight, uvWidth, CV_8UC1, const_cast<uchar *>(u), static_cast<size_t>(uvRowStride))
+                .copyTo(Mat(uvHeight, uvWidth, CV_8UC1, dstU));
+        Mat(uvHeight, uvWidth, CV_8UC1, const_cast<uchar *>(v), static_cast<size_t>(uvRowStride))
+                .copyTo(Mat(uvHeight, uvWidth, CV_8UC1, dstV));
+        return;
+    }
+    // interleaved chroma, usually NV21 or NV12 memory behind separate plane pointers
+    for (int row = 0; row < uvHeight; ++row) {
+        const uchar *rowU = u + row * uvRowStride;
+        const uchar *rowV = v + row * uvRowStride;
+        for (int col = 0; col < uvWidth; ++col) {
+            *dstU++ = rowU[col * uvPixelStride];
+            *dstV++ = rowV[col * uvPixelStride];
+        }
+    }
+}
+
+static void rotateBy(Mat &src, Mat &dst, int rotation) {
+    switch (rotation) {
+        case 90:
+            cv::rotate(src, dst, ROTATE_90_CLOCKWISE);
+            break;
+        case 180:
+            cv::rotate(src, dst, ROTATE_180);
+            break;
+        case 270:
+            cv::rotate(src, dst, ROTATE_90_COUNTERCLOCKWISE);
+            break;
+        default:
+            src.copyTo(dst);
+            break;
+    }
+}
+
+void i420ToBgr(const uchar *i420, int width, int height, int rotation, Mat &bgr) {
+    Mat yuv(height * 3 / 2, width, CV_8UC1, const_cast<uchar *>(i420));
+    Mat converted;
+    // stitching works in BGR like imdecode, RGB swapped red and blue of raw frames
+    cvtColor(yuv, converted, COLOR_YUV2BGR_I420);
+    if (rotation % 360 == 0)
+        bgr = converted;
+    else
+        rotateBy(converted, bgr, rotation);
+}
+
+void i420ToRgba(const uchar *i420, int width, int height, int rotation, Mat &rgba) {
+    bool isTransposed = rotation == 90 || rotation == 270;
+    // even size before rotation, chroma planes have half of it
+    int smallWidth = (isTransposed ? rgba.rows : rgba.cols) & ~1;
+    int smallHeight = (isTransposed ? rgba.cols : rgba.rows) & ~1;
+    int uvWidth = width / 2, uvHeight = height / 2;
+    Mat small(smallHeight * 3 / 2, smallWidth, CV_8UC1);
+    uchar *smallU = small.data + smallWidth * smallHeight;
+    uchar *smallV = smallU + smallWidth * smallHeight / 4;
+    const uchar *u = i420 + width * height;
+    const uchar *v = u + uvWidth * uvHeight;
+    resize(Mat(height, width, CV_8UC1, const_cast<uchar *>(i420)),
+           Mat(smallHeight, smallWidth, CV_8UC1, small.data), Size(smallWidth, smallHeight), 0, 0,
+           INTER_AREA);
+    resize(Mat(uvHeight, uvWidth, CV_8UC1, const_cast<uchar *>(u)),
+           Mat(smallHeight / 2, smallWidth / 2, CV_8UC1, smallU),
+           Size(smallWidth / 2, smallHeight / 2), 0, 0, INTER_AREA);
+    resize(Mat(uvHeight, uvWidth, CV_8UC1, const_cast<uchar *>(v)),
+           Mat(smallHeight / 2, smallWidth / 2, CV_8UC1, smallV),
+           Size(smallWidth / 2, smallHeight / 2), 0, 0, INTER_AREA);
+    Mat converted;
+    cvtColor(small, converted, COLOR_YUV2RGBA_I420);
+    Mat rotated;
+    rotateBy(converted, rotated, rotation);
+    // rgba wraps texture memory, odd sizes leave the last row or column unchanged
+    Mat target = rgba(Rect(0, 0, min(rgba.cols, rotated.cols), min(rgba.rows, rotated.rows)));
+    rotated(Rect(0, 0, target.cols, target.rows)).copyTo(target);
+}
+
+void decodeImage(const uchar *data, size_t length, Mat &image) {
+    Mat encoded(1, static_cast<int>(length), CV_8UC1, const_cast<uchar *>(data));
+    image = imdecode(encoded, IMREAD_COLOR | IMREAD_IGNORE_ORIENTATION);
+}
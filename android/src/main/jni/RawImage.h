@@ -0,0 +1,34 @@
+//
+// Created by Adam on 23.04.2019.
+//
+#include <opencv2/opencv.hpp>
+
+#ifndef PANORAMA360_RAWIMAGE_H
+#define PANORAMA360_RAWIMAGE_H
+
+/**
+ * copies planes of a YUV_420_888 camera image to a continuous I420 buffer, planes can have
+ * row padding and interleaved chroma
+ */
+void packI420(const uchar *y, const uchar *u, const uchar *v, int width, int height,
+              int yRowStride, int uvRowStride, int uvPixelStride, uchar *i420);
+
+/**
+ * converts I420 buffer to 3 channel BGR Mat rotated clockwise by given degrees, channels are in
+ * the same order as in pictures converted from java RGBA Mats
+ */
+void i420ToBgr(const uchar *i420, int width, int height, int rotation, cv::Mat &bgr);
+
+/**
+ * scales I420 buffer down to the size of the rgba Mat before conversion, so only the pixels of
+ * the texture are converted
+ */
+void i420ToRgba(const uchar *i420, int width, int height, int rotation, cv::Mat &rgba);
+
+/**
+ * decodes JPEG bytes to the same 3 channel Mat i420ToBgr gives, EXIF orientation is ignored
+ * the same way BitmapFactory ignores it
+ */
+void decodeImage(const uchar *data, size_t length, cv::Mat &image);
+
+#endif //PANORAMA360_RAWIMAGE_H
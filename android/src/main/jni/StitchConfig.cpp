@@ -0,0 +1,52 @@
+//
+// Created by Adam on 23.04.2019.
+//
+
+#include "StitchConfig.h"
+
+const int STITCH_CONFIG_VERSION = 1;
+
+static const char *DETECTOR_NAMES[] = {"orb", "akaze"};
+static const char *WARPER_NAMES[] = {"spherical", "cylindrical", "plane", "fisheye",
+                                     "stereographic"};
+static const char *SEAM_FINDER_NAMES[] = {"no", "voronoi", "gc_color", "gc_colorgrad",
+                                          "dp_color", "dp_colorgrad"};
+static const char *EXPOSURE_NAMES[] = {"no", "gain", "gain_blocks"};
+
+StitchConfig::StitchConfig() : version(STITCH_CONFIG_VERSION), detector(DETECTOR_ORB),
+                               features(1500), orbGridWidth(3), orbGridHeight(1),
+                               warper(WARPER_SPHERICAL), seamFinder(SEAM_DP_COLOR),
+                               blender(2), bands(0), exposureCompensator(0),
+                               waveCorrect(WAVE_HORIZONTAL), threads(0), tileSize(-1),
+                               flags(0), workMegapix(0.6), seamMegapix(0.1),
+                               composeMegapix(-1), blendStrength(5), matchConf(0.25),
+                               confThresh(1) {
+}
+
+const char *StitchConfig::detectorName() const {
+    return DETECTOR_NAMES[detector];
+}
+
+const char *StitchConfig::warperName() const {
+    return WARPER_NAMES[warper];
+}
+
+const char *StitchConfig::seamFinderName() const {
+    return SEAM_FINDER_NAMES[seamFinder];
+}
+
+const char *StitchConfig::exposureName() const {
+    return EXPOSURE_NAMES[exposureCompensator];
+}
+
+bool StitchConfig::isCropped() const {
+    return (flags & CONFIG_CROP) != 0;
+}
+
+bool StitchConfig::useOpenCvDefault() const {
+    return (flags & CONFIG_OPEN_CV_DEFAULT) != 0;
+}
+
+bool StitchConfig::useCheckpoints() const {
+    return (flags & CONFIG_CHECKPOINTS) != 0;
+}
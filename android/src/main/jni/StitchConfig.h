@@ -0,0 +1,78 @@
+//
+// Created by Adam on 23.04.2019.
+//
+#include <cstdint>
+
+#ifndef PANORAMA360_STITCHCONFIG_H
+#define PANORAMA360_STITCHCONFIG_H
+
+/** version of the binary layout, has to be the same as StitchConfig.VERSION in java **/
+extern const int STITCH_CONFIG_VERSION;
+
+enum {
+    DETECTOR_ORB = 0, DETECTOR_AKAZE = 1
+};
+enum {
+    WARPER_SPHERICAL = 0, WARPER_CYLINDRICAL = 1, WARPER_PLANE = 2, WARPER_FISHEYE = 3,
+    WARPER_STEREOGRAPHIC = 4
+};
+enum {
+    SEAM_NO = 0, SEAM_VORONOI = 1, SEAM_GC_COLOR = 2, SEAM_GC_COLORGRAD = 3, SEAM_DP_COLOR = 4,
+    SEAM_DP_COLORGRAD = 5
+};
+enum {
+    WAVE_NONE = 0, WAVE_HORIZONTAL = 1, WAVE_VERTICAL = 2
+};
+enum {
+    CONFIG_CROP = 1, CONFIG_OPEN_CV_DEFAULT = 2, CONFIG_CHECKPOINTS = 4
+};
+
+/**
+ * settings of the stitching, it is filled from java StitchConfig which is validated there.
+ * Layout is the binary layout written by java, ints first so doubles stay aligned.
+ * Blender and exposure compensator use OpenCV Blender and ExposureCompensator values
+ */
+struct StitchConfig {
+    int32_t version;
+    int32_t detector;
+    int32_t features;
+    int32_t orbGridWidth, orbGridHeight;
+    int32_t warper;
+    int32_t seamFinder;
+    int32_t blender;
+    /** bands of the multi band blender, 0 means they are calculated from blend strength **/
+    int32_t bands;
+    int32_t exposureCompensator;
+    int32_t waveCorrect;
+    /** 0 means the number of cores **/
+    int32_t threads;
+    /** 0 means no tiles, -1 that they are used for big panoramas **/
+    int32_t tileSize;
+    int32_t flags;
+    /** negative compose megapix means full resolution **/
+    double workMegapix, seamMegapix, composeMegapix;
+    double blendStrength;
+    double matchConf, confThresh;
+
+    /** same settings as java StitchConfig defaults **/
+    StitchConfig();
+
+    const char *detectorName() const;
+
+    const char *warperName() const;
+
+    const char *seamFinderName() const;
+
+    const char *exposureName() const;
+
+    bool isCropped() const;
+
+    bool useOpenCvDefault() const;
+
+    /** results of stages are saved and reused by stitching of the same images **/
+    bool useCheckpoints() const;
+};
+
+static_assert(sizeof(StitchConfig) == 14 * 4 + 6 * 8, "StitchConfig layout differs from java");
+
+#endif //PANORAMA360_STITCHCONFIG_H
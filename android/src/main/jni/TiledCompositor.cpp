@@ -0,0 +1,195 @@
+//
+// Created by Adam on 23.04.2019.
+//
+
+#include "TiledCompositor.h"
+#include <omp.h>
+#include <opencv2/imgproc.hpp>
+#include "opencv2/stitching/detail/blenders.hpp"
+#include "opencv2/stitching/detail/warpers.hpp"
+#include <android/log.h>
+
+using namespace std;
+using namespace cv;
+using namespace cv::detail;
+
+#define TAG "tiled compositor "
+#define LOGD(...)  do{ __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__ ); FILE* f = fopen("/data/data/study.acodexm/files/jlogs.txt","a+"); fprintf(f, __VA_ARGS__); fprintf(f,"\r\n"); fclose(f); }while(0);
+
+const int DEFAULT_TILE_SIZE = 1024;
+
+/**
+ * builds remap maps of a part of the warped image, the same way RotationWarper::buildMaps does
+ * for the whole image. Mask marks pixels which have a source pixel
+ */
+template<class P>
+void buildPartMaps(P projector, const Mat &K, const Mat &R, float scale, Rect part,
+                   Size src_size, Mat &xmap, Mat &ymap, Mat &mask) {
+    projector.scale = scale;
+    projector.setCameraParams(K, R);
+    xmap.create(part.size(), CV_32F);
+    ymap.create(part.size(), CV_32F);
+    mask.create(part.size(), CV_8U);
+    float x, y;
+    for (int v = 0; v < part.height; ++v) {
+        auto *xrow = xmap.ptr<float>(v);
+        auto *yrow = ymap.ptr<float>(v);
+        auto *mrow = mask.ptr<uchar>(v);
+        for (int u = 0; u < part.width; ++u) {
+            projector.mapBackward(static_cast<float>(u + part.x),
+                                  static_cast<float>(v + part.y), x, y);
+            xrow[u] = x;
+            yrow[u] = y;
+            int sx = cvRound(x), sy = cvRound(y);
+            mrow[u] = (sx >= 0 && sy >= 0 && sx < src_size.width && sy < src_size.height)
+                      ? 255 : 0;
+        }
+    }
+}
+
+void buildPartMaps(const string &warp_type, const Mat &K, const Mat &R, float scale, Rect part,
+                   Size src_size, Mat &xmap, Mat &ymap, Mat &mask) {
+    if (warp_type == "plane")
+        buildPartMaps(PlaneProjector(), K, R, scale, part, src_size, xmap, ymap, mask);
+    else if (warp_type == "cylindrical")
+        buildPartMaps(CylindricalProjector(), K, R, scale, part, src_size, xmap, ymap, mask);
+    else if (warp_type == "fisheye")
+        buildPartMaps(FisheyeProjector(), K, R, scale, part, src_size, xmap, ymap, mask);
+    else if (warp_type == "stereographic")
+        buildPartMaps(StereographicProjector(), K, R, scale, part, src_size, xmap, ymap, mask);
+    else
+        buildPartMaps(SphericalProjector(), K, R, scale, part, src_size, xmap, ymap, mask);
+}
+
+/**
+ * makes the part of the image in compose scale which the maps read from, pixels are the same
+ * as in the whole image resized by resize(). Maps are shifted to the part
+ *
+ * @return false if the maps read nothing from the image
+ */
+static bool composeSource(const Mat &full_img, double compose_scale, Size compose_size,
+                          Mat &xmap, Mat &ymap, Mat &source) {
+    double min_x, max_x, min_y, max_y;
+    minMaxLoc(xmap, &min_x, &max_x);
+    minMaxLoc(ymap, &min_y, &max_y);
+    // bilinear remap reads the next pixel too, a few more are kept for safety
+    Rect roi(Point(cvFloor(min_x) - 2, cvFloor(min_y) - 2),
+             Point(cvCeil(max_x) + 3, cvCeil(max_y) + 3));
+    roi &= Rect(Point(), compose_size);
+    if (roi.area() == 0)
+        return false;
+    if (compose_scale == 1) {
+        source = full_img(roi);
+    } else {
+        // same sampling as resize with INTER_LINEAR, so parts of neighbouring tiles match
+        double inv_scale = 1. / compose_scale;
+        Mat M = (Mat_<double>(2, 3)
+                << inv_scale, 0, (roi.x + 0.5) * inv_scale - 0.5,
+                0, inv_scale, (roi.y + 0.5) * inv_scale - 0.5);
+        warpAffine(full_img, source, M, roi.size(), INTER_LINEAR | WARP_INVERSE_MAP,
+                   BORDER_REPLICATE);
+    }
+    xmap -= roi.x;
+    ymap -= roi.y;
+    return true;
+}
+
+int composeTiled(StitchSession &session, const vector<Mat> &images, double compose_scale,
+                 const vector<CameraParams> &cameras, const vector<Point> &corners,
+                 const vector<Size> &sizes, const vector<UMat> &seam_masks,
+                 const Ptr<ExposureCompensator> &compensator, const string &warp_type,
+                 float warped_image_scale, int num_bands, int tile_size, int workers,
+                 float progress_step, Mat &result) {
+    int img_amount = static_cast<int>(images.size());
+    Rect dst_roi = resultRoi(corners, sizes);
+    // every level of the multi band pyramid applies a 5 tap kernel at half the resolution of
+    // the previous one, so blending reaches about 2^(bands + 1) pixels, tiles overlap by that much.
+    // Tiles and margins are multiples of the coarsest level so pyramids of all tiles are sampled
+    // on the same grid
+    int margin = num_bands > 0 ? (2 << num_bands) : 0;
+    int level = 1 << num_bands;
+    tile_size = max(tile_size, 2 * margin);
+    tile_size = (tile_size + level - 1) / level * level;
+    int tiles_x = (dst_roi.width + tile_size - 1) / tile_size;
+    int tiles_y = (dst_roi.height + tile_size - 1) / tile_size;
+    int tiles_amount = tiles_x * tiles_y;
+    LOGD("Tiled compositing %dx%d, tiles: %d, tile size: %d, margin: %d", dst_roi.width,
+         dst_roi.height, tiles_amount, tile_size, margin)
+
+    vector<Mat> K(img_amount), dilated_masks(img_amount);
+    vector<Size> compose_sizes(img_amount);
+    for (int i = 0; i < img_amount; ++i) {
+        cameras[i].K().convertTo(K[i], CV_32F);
+        dilate(seam_masks[i], dilated_masks[i], Mat());
+        compose_sizes[i] = compose_scale == 1 ? images[i].size()
+                                              : Size(cvRound(images[i].cols * compose_scale),
+                                                     cvRound(images[i].rows * compose_scale));
+    }
+
+    result.create(dst_roi.size(), CV_8UC3);
+    float tile_step = progress_step / (float) tiles_amount;
+    session.beginStage("compositing", tiles_amount);
+
+#pragma omp parallel for num_threads(workers) schedule(dynamic)
+    for (int t = 0; t < tiles_amount; ++t) {
+        if (session.isCancelled())
+            continue;
+        Rect tile(dst_roi.x + (t % tiles_x) * tile_size, dst_roi.y + (t / tiles_x) * tile_size,
+                  tile_size, tile_size);
+        tile &= dst_roi;
+        Rect region(tile.x - margin, tile.y - margin, tile.width + 2 * margin,
+                    tile.height + 2 * margin);
+        region &= dst_roi;
+
+        Ptr<Blender> blender;
+        if (num_bands > 0)
+            blender = new MultiBandBlender(false, num_bands);
+        else
+            blender = Blender::createDefault(Blender::NO, false);
+        blender->prepare(region);
+
+        bool is_empty = true;
+        Mat xmap, ymap, mask, source, img_warped, img_warped_s, seam_mask;
+        for (int i = 0; i < img_amount && !session.isCancelled(); ++i) {
+            Rect part = Rect(corners[i], sizes[i]) & region;
+            if (part.area() == 0)
+                continue;
+            buildPartMaps(warp_type, K[i], cameras[i].R, warped_image_scale, part,
+                          compose_sizes[i], xmap, ymap, mask);
+            if (!composeSource(images[i], compose_scale, compose_sizes[i], xmap, ymap, source))
+                continue;
+            remap(source, img_warped, xmap, ymap, INTER_LINEAR, BORDER_REFLECT);
+            source.release();
+
+            // Compensate exposure
+            compensator->apply(i, part.tl(), img_warped, mask);
+            img_warped.convertTo(img_warped_s, CV_16S);
+
+            // seam mask is resized to the compose scale only for this part
+            double sx = (double) dilated_masks[i].cols / sizes[i].width;
+            double sy = (double) dilated_masks[i].rows / sizes[i].height;
+            Mat M = (Mat_<double>(2, 3)
+                    << sx, 0, (part.x - corners[i].x + 0.5) * sx - 0.5,
+                    0, sy, (part.y - corners[i].y + 0.5) * sy - 0.5);
+            warpAffine(dilated_masks[i], seam_mask, M, part.size(),
+                       INTER_LINEAR | WARP_INVERSE_MAP, BORDER_REPLICATE);
+            mask = seam_mask & mask;
+
+            blender->feed(img_warped_s, mask, part.tl());
+            is_empty = false;
+        }
+
+        Mat tile_result = result(tile - dst_roi.tl());
+        if (is_empty) {
+            tile_result.setTo(Scalar::all(0));
+        } else {
+            Mat blended, blended_mask;
+            blender->blend(blended, blended_mask);
+            blended(tile - region.tl()).convertTo(tile_result, CV_8U);
+        }
+        session.stepStage(tile_step);
+    }
+    if (session.isCancelled())
+        return STITCH_CANCELLED;
+    return 0;
+}
@@ -0,0 +1,39 @@
+//
+// Created by Adam on 23.04.2019.
+//
+#include <opencv2/opencv.hpp>
+#include "opencv2/stitching/detail/camera.hpp"
+#include "opencv2/stitching/detail/exposure_compensate.hpp"
+#include "ImgStitcher.h"
+
+#ifndef PANORAMA360_TILEDCOMPOSITOR_H
+#define PANORAMA360_TILEDCOMPOSITOR_H
+
+/** tile size used when tiled compositing is turned on without a size **/
+extern const int DEFAULT_TILE_SIZE;
+
+/**
+ * composes the panorama tile by tile. Every tile is blended from the parts of the warped images
+ * which intersect it, only the parts of the input images the tile reads from are resized to the
+ * compose scale. Memory used by resizing, warping and blending depends on the tile size and not
+ * on the panorama size, peak memory is the CV_8UC3 result plus one tile with its margin per
+ * worker: pyramids of the blender, a warped part and its source part of one image
+ *
+ * @param images        full resolution images
+ * @param compose_scale scale of the images on the panorama, 1 if they are not resized
+ * @param cameras       cameras in compose scale
+ * @param corners     corners and sizes of warped images in compose scale
+ * @param seam_masks  warped masks after seam finding in seam scale
+ * @param warp_type   plane|cylindrical|spherical|fisheye|stereographic
+ * @param num_bands   bands of the multi band blender, 0 for no blending
+ * @return 0 on success, STITCH_CANCELLED if the session was cancelled
+ */
+int composeTiled(StitchSession &session, const std::vector<cv::Mat> &images,
+                 double compose_scale, const std::vector<cv::detail::CameraParams> &cameras,
+                 const std::vector<cv::Point> &corners, const std::vector<cv::Size> &sizes,
+                 const std::vector<cv::UMat> &seam_masks,
+                 const cv::Ptr<cv::detail::ExposureCompensator> &compensator,
+                 const std::string &warp_type, float warped_image_scale, int num_bands,
+                 int tile_size, int workers, float progress_step, cv::Mat &result);
+
+#endif //PANORAMA360_TILEDCOMPOSITOR_H
@@ -1,8 +1,11 @@
 #include "study_acodexm_NativePanorama.h"
 #include "opencv2/opencv.hpp"
 #include <android/log.h>
+#include <memory>
 #include "ImgStitcher.h"
 #include "CroppImg.h"
+#include "RawImage.h"
+#include "PanoramaBuilder.h"
 
 #define  LOG_TAG    "NativePanorama"
 
@@ -13,36 +16,71 @@
 using namespace std;
 using namespace cv;
 
-int stitchImg(vector<Mat> &imagesArg, Mat &result, vector<string> params);
-
 int cropp(Mat &result);
-/*
- * This method uses the openCV Stitcher class to create panorama image from given pictures list
- * Additionally if the stitching was successful it crops the image to rectangular shape
+
+/**
+ * passes stitching progress to java StitchProgressListener, it is called only on the thread
+ * which runs the session so the env stays valid
  */
-JNIEXPORT void JNICALL
-Java_study_acodexm_NativePanorama_processPanorama
-        (JNIEnv *env, jclass clazz, jlongArray imageAddressArray, jlong outputAddress,
-         jobjectArray stringArray) {
-
-    bool isCropped = false;
-    int size = env->GetArrayLength(stringArray);
-    vector<string> params;
-    bool useDefault = false;
-    for (int i = 0; i < size; ++i) {
-        auto args = (jstring) env->GetObjectArrayElement(stringArray, i);
-        const char *value = env->GetStringUTFChars(args, nullptr);
-        if (string(value) == "cropp") {
-            isCropped = true;
-        } else if (string(value) == "open_cv_default") {
-            useDefault = true;
-        } else {
-            params.emplace_back(value);
+class JavaStitchListener : public StitchListener {
+public:
+    JavaStitchListener(JNIEnv *env, jobject listener) : env(env), listener(listener) {
+        jclass clazz = env->GetObjectClass(listener);
+        method = env->GetMethodID(clazz, "onProgress", "(Ljava/lang/String;IIIJ)V");
+        env->DeleteLocalRef(clazz);
+    }
+
+    void onProgress(const char *stage, int index, int total, int progress,
+                    double elapsed) override {
+        jstring name = env->NewStringUTF(stage);
+        env->CallVoidMethod(listener, method, name, index, total, progress,
+                            (jlong) (elapsed * 1000));
+        env->DeleteLocalRef(name);
+        if (env->ExceptionCheck()) {
+            LOGE("Progress listener failed");
+            env->ExceptionClear();
         }
-        env->ReleaseStringUTFChars(args, value);
-        env->DeleteLocalRef(args);
     }
 
+private:
+    JNIEnv *env;
+    jobject listener;
+    jmethodID method;
+};
+/**
+ * copies binary config written by java StitchConfig, false if its size or version differ
+ */
+bool readConfig(JNIEnv *env, jbyteArray configArray, StitchConfig &config) {
+    if (env->GetArrayLength(configArray) != sizeof(StitchConfig)) {
+        LOGE("Config size %d differs from %d", env->GetArrayLength(configArray),
+             (int) sizeof(StitchConfig));
+        return false;
+    }
+    env->GetByteArrayRegion(configArray, 0, sizeof(StitchConfig),
+                            reinterpret_cast<jbyte *>(&config));
+    if (config.version != STITCH_CONFIG_VERSION) {
+        LOGE("Config version %d differs from %d", config.version, STITCH_CONFIG_VERSION);
+        return false;
+    }
+    return true;
+}
+
+/**
+ * 3 channel image the stitcher takes, images decoded from raw camera frames and missing
+ * sidecars are kept as they are
+ */
+Mat toStitchInput(const Mat &image) {
+    if (image.empty() || image.channels() == 3)
+        return image;
+    Mat converted;
+    cvtColor(image, converted, CV_BGRA2RGB);
+    return converted;
+}
+
+/**
+ * converts java images to 3 channel Mats, java Mats are released
+ */
+vector<Mat> readImages(JNIEnv *env, jlongArray imageAddressArray) {
     // Get the length of the long array
     jsize a_len = env->GetArrayLength(imageAddressArray);
     // Convert the jlongArray to an array of jlong
@@ -52,59 +90,428 @@ Java_study_acodexm_NativePanorama_processPanorama
     for (int k = 0; k < a_len; k++) {
         // Get the image
         Mat &curimage = *(Mat *) imgAddressArr[k];
-        Mat newimage;
         // Convert to a 3 channel Mat
-        cvtColor(curimage, newimage, CV_BGRA2RGB);
+        Mat newimage = toStitchInput(curimage);
         curimage.release();
         imgVec.push_back(newimage);
         newimage.release();
     }
-    if (useDefault) {
+    // Release the jlong array
+    env->ReleaseLongArrayElements(imageAddressArray, imgAddressArr, 0);
+    return imgVec;
+}
+
+/**
+ * grid cell ids of the images, empty array means that positions are unknown
+ */
+vector<int> readCellIds(JNIEnv *env, jintArray cellIdArray) {
+    vector<int> cellIds;
+    jsize ids_len = env->GetArrayLength(cellIdArray);
+    jint *cellIdArr = env->GetIntArrayElements(cellIdArray, 0);
+    for (int k = 0; k < ids_len; k++) {
+        cellIds.push_back(cellIdArr[k]);
+    }
+    env->ReleaseIntArrayElements(cellIdArray, cellIdArr, JNI_ABORT);
+    return cellIds;
+}
+
+/**
+ * device orientations of the images, four values per image or empty if unknown
+ */
+vector<float> readOrientations(JNIEnv *env, jfloatArray orientationArray) {
+    jsize orientations_len = env->GetArrayLength(orientationArray);
+    jfloat *orientationArr = env->GetFloatArrayElements(orientationArray, 0);
+    vector<float> orientations(orientationArr, orientationArr + orientations_len);
+    env->ReleaseFloatArrayElements(orientationArray, orientationArr, JNI_ABORT);
+    return orientations;
+}
+
+void cropResult(Mat &result) {
+    LOGD("cropping...");
+    if (cropp(result) != 0) {
+        LOGE("cropping FAILED");
+    } else {
+        LOGD("cropping SUCCESS");
+    }
+}
+
+/*
+ * This method uses the openCV Stitcher class to create panorama image from given pictures list
+ * Additionally if the stitching was successful it crops the image to rectangular shape
+ */
+int processPanorama(JNIEnv *env, StitchSession &session, jlongArray imageAddressArray,
+                    jlong outputAddress, jbyteArray configArray, jintArray cellIdArray,
+                    jint gridLat, jfloatArray orientationArray) {
+
+    StitchConfig config;
+    if (!readConfig(env, configArray, config))
+        return -1;
+    vector<Mat> imgVec = readImages(env, imageAddressArray);
+    vector<int> cellIds = readCellIds(env, cellIdArray);
+    vector<float> orientations = readOrientations(env, orientationArray);
+
+    int status;
+    Mat &result = *(Mat *) outputAddress;
+    if (config.useOpenCvDefault()) {
         int64 app_start_time = getTickCount();
-        Mat &result = *(Mat *) outputAddress;
         Stitcher::Mode mode = Stitcher::PANORAMA;
         Ptr<Stitcher> stitcher = Stitcher::create(mode, false);
-        Stitcher::Status status = stitcher->stitch(imgVec, result);
+        status = stitcher->stitch(imgVec, result);
         LOGP("OpenCV Stitcher, total time: %f",
              ((getTickCount() - app_start_time) / getTickFrequency()));
         if (status != Stitcher::OK) {
-            LOGE("Can't stitch images, error code = %d", int(status));
+            LOGE("Can't stitch images, error code = %d", status);
         } else {
             LOGD("Stitch SUCCESS");
-            if (isCropped) {
-                LOGD("cropping...");
-                if (cropp(result) != 0) {
-                    LOGE("cropping FAILED");
-                } else {
-                    LOGD("cropping SUCCESS");
-                }
-            }
+            if (config.isCropped())
+                cropResult(result);
         }
     } else {
-        Mat &result = *(Mat *) outputAddress;
-        int status = stitchImg(imgVec, result, params);
+        status = stitchImg(session, imgVec, result, config, cellIds, gridLat, orientations);
         if (status != 0) {
             LOGE("Can't stitch images, error code = %d", status);
         } else {
             LOGD("Stitch SUCCESS");
-            if (isCropped) {
-                LOGD("cropping...");
-                if (cropp(result) != 0) {
-                    LOGE("cropping FAILED");
-                } else {
-                    LOGD("cropping SUCCESS");
-                }
-            }
+            if (config.isCropped())
+                cropResult(result);
         }
     }
-    // Release the jlong array
-    env->ReleaseLongArrayElements(imageAddressArray, imgAddressArr, 0);
+    return status;
 }
 
-JNIEXPORT jint JNICALL
-Java_study_acodexm_NativePanorama_getProgress
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_processPanorama
+        (JNIEnv *env, jclass clazz, jlongArray imageAddressArray, jlong outputAddress,
+         jbyteArray configArray, jintArray cellIdArray, jint gridLat,
+         jfloatArray orientationArray) {
+    StitchSession session;
+    processPanorama(env, session, imageAddressArray, outputAddress, configArray, cellIdArray,
+                    gridLat, orientationArray);
+}
+
+JNIEXPORT jlong JNICALL
+Java_study_acodexm_NativePanorama_createSession
         (JNIEnv *env, jclass clazz) {
-    return getProgress();
+    return (jlong) new StitchSession();
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_runSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jlongArray imageAddressArray,
+         jlong outputAddress, jbyteArray configArray, jintArray cellIdArray, jint gridLat,
+         jfloatArray orientationArray, jobject listener) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    unique_ptr<JavaStitchListener> javaListener;
+    if (listener != nullptr) {
+        javaListener.reset(new JavaStitchListener(env, listener));
+        session.setListener(javaListener.get());
+    }
+    int status = processPanorama(env, session, imageAddressArray, outputAddress, configArray,
+                                 cellIdArray, gridLat, orientationArray);
+    session.setListener(nullptr);
+    session.release();
+    return status;
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_previewSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jlongArray imageAddressArray,
+         jlong previewAddress, jbyteArray configArray, jintArray cellIdArray, jint gridLat,
+         jfloatArray orientationArray, jobject listener) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    unique_ptr<JavaStitchListener> javaListener;
+    if (listener != nullptr) {
+        javaListener.reset(new JavaStitchListener(env, listener));
+        session.setListener(javaListener.get());
+    }
+    StitchConfig config;
+    int status = -1;
+    if (readConfig(env, configArray, config)) {
+        vector<Mat> imgVec = readImages(env, imageAddressArray);
+        vector<int> cellIds = readCellIds(env, cellIdArray);
+        vector<float> orientations = readOrientations(env, orientationArray);
+        Mat &preview = *(Mat *) previewAddress;
+        status = registerImages(session, imgVec, config, cellIds, gridLat, orientations,
+                                &preview);
+    }
+    if (status != 0) {
+        LOGE("Can't register images, error code = %d", status);
+        session.release();
+    } else if (config.isCropped()) {
+        cropResult(*(Mat *) previewAddress);
+    }
+    session.setListener(nullptr);
+    return status;
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_composeSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jlong outputAddress, jboolean crop,
+         jobject listener) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    unique_ptr<JavaStitchListener> javaListener;
+    if (listener != nullptr) {
+        javaListener.reset(new JavaStitchListener(env, listener));
+        session.setListener(javaListener.get());
+    }
+    Mat &result = *(Mat *) outputAddress;
+    int status = composePanorama(session, result);
+    if (status != 0) {
+        LOGE("Can't compose panorama, error code = %d", status);
+    } else {
+        LOGD("Compose SUCCESS");
+        if (crop)
+            cropResult(result);
+    }
+    session.setListener(nullptr);
+    session.release();
+    return status;
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_getSessionProgress
+        (JNIEnv *env, jclass clazz, jlong sessionAddress) {
+    return ((StitchSession *) sessionAddress)->getProgress();
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_cancelSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress) {
+    ((StitchSession *) sessionAddress)->cancel();
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_destroySession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress) {
+    delete (StitchSession *) sessionAddress;
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_setSessionSidecars
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jlongArray workAddressArray,
+         jlongArray seamAddressArray) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    session.workImages = readImages(env, workAddressArray);
+    session.seamImages = readImages(env, seamAddressArray);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_setSessionCheckpoints
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jstring dir, jlongArray inputKeyArray) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    const char *dir_chars = env->GetStringUTFChars(dir, nullptr);
+    session.checkpointDir = dir_chars;
+    env->ReleaseStringUTFChars(dir, dir_chars);
+    jsize keys_len = env->GetArrayLength(inputKeyArray);
+    jlong *keys = env->GetLongArrayElements(inputKeyArray, nullptr);
+    session.inputKeys.assign(keys, keys + keys_len);
+    env->ReleaseLongArrayElements(inputKeyArray, keys, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_makeSidecars
+        (JNIEnv *env, jclass clazz, jlong imageAddress, jdouble workMegapix, jdouble seamMegapix,
+         jlong workAddress, jlong seamAddress) {
+    Mat &image = *(Mat *) imageAddress;
+    makeSidecars(toStitchInput(image), workMegapix, seamMegapix, *(Mat *) workAddress,
+                 *(Mat *) seamAddress);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_setSessionFeatures
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jobjectArray featureArray) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    jsize features_len = env->GetArrayLength(featureArray);
+    session.precomputed.clear();
+    for (int k = 0; k < features_len; k++) {
+        jobject yml = env->GetObjectArrayElement(featureArray, k);
+        if (yml == nullptr) {
+            session.precomputed.emplace_back();
+            continue;
+        }
+        // read straight from the mapped session pack
+        auto data = (const char *) env->GetDirectBufferAddress(yml);
+        auto length = static_cast<size_t>(env->GetDirectBufferCapacity(yml));
+        session.precomputed.push_back(readPrecomputedFeatures(string(data, length)));
+        env->DeleteLocalRef(yml);
+    }
+}
+
+/**
+ * reads solutions written by writePartSolution straight from the mapped session pack, broken
+ * ones are empty
+ */
+vector<PartSolution> readSolutions(JNIEnv *env, jobjectArray solutionArray) {
+    vector<PartSolution> solutions;
+    jsize solutions_len = env->GetArrayLength(solutionArray);
+    for (int k = 0; k < solutions_len; k++) {
+        jobject yml = env->GetObjectArrayElement(solutionArray, k);
+        if (yml == nullptr) {
+            solutions.emplace_back();
+            continue;
+        }
+        auto data = (const char *) env->GetDirectBufferAddress(yml);
+        auto length = static_cast<size_t>(env->GetDirectBufferCapacity(yml));
+        solutions.push_back(readPartSolution(string(data, length)));
+        env->DeleteLocalRef(yml);
+    }
+    return solutions;
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_solveSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jlongArray imageAddressArray,
+         jbyteArray configArray, jintArray cellIdArray, jint gridLat,
+         jfloatArray orientationArray, jobject listener) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    unique_ptr<JavaStitchListener> javaListener;
+    if (listener != nullptr) {
+        javaListener.reset(new JavaStitchListener(env, listener));
+        session.setListener(javaListener.get());
+    }
+    StitchConfig config;
+    int status = -1;
+    if (readConfig(env, configArray, config)) {
+        vector<Mat> imgVec = readImages(env, imageAddressArray);
+        vector<int> cellIds = readCellIds(env, cellIdArray);
+        vector<float> orientations = readOrientations(env, orientationArray);
+        session.solveOnly = true;
+        status = registerImages(session, imgVec, config, cellIds, gridLat, orientations,
+                                nullptr);
+        session.solveOnly = false;
+    }
+    if (status != 0)
+        LOGE("Can't solve cameras, error code = %d", status);
+    session.setListener(nullptr);
+    session.release();
+    return status;
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_mergeSession
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jobjectArray solutionArray,
+         jbyteArray configArray, jint gridLat) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    StitchConfig config;
+    int status = -1;
+    if (readConfig(env, configArray, config))
+        status = mergeSolutions(session, readSolutions(env, solutionArray), config, gridLat);
+    if (status != 0)
+        LOGE("Can't merge solutions, error code = %d", status);
+    session.release();
+    return status;
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_setSessionSolutions
+        (JNIEnv *env, jclass clazz, jlong sessionAddress, jobjectArray solutionArray) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    session.seeds.clear();
+    for (PartSolution &solution : readSolutions(env, solutionArray))
+        if (!solution.empty())
+            session.seeds.push_back(solution);
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_study_acodexm_NativePanorama_takeSessionSolution
+        (JNIEnv *env, jclass clazz, jlong sessionAddress) {
+    StitchSession &session = *(StitchSession *) sessionAddress;
+    if (session.solution.empty())
+        return nullptr;
+    string yml = writePartSolution(session.solution);
+    session.solution = PartSolution();
+    jbyteArray result = env->NewByteArray(static_cast<jsize>(yml.size()));
+    env->SetByteArrayRegion(result, 0, static_cast<jsize>(yml.size()),
+                            reinterpret_cast<const jbyte *>(yml.data()));
+    return result;
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_study_acodexm_NativePanorama_precomputeFeatures
+        (JNIEnv *env, jclass clazz, jlong workAddress, jbyteArray configArray) {
+    StitchConfig config;
+    if (!readConfig(env, configArray, config))
+        return nullptr;
+    string yml = writePrecomputedFeatures(*(Mat *) workAddress, config);
+    jbyteArray result = env->NewByteArray(static_cast<jsize>(yml.size()));
+    env->SetByteArrayRegion(result, 0, static_cast<jsize>(yml.size()),
+                            reinterpret_cast<const jbyte *>(yml.data()));
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_decodeImage
+        (JNIEnv *env, jclass clazz, jobject encoded, jlong outputAddress) {
+    Mat &result = *(Mat *) outputAddress;
+    decodeImage((const uchar *) env->GetDirectBufferAddress(encoded),
+                static_cast<size_t>(env->GetDirectBufferCapacity(encoded)), result);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_copyBgr
+        (JNIEnv *env, jclass clazz, jobject bgr, jint width, jint height, jlong outputAddress) {
+    Mat &result = *(Mat *) outputAddress;
+    // mapped payload is wrapped without a copy, result gets its own pixels
+    Mat(height, width, CV_8UC3, env->GetDirectBufferAddress(bgr)).copyTo(result);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_packYuv
+        (JNIEnv *env, jclass clazz, jobject yPlane, jobject uPlane, jobject vPlane, jint width,
+         jint height, jint yRowStride, jint uvRowStride, jint uvPixelStride, jobject i420) {
+    packI420((uchar *) env->GetDirectBufferAddress(yPlane),
+             (uchar *) env->GetDirectBufferAddress(uPlane),
+             (uchar *) env->GetDirectBufferAddress(vPlane), width, height, yRowStride, uvRowStride,
+             uvPixelStride, (uchar *) env->GetDirectBufferAddress(i420));
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_yuvToBgr
+        (JNIEnv *env, jclass clazz, jobject i420, jint width, jint height, jint rotation,
+         jlong outputAddress) {
+    Mat &result = *(Mat *) outputAddress;
+    i420ToBgr((uchar *) env->GetDirectBufferAddress(i420), width, height, rotation, result);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_yuvToRgba
+        (JNIEnv *env, jclass clazz, jobject i420, jint width, jint height, jint rotation,
+         jobject rgba, jint rgbaWidth, jint rgbaHeight) {
+    Mat texture(rgbaHeight, rgbaWidth, CV_8UC4, env->GetDirectBufferAddress(rgba));
+    i420ToRgba((uchar *) env->GetDirectBufferAddress(i420), width, height, rotation, texture);
+}
+
+JNIEXPORT jlong JNICALL
+Java_study_acodexm_NativePanorama_createBuilder
+        (JNIEnv *env, jclass clazz, jint gridLat, jdouble composeMegapix) {
+    return (jlong) new PanoramaBuilder(gridLat, composeMegapix);
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_addToBuilder
+        (JNIEnv *env, jclass clazz, jlong builderAddress, jlong imageAddress, jint cellId) {
+    // 3 channel picture in the same channel order as the pictures of stitching, it is not changed
+    Mat &image = *(Mat *) imageAddress;
+    return ((PanoramaBuilder *) builderAddress)->add(image, cellId);
+}
+
+JNIEXPORT jint JNICALL
+Java_study_acodexm_NativePanorama_getBuilderSize
+        (JNIEnv *env, jclass clazz, jlong builderAddress) {
+    return ((PanoramaBuilder *) builderAddress)->size();
+}
+
+JNIEXPORT jboolean JNICALL
+Java_study_acodexm_NativePanorama_getBuilderResult
+        (JNIEnv *env, jclass clazz, jlong builderAddress, jlong outputAddress) {
+    Mat &result = *(Mat *) outputAddress;
+    return (jboolean) ((PanoramaBuilder *) builderAddress)->result(result);
+}
+
+JNIEXPORT void JNICALL
+Java_study_acodexm_NativePanorama_destroyBuilder
+        (JNIEnv *env, jclass clazz, jlong builderAddress) {
+    delete (PanoramaBuilder *) builderAddress;
 }
 
 
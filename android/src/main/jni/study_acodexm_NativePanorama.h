@@ -10,10 +10,10 @@ extern "C" {
 /*
  * Class:     study_acodexm_NativePanorama
  * Method:    processPanorama
- * Signature: ([JJ[Ljava/lang/String;)V
+ * Signature: ([JJ[B[II[F)V
  */
 JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_processPanorama
-  (JNIEnv *, jclass, jlongArray, jlong, jobjectArray);
+  (JNIEnv *, jclass, jlongArray, jlong, jbyteArray, jintArray, jint, jfloatArray);
 
 /*
  * Class:     study_acodexm_NativePanorama
@@ -25,12 +25,212 @@ JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_cropPanorama
 
 /*
  * Class:     study_acodexm_NativePanorama
- * Method:    getProgress
- * Signature: ()I
+ * Method:    createSession
+ * Signature: ()J
  */
-JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_getProgress
+JNIEXPORT jlong JNICALL Java_study_acodexm_NativePanorama_createSession
   (JNIEnv *, jclass);
 
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    runSession
+ * Signature: (J[JJ[B[II[FLstudy/acodexm/StitchProgressListener;)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_runSession
+  (JNIEnv *, jclass, jlong, jlongArray, jlong, jbyteArray, jintArray, jint, jfloatArray, jobject);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    previewSession
+ * Signature: (J[JJ[B[II[FLstudy/acodexm/StitchProgressListener;)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_previewSession
+  (JNIEnv *, jclass, jlong, jlongArray, jlong, jbyteArray, jintArray, jint, jfloatArray, jobject);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    composeSession
+ * Signature: (JJZLstudy/acodexm/StitchProgressListener;)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_composeSession
+  (JNIEnv *, jclass, jlong, jlong, jboolean, jobject);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    getSessionProgress
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_getSessionProgress
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    cancelSession
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_cancelSession
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    destroySession
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_destroySession
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    setSessionSidecars
+ * Signature: (J[J[J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_setSessionSidecars
+  (JNIEnv *, jclass, jlong, jlongArray, jlongArray);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    makeSidecars
+ * Signature: (JDDJJ)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_makeSidecars
+  (JNIEnv *, jclass, jlong, jdouble, jdouble, jlong, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    setSessionCheckpoints
+ * Signature: (JLjava/lang/String;[J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_setSessionCheckpoints
+  (JNIEnv *, jclass, jlong, jstring, jlongArray);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    setSessionFeatures
+ * Signature: (J[Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_setSessionFeatures
+  (JNIEnv *, jclass, jlong, jobjectArray);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    solveSession
+ * Signature: (J[J[B[II[FLstudy/acodexm/StitchProgressListener;)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_solveSession
+  (JNIEnv *, jclass, jlong, jlongArray, jbyteArray, jintArray, jint, jfloatArray, jobject);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    mergeSession
+ * Signature: (J[Ljava/nio/ByteBuffer;[BI)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_mergeSession
+  (JNIEnv *, jclass, jlong, jobjectArray, jbyteArray, jint);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    setSessionSolutions
+ * Signature: (J[Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_setSessionSolutions
+  (JNIEnv *, jclass, jlong, jobjectArray);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    takeSessionSolution
+ * Signature: (J)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_study_acodexm_NativePanorama_takeSessionSolution
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    precomputeFeatures
+ * Signature: (J[B)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_study_acodexm_NativePanorama_precomputeFeatures
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    decodeImage
+ * Signature: (Ljava/nio/ByteBuffer;J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_decodeImage
+  (JNIEnv *, jclass, jobject, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    copyBgr
+ * Signature: (Ljava/nio/ByteBuffer;IIJ)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_copyBgr
+  (JNIEnv *, jclass, jobject, jint, jint, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    packYuv
+ * Signature: (Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;IIIIILjava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_packYuv
+  (JNIEnv *, jclass, jobject, jobject, jobject, jint, jint, jint, jint, jint, jobject);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    yuvToBgr
+ * Signature: (Ljava/nio/ByteBuffer;IIIJ)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_yuvToBgr
+  (JNIEnv *, jclass, jobject, jint, jint, jint, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    yuvToRgba
+ * Signature: (Ljava/nio/ByteBuffer;IIILjava/nio/ByteBuffer;II)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_yuvToRgba
+  (JNIEnv *, jclass, jobject, jint, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    createBuilder
+ * Signature: (ID)J
+ */
+JNIEXPORT jlong JNICALL Java_study_acodexm_NativePanorama_createBuilder
+  (JNIEnv *, jclass, jint, jdouble);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    addToBuilder
+ * Signature: (JJI)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_addToBuilder
+  (JNIEnv *, jclass, jlong, jlong, jint);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    getBuilderSize
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_study_acodexm_NativePanorama_getBuilderSize
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    getBuilderResult
+ * Signature: (JJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_study_acodexm_NativePanorama_getBuilderResult
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     study_acodexm_NativePanorama
+ * Method:    destroyBuilder
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_study_acodexm_NativePanorama_destroyBuilder
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,60 @@
+package study.acodexm;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import study.acodexm.settings.PictureMode;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StitchConfigTests {
+
+    @Test
+    public void testLayout() {
+        StitchConfig config = StitchConfig.forPictureMode(PictureMode.PICTURE_360);
+        config.setCrop(true);
+        config.setCheckpoints(true);
+        config.setThreads(3);
+        ByteBuffer buffer = ByteBuffer.wrap(config.toBytes()).order(ByteOrder.nativeOrder());
+        assertEquals(StitchConfig.SIZE, buffer.capacity());
+        assertEquals(StitchConfig.VERSION, buffer.getInt(0));
+        assertEquals(1500, buffer.getInt(2 * 4));
+        assertEquals(3, buffer.getInt(11 * 4));
+        assertEquals(1 | 4, buffer.getInt(13 * 4));
+        assertEquals(0.6, buffer.getDouble(14 * 4), 0);
+        assertEquals(0.7, buffer.getDouble(14 * 4 + 2 * 8), 0);
+        assertEquals(1, buffer.getDouble(14 * 4 + 5 * 8), 0);
+    }
+
+    @Test
+    public void testTypesFromSettings() {
+        StitchConfig config = new StitchConfig();
+        config.setTypes("akaze", "plane", "gc_color", "GAIN_BLOCKS");
+        assertEquals(StitchConfig.DETECTOR_AKAZE, config.getDetector());
+        assertEquals(StitchConfig.WARPER_PLANE, config.getWarper());
+        assertEquals(StitchConfig.SEAM_GC_COLOR, config.getSeamFinder());
+        assertEquals(StitchConfig.EXPOSURE_GAIN_BLOCKS, config.getExposureCompensator());
+        config.validate();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTypeIsRejected() {
+        StitchConfig config = new StitchConfig();
+        config.setTypes("sift", "spherical", "dp_color", "no");
+        config.toBytes();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScaleIsRejected() {
+        StitchConfig config = new StitchConfig();
+        config.setSeamMegapix(0);
+        config.validate();
+    }
+}
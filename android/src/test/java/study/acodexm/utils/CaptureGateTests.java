@@ -0,0 +1,75 @@
+package study.acodexm.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CaptureGateTests {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void testOpenWhenSteadyForDwellWindow() {
+        CaptureGate gate = new CaptureGate(0.2, 150 * MS, 20, 500 * MS);
+        gate.onRotationVelocity(1.5, 1000 * MS);
+        assertEquals(CaptureGate.State.MOVING, gate.getState(1010 * MS));
+        gate.onRotationVelocity(0.1, 1020 * MS);
+        assertEquals(CaptureGate.State.SETTLING, gate.getState(1100 * MS));
+        gate.onRotationVelocity(0.05, 1150 * MS);
+        assertEquals(CaptureGate.State.OPEN, gate.getState(1200 * MS));
+        // any fast sample restarts the dwell window
+        gate.onRotationVelocity(0.5, 1210 * MS);
+        gate.onRotationVelocity(0.1, 1220 * MS);
+        assertEquals(CaptureGate.State.SETTLING, gate.getState(1300 * MS));
+    }
+
+    @Test
+    public void testBlurredUntilSharpFrameWhileSteady() {
+        CaptureGate gate = new CaptureGate(0.2, 100 * MS, 20, 500 * MS);
+        gate.onSharpness(100, 900 * MS);
+        gate.onRotationVelocity(1, 1000 * MS);
+        gate.onRotationVelocity(0, 1010 * MS);
+        // frame sampled before the device was steady does not count
+        assertEquals(CaptureGate.State.BLURRED, gate.getState(1200 * MS));
+        gate.onSharpness(5, 1200 * MS);
+        assertEquals(CaptureGate.State.BLURRED, gate.getState(1210 * MS));
+        gate.onSharpness(80, 1300 * MS);
+        assertEquals(CaptureGate.State.OPEN, gate.getState(1310 * MS));
+    }
+
+    @Test
+    public void testShutterRateLimit() {
+        CaptureGate gate = new CaptureGate(0.2, 100 * MS, 20, 500 * MS);
+        assertTrue(gate.isOpen(1000 * MS));
+        gate.onShutter(1000 * MS);
+        assertEquals(CaptureGate.State.COOLDOWN, gate.getState(1400 * MS));
+        assertTrue(gate.isOpen(1500 * MS));
+    }
+
+    @Test
+    public void testSharpness() {
+        int width = 64;
+        int height = 48;
+        byte[] flat = new byte[width * height];
+        byte[] edges = new byte[width * height];
+        byte[] blurred = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                flat[y * width + x] = (byte) 128;
+                edges[y * width + x] = (byte) ((x / 2 + y / 2) % 2 == 0 ? 0 : 255);
+                // the same pattern smoothed over 4 pixels
+                blurred[y * width + x] = (byte) (128 + 127 * Math.sin(x * Math.PI / 4) * Math.sin(y * Math.PI / 4));
+            }
+        }
+        assertEquals(0, CaptureGate.sharpness(flat, width, height, 2), 0);
+        double sharp = CaptureGate.sharpness(edges, width, height, 2);
+        double soft = CaptureGate.sharpness(blurred, width, height, 2);
+        assertTrue(sharp > soft);
+        assertTrue(sharp > CaptureGate.DEFAULT_MIN_SHARPNESS);
+    }
+}
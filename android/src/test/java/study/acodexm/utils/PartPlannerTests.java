@@ -0,0 +1,74 @@
+package study.acodexm.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PartPlannerTests {
+    private static final int LAT = 10;
+
+    private static int cell(int row, int col) {
+        return row * (LAT + 1) + col;
+    }
+
+    private static List<Integer> sorted(List<Integer> cells) {
+        List<Integer> copy = new ArrayList<>(cells);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void testNeighboursWrapAtSeam() {
+        PartPlanner planner = new PartPlanner(LAT);
+        assertTrue(planner.areNeighbours(cell(1, 0), cell(1, LAT - 1)));
+        assertTrue(planner.areNeighbours(cell(1, 0), cell(2, LAT - 1)));
+        assertTrue(planner.areNeighbours(cell(1, 4), cell(2, 5)));
+        assertFalse(planner.areNeighbours(cell(1, 4), cell(1, 6)));
+        assertFalse(planner.areNeighbours(cell(1, 4), cell(3, 4)));
+    }
+
+    @Test
+    public void testOnlyConnectedGroups() {
+        PartPlanner planner = new PartPlanner(LAT);
+        // array order would put the first three together although they do not touch
+        List<Integer> available = Arrays.asList(cell(1, 0), cell(1, 3), cell(1, 5), cell(1, 4), cell(1, 8), cell(1, 9));
+        List<List<Integer>> groups = planner.plan(available, available, 3, 3);
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(cell(1, 0), cell(1, 8), cell(1, 9)), sorted(groups.get(0)));
+        assertEquals(Arrays.asList(cell(1, 3), cell(1, 4), cell(1, 5)), sorted(groups.get(1)));
+    }
+
+    @Test
+    public void testIsolatedCellWaits() {
+        PartPlanner planner = new PartPlanner(LAT);
+        List<Integer> available = Arrays.asList(cell(1, 2), cell(3, 6), cell(1, 3));
+        List<List<Integer>> groups = planner.plan(available, available, 3, 3);
+        assertTrue(groups.isEmpty());
+        groups = planner.plan(available, Collections.singletonList(cell(3, 6)), 2, 3);
+        assertTrue(groups.isEmpty());
+        groups = planner.plan(available, Collections.singletonList(cell(1, 2)), 2, 3);
+        assertEquals(Collections.singletonList(Arrays.asList(cell(1, 2), cell(1, 3))), groups);
+    }
+
+    @Test
+    public void testExtendsStitchedParts() {
+        PartPlanner planner = new PartPlanner(LAT);
+        planner.markStitched(Arrays.asList(cell(2, 4), cell(2, 5), cell(2, 6)));
+        List<Integer> available = Arrays.asList(cell(2, 0), cell(2, 1), cell(1, 5), cell(1, 6), cell(1, 4));
+        List<List<Integer>> groups = planner.plan(available, available, 3, 3);
+        assertEquals(1, groups.size());
+        assertEquals(Arrays.asList(cell(1, 4), cell(1, 5), cell(1, 6)), sorted(groups.get(0)));
+    }
+}
@@ -0,0 +1,58 @@
+package study.acodexm.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import study.acodexm.StitchConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class QualityPlannerTests {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testFullResolutionWhenBudgetIsBig() {
+        QualityPlanner.Plan plan = new QualityPlanner(4096 * MB, 600, 4)
+                .plan(6, 1280, 720, "spherical", "dp_color");
+        assertTrue(plan.fits());
+        assertEquals(-1, plan.getComposeMegapix(), 0);
+        assertEquals(0.6, plan.getWorkMegapix(), 0);
+        assertEquals(0, plan.getTileSize());
+    }
+
+    @Test
+    public void testLowerQualityWhenMemoryIsSmall() {
+        QualityPlanner planner = new QualityPlanner(300 * MB, 600, 4);
+        QualityPlanner.Plan plan = planner.plan(20, 4000, 3000, "spherical", "dp_color");
+        assertTrue(plan.fits());
+        assertTrue(plan.getMemory() <= 300 * MB);
+        assertTrue(plan.getComposeMegapix() > 0 || plan.getTileSize() > 0);
+    }
+
+    @Test
+    public void testSmallestSettingsWhenNothingFits() {
+        QualityPlanner.Plan plan = new QualityPlanner(MB, 1, 1)
+                .plan(20, 4000, 3000, "spherical", "gc_color");
+        assertFalse(plan.fits());
+        assertEquals(0.2, plan.getComposeMegapix(), 0);
+        assertEquals(500, plan.getFeatures());
+    }
+
+    @Test
+    public void testApplyTo() {
+        QualityPlanner.Plan plan = new QualityPlanner(4096 * MB, 600, 2)
+                .plan(4, 1280, 720, "cylindrical", "no");
+        StitchConfig config = new StitchConfig();
+        plan.applyTo(config);
+        assertEquals(2, config.getThreads());
+        assertEquals(plan.getFeatures(), config.getFeatures());
+        assertEquals(plan.getComposeMegapix(), config.getComposeMegapix(), 0);
+        config.validate();
+    }
+}
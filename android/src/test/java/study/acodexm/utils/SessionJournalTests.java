@@ -0,0 +1,96 @@
+package study.acodexm.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import study.acodexm.PicturePosition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SessionJournalTests {
+    private static final int LAT = 10;
+    private static final int LON = 7;
+
+    private static void picture(SessionPack pack, int id) throws IOException {
+        pack.append(new SessionPack.Entry(id, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                1, 1, 0, 0, null), ByteBuffer.wrap(new byte[]{1}));
+    }
+
+    private static void part(SessionPack pack, int part, int state, Integer... cells) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate((cells.length + 2) * 4);
+        payload.putInt(state).putInt(0);
+        for (int cell : cells)
+            payload.putInt(cell);
+        payload.flip();
+        pack.append(new SessionPack.Entry(part, SessionPack.KIND_PART, SessionPack.CODEC_INT,
+                0, 0, 0, 0, null), payload);
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        File file = File.createTempFile("session", ".pack");
+        file.delete();
+        file.deleteOnExit();
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(0, SessionPack.KIND_GRID, SessionPack.CODEC_INT,
+                LAT, LON, 0, 0, null), ByteBuffer.allocate(0));
+        for (int id : new int[]{12, 13, 14, 23, 24, 25})
+            picture(pack, id);
+        part(pack, 0, SessionJournal.PART_RUNNING, 12, 13, 14);
+        part(pack, 0, SessionJournal.PART_SAVED, 12, 13, 14);
+        // process died while the second part was stitched
+        part(pack, 1, SessionJournal.PART_RUNNING, 23, 24, 25);
+        pack.close();
+
+        assertNull(SessionJournal.replay(SessionPack.open(file), LAT, 5));
+        SessionJournal.Session session = SessionJournal.replay(SessionPack.open(file), LAT, LON);
+        assertEquals(6, session.getTaken().size());
+        assertEquals(2, session.getNextPart());
+        Collections.sort(session.getUsed());
+        assertEquals(Arrays.asList(12, 13, 14), session.getUsed());
+
+        PicturePosition position = PicturePosition.getInstance(LAT, LON, true);
+        session.applyTo(position);
+        assertEquals(Arrays.asList(12, 13, 14, 23, 24, 25), position.getTakenPictures());
+        // interrupted part is picked again
+        assertEquals(Arrays.asList(23, 24, 25), ImagePicker.loadPanoParts(position));
+    }
+
+    @Test
+    public void testMergeReplacesParts() throws IOException {
+        File file = File.createTempFile("session", ".pack");
+        file.delete();
+        file.deleteOnExit();
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(0, SessionPack.KIND_GRID, SessionPack.CODEC_INT,
+                LAT, LON, 0, 0, null), ByteBuffer.allocate(0));
+        part(pack, 0, SessionJournal.PART_SAVED, 12, 13);
+        part(pack, 1, SessionJournal.PART_SAVED, 14, 15);
+        part(pack, 2, SessionJournal.PART_SAVED, 23, 24);
+        ByteBuffer merged = ByteBuffer.allocate(8 * 4);
+        merged.putInt(SessionJournal.PART_SAVED).putInt(2).putInt(0).putInt(1)
+                .putInt(12).putInt(13).putInt(14).putInt(15);
+        merged.flip();
+        pack.append(new SessionPack.Entry(3, SessionPack.KIND_PART, SessionPack.CODEC_INT,
+                0, 0, 0, 0, null), merged);
+        pack.close();
+
+        SessionJournal.Session session = SessionJournal.replay(SessionPack.open(file), LAT, LON);
+        assertEquals(4, session.getNextPart());
+        assertEquals(Arrays.asList(12, 13, 14, 15), session.getSavedParts().get(3));
+        assertEquals(Arrays.asList(23, 24), session.getSavedParts().get(2));
+        assertEquals(2, session.getSavedParts().size());
+        assertEquals(6, session.getUsed().size());
+    }
+}
@@ -0,0 +1,171 @@
+package study.acodexm.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SessionPackTests {
+
+    private static File newPackFile() throws IOException {
+        File file = File.createTempFile("session", ".pack");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] payload(SessionPack.Reader reader, SessionPack.Entry entry) {
+        ByteBuffer buffer = reader.payload(entry);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        File file = newPackFile();
+        float[] orientation = {0.1f, 0.2f, 0.3f, 0.9f};
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(7, SessionPack.KIND_PICTURE, SessionPack.CODEC_I420,
+                4, 2, 90, 123L, orientation), ByteBuffer.wrap(new byte[]{1, 2, 3}), ByteBuffer.wrap(new byte[]{4, 5, 6}));
+        pack.append(new SessionPack.Entry(7, SessionPack.KIND_WORK, SessionPack.CODEC_BGR,
+                1, 1, 0, 0, null), ByteBuffer.wrap(new byte[]{9, 9, 9}));
+        // retaken picture replaces the first one
+        pack.append(new SessionPack.Entry(7, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                8, 6, 0, 456L, null), ByteBuffer.wrap(new byte[]{10, 11}));
+        pack.sync();
+        pack.close();
+
+        SessionPack.Reader reader = SessionPack.open(file);
+        assertEquals(2, reader.size());
+        SessionPack.Entry picture = reader.get(SessionPack.KIND_PICTURE, 7);
+        assertEquals(SessionPack.CODEC_JPEG, picture.codec);
+        assertEquals(8, picture.width);
+        assertEquals(456L, picture.timestamp);
+        assertNull(picture.orientation);
+        assertArrayEquals(new byte[]{10, 11}, payload(reader, picture));
+        SessionPack.Entry work = reader.get(SessionPack.KIND_WORK, 7);
+        assertArrayEquals(new byte[]{9, 9, 9}, payload(reader, work));
+        assertNull(reader.get(SessionPack.KIND_SEAM, 7));
+        assertNull(reader.get(SessionPack.KIND_PICTURE, 8));
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws IOException {
+        File file = newPackFile();
+        float[] orientation = {0, 0, 0, 1};
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(1, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 1L, orientation), ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        pack.append(new SessionPack.Entry(2, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 2L, orientation), ByteBuffer.wrap(new byte[]{5, 6, 7, 8}));
+        pack.close();
+        // process died while the payload of the second picture was written
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 2);
+        }
+        SessionPack.Reader reader = SessionPack.open(file);
+        assertEquals(1, reader.size());
+        assertArrayEquals(orientation, reader.get(SessionPack.KIND_PICTURE, 1).orientation, 0);
+
+        pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(2, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 3L, orientation), ByteBuffer.wrap(new byte[]{5, 6, 7, 8}));
+        pack.close();
+        assertEquals(length, file.length());
+        reader = SessionPack.open(file);
+        assertEquals(2, reader.size());
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, payload(reader, reader.get(SessionPack.KIND_PICTURE, 2)));
+    }
+
+    @Test
+    public void testZeroFilledTailIsCutOff() throws IOException {
+        File file = newPackFile();
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(1, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 1L, null), ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+        pack.close();
+        // file was extended by delayed allocation but the data never reached the disk
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length + 3 * (SessionPack.ENTRY_SIZE + SessionPack.COMMIT_SIZE));
+        }
+        SessionPack.Reader reader = SessionPack.open(file);
+        assertEquals(1, reader.size());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, payload(reader, reader.get(SessionPack.KIND_PICTURE, 1)));
+        new SessionPack(file).close();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void testUnreadablePackIsRenamedAside() throws IOException {
+        File file = newPackFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        }
+        new SessionPack(file).close();
+        File[] aside = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        assertEquals(1, aside.length);
+        assertEquals(9, aside[0].length());
+        aside[0].delete();
+        assertEquals(0, SessionPack.open(file).size());
+        assertEquals(SessionPack.HEADER_SIZE, file.length());
+    }
+
+    @Test
+    public void testRecordsAreMappedInWindows() throws IOException {
+        File file = newPackFile();
+        SessionPack pack = new SessionPack(file);
+        for (int id = 0; id < 5; id++)
+            pack.append(new SessionPack.Entry(id, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                    2, 2, 0, id, null), ByteBuffer.wrap(new byte[]{(byte) id, 1, 2, 3, 4, 5}));
+        pack.close();
+        // two records fit in a window
+        long record = SessionPack.ENTRY_SIZE + 6 + SessionPack.COMMIT_SIZE;
+        SessionPack.Reader reader = SessionPack.open(file, 2 * record + 1);
+        assertEquals(5, reader.size());
+        for (int id = 0; id < 5; id++)
+            assertArrayEquals(new byte[]{(byte) id, 1, 2, 3, 4, 5}, payload(reader, reader.get(SessionPack.KIND_PICTURE, id)));
+        assertTrue(SessionPack.open(file, record - 1).size() == 0);
+    }
+
+    @Test
+    public void testUpdateMapsAppendedRecords() throws IOException {
+        File file = newPackFile();
+        SessionPack pack = new SessionPack(file);
+        pack.append(new SessionPack.Entry(1, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 1L, null), ByteBuffer.wrap(new byte[]{1, 2}));
+        SessionPack.Reader reader = SessionPack.open(file);
+        SessionPack.Entry first = reader.get(SessionPack.KIND_PICTURE, 1);
+        pack.append(new SessionPack.Entry(2, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 2L, null), ByteBuffer.wrap(new byte[]{3, 4}));
+        pack.append(new SessionPack.Entry(1, SessionPack.KIND_PICTURE, SessionPack.CODEC_JPEG,
+                2, 2, 0, 3L, null), ByteBuffer.wrap(new byte[]{5, 6}));
+        assertNull(reader.get(SessionPack.KIND_PICTURE, 2));
+        reader.update();
+        pack.close();
+        assertEquals(2, reader.size());
+        assertArrayEquals(new byte[]{3, 4}, payload(reader, reader.get(SessionPack.KIND_PICTURE, 2)));
+        // retaken picture replaces the first one, old payload stays readable
+        assertArrayEquals(new byte[]{5, 6}, payload(reader, reader.get(SessionPack.KIND_PICTURE, 1)));
+        assertArrayEquals(new byte[]{1, 2}, payload(reader, first));
+    }
+
+    @Test
+    public void testMissingPackIsEmpty() throws IOException {
+        assertEquals(0, SessionPack.open(newPackFile()).size());
+    }
+}
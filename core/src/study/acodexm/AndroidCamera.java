@@ -274,16 +274,15 @@ public class AndroidCamera implements ApplicationListener, SphereManualControl {
     }
 
     /**
-     * this method updates spherical model with given pictures in raw data and for given position on
-     * grid
+     * this method updates spherical model with given decoded picture and for given position on
+     * grid, pixels are uploaded as they are without decoding
      *
      * @param id
-     * @param bytes
+     * @param pixmap
      */
-    private void updateSingleTextureAndroid(int id, byte[] bytes) {
+    private void updateSingleTextureAndroid(int id, Pixmap pixmap) {
         Texture texture;
         try {
-            Pixmap pixmap = new Pixmap(bytes, 0, bytes.length);
             texture = new Texture(pixmap);
         } catch (Exception e) {
             LOG.e(TAG, "texture load failed, loading empty ", e);
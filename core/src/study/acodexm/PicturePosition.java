@@ -90,6 +90,18 @@ public class PicturePosition {
         }
     }
 
+    /**
+     * marks the cell of a picture restored from the previous session as taken
+     *
+     * @param position id calculated by {@link #calculatePosition(int, int)}
+     */
+    public void markAsTaken(int position) {
+        int x = position / (LAT + 1);
+        int y = position % (LAT + 1);
+        if (position >= 0 && x < grid.length && y < grid[x].length)
+            grid[x][y] = 1;
+    }
+
     public void saveCurrentPosition() {
         setLastPosition(this.currX, this.currY);
     }
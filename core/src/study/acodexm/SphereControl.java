@@ -1,11 +1,16 @@
 package study.acodexm;
 
 
+import com.badlogic.gdx.graphics.Pixmap;
+
 public interface SphereControl {
     void autoTakePicture();
 
-    byte[] getPicture();
+    /**
+     * @return decoded pixels of the last taken picture in texture size
+     */
+    Pixmap getPicture();
 
-    void setPicture(byte[] picture);
+    void setPicture(Pixmap picture);
 
 }